@@ -462,6 +462,21 @@ public final class Client extends AbstractKnowledgeStore {
                     timeout);
         }
 
+        @Override
+        protected Stream<BindingSet> doSparqlExplain(@Nullable final Long timeout,
+                final String expression, final Set<URI> defaultGraphs,
+                final Set<URI> namedGraphs) throws Exception {
+
+            final String path = Protocol.PATH_SPARQL;
+            final String query = query(//
+                    Protocol.PARAMETER_QUERY, expression, //
+                    Protocol.PARAMETER_DEFAULT_GRAPH, defaultGraphs, //
+                    Protocol.PARAMETER_NAMED_GRAPH, namedGraphs, //
+                    Protocol.PARAMETER_EXPLAIN, true);
+            return invoke(HttpMethod.GET, path, query, null, null, Protocol.STREAM_OF_TUPLES,
+                    timeout);
+        }
+
         @Override
         protected Outcome doSparqlUpdate(@Nullable Long timeout, @Nullable Stream<? extends Statement> statements) throws Throwable {
             final String path = Protocol.PATH_UPDATE;
@@ -655,6 +670,10 @@ public final class Client extends AbstractKnowledgeStore {
                     response.bufferEntity();
                 }
                 final T result = response.readEntity(responseType);
+                final String limit = response.getHeaderString(Protocol.HEADER_LIMIT);
+                if (result instanceof Stream<?> && limit != null) {
+                    ((Stream<?>) result).setProperty("limit", Long.valueOf(limit));
+                }
                 if (result instanceof Stream<?>) {
                     ((Stream<?>) result).onClose(new Runnable() {
 
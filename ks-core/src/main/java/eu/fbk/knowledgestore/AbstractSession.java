@@ -656,6 +656,26 @@ public abstract class AbstractSession implements Session {
                 }
             }
 
+            @Override
+            protected Stream<BindingSet> doExplain(@Nullable final Long timeout,
+                    final String expression, @Nullable final Set<URI> defaultGraphs,
+                    @Nullable final Set<URI> namedGraphs) throws OperationException {
+                synchronized (AbstractSession.this) {
+                    checkNotClosed();
+                    start("SPARQL", null, BindingSet.class, null, timeout);
+                    try {
+                        logRequest("from", defaultGraphs, "from-named", namedGraphs, //
+                                "timeout", timeout, "explain", true, null, expression);
+                        return logResponse(filter(doSparqlExplain(timeout, expression,
+                                defaultGraphs, namedGraphs)));
+                    } catch (final Throwable ex) {
+                        throw fail(ex);
+                    } finally {
+                        end();
+                    }
+                }
+            }
+
         };
     }
 
@@ -801,6 +821,10 @@ public abstract class AbstractSession implements Session {
             final String expression, @Nullable final Set<URI> defaultGraphs,
             @Nullable final Set<URI> namedGraphs) throws Throwable;
 
+    protected abstract Stream<BindingSet> doSparqlExplain(@Nullable Long timeout,
+            final String expression, @Nullable final Set<URI> defaultGraphs,
+            @Nullable final Set<URI> namedGraphs) throws Throwable;
+
     protected abstract Outcome doSparqlUpdate(@Nullable Long timeout,
 													@Nullable final Stream<? extends Statement> statements) throws Throwable;
 
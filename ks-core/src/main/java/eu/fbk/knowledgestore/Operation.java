@@ -1066,6 +1066,8 @@ public abstract class Operation {
      * {@link Sparql#execTriples()});</li>
      * <li>ASK queries return a boolean result (call {@link Sparql#execBoolean()}).</li>
      * </ul>
+     * The cost of a query of any form can also be estimated without evaluating it (call
+     * {@link Sparql#execExplain()}).
      * </p>
      * <p>
      * The operation can be configured, as usual, by specifying a timeout and supplying optional
@@ -1216,6 +1218,23 @@ public abstract class Operation {
                     this.namedGraphs);
         }
 
+        /**
+         * Estimates the cost of the query without evaluating it, returning a {@code Stream} with
+         * a single {@code BindingSet} describing the estimate; applicable to any query form. The
+         * binding set reports the estimated number of results ({@code cardinality}), the
+         * estimated cost of evaluation ({@code cost}), the action the server would take when
+         * evaluating the query ({@code action}, one of {@code accept}, {@code limit},
+         * {@code queue} or {@code reject}) and a textual description of the estimated query plan
+         * ({@code plan}).
+         * 
+         * @return a {@code Stream} with the {@code BindingSet} describing the cost estimate
+         * @throws OperationException
+         *             on failure (see possible outcome status codes)
+         */
+        public final synchronized Stream<BindingSet> execExplain() throws OperationException {
+            return doExplain(this.timeout, this.expression, this.defaultGraphs, this.namedGraphs);
+        }
+
         /**
          * Implementation method responsible of executing the SPARQL operation.
          * 
@@ -1242,6 +1261,27 @@ public abstract class Operation {
                 final String expression, @Nullable final Set<URI> defaultGraphs,
                 @Nullable final Set<URI> namedGraphs) throws OperationException;
 
+        /**
+         * Implementation method responsible of estimating the cost of the SPARQL operation.
+         * 
+         * @param timeout
+         *            the optional timeout for the operation; null if there is no timeout
+         * @param expression
+         *            the SPARQL query expression
+         * @param defaultGraphs
+         *            the optional set of default graphs overriding the ones possibly specified in
+         *            the {@code FROM} query clause; if null, no override should take place
+         * @param namedGraphs
+         *            the optional set of named graphs overriding the ones possibly specified in
+         *            the {@code FROM NAMED} query clause; if null, no override should take place
+         * @return a {@code Stream} with the {@code BindingSet} describing the cost estimate
+         * @throws OperationException
+         *             in case of failure (see possible outcome status codes)
+         */
+        protected abstract Stream<BindingSet> doExplain(@Nullable final Long timeout,
+                final String expression, @Nullable final Set<URI> defaultGraphs,
+                @Nullable final Set<URI> namedGraphs) throws OperationException;
+
         private String expand(final String expression, final Object... arguments)
                 throws ParseException {
             int expansions = 0;
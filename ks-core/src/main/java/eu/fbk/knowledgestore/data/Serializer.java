@@ -34,6 +34,7 @@ import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
 import org.openrdf.model.Value;
 import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
 import org.openrdf.model.vocabulary.XMLSchema;
 
 // NOTE: supports only serialization and deserialization of Record, URI, BNode, Literal,
@@ -183,7 +184,8 @@ public final class Serializer {
         } else if (object instanceof Literal) {
             final Literal literal = (Literal) object;
             final URI datatype = literal.getDatatype();
-            if (datatype == null || datatype.equals(XMLSchema.STRING)) {
+            if (datatype == null || datatype.equals(XMLSchema.STRING)
+                    || datatype.equals(RDF.LANGSTRING)) {
                 final String language = literal.getLanguage();
                 final byte[] label = encodeString(literal.getLabel());
                 if (language == null) {
@@ -106,15 +106,12 @@ final class Smaz {
      */
     public static byte[] compress(final String strg) {
 
-        final ByteArrayOutputStream output = new ByteArrayOutputStream();
-
         if (!isOnlyAscii(strg)) {
-            final byte[] bytes = strg.getBytes(Charsets.UTF_8);
-            output.write(UNCOMPRESSED_FLAG);
-            output.write(bytes, 0, bytes.length);
-            return output.toByteArray();
+            return uncompressed(strg);
         }
 
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
         final StringBuilder verb = new StringBuilder();
 
         final CharBuffer charBuffer = CharBuffer.wrap(strg);
@@ -204,7 +201,19 @@ final class Smaz {
             }
 
         }
-        return output.toByteArray();
+
+        // A compressed string starting with the code of UNCOMPRESSED_FLAG ("the") would not be
+        // decompressed correctly, hence it is stored uncompressed
+        final byte[] result = output.toByteArray();
+        return result.length > 0 && result[0] == UNCOMPRESSED_FLAG ? uncompressed(strg) : result;
+    }
+
+    private static byte[] uncompressed(final String strg) {
+        final byte[] bytes = strg.getBytes(Charsets.UTF_8);
+        final byte[] result = new byte[bytes.length + 1];
+        result[0] = UNCOMPRESSED_FLAG;
+        System.arraycopy(bytes, 0, result, 1, bytes.length);
+        return result;
     }
 
     /**
@@ -216,8 +225,10 @@ final class Smaz {
      */
     public static String decompress(final byte[] strBytes) {
 
-        if (strBytes[0] == UNCOMPRESSED_FLAG) {
-            return new String(strBytes, 1, strBytes.length, Charsets.UTF_8);
+        if (strBytes.length == 0) {
+            return "";
+        } else if (strBytes[0] == UNCOMPRESSED_FLAG) {
+            return new String(strBytes, 1, strBytes.length - 1, Charsets.UTF_8);
         }
 
         final StringBuilder out = new StringBuilder();
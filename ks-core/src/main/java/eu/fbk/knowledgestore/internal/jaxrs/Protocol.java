@@ -120,12 +120,16 @@ public final class Protocol {
 
     public static final String PARAMETER_NAMED_GRAPH = "named-graph-uri";
 
+    public static final String PARAMETER_EXPLAIN = "explain";
+
     public static final String HEADER_INVOCATION = "X-KS-Invocation";
 
     public static final String HEADER_CHUNKED = "X-KS-Chunked";
 
     public static final String HEADER_META = "X-KS-Content-Meta";
 
+    public static final String HEADER_LIMIT = "X-KS-Limit";
+
     public static final String[] HTTPS_PROTOCOLS = new String[] { "TLSv1" };
 
     public static final String[] HTTPS_CIPHER_SUITES = new String[] {
@@ -12,8 +12,13 @@ import java.util.Set;
 
 import javax.annotation.Nullable;
 
+import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.UnmodifiableIterator;
@@ -27,10 +32,13 @@ public abstract class CompactBindingSet implements BindingSet, Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    private static final Cache<Set<String>, VariableList> VARIABLE_LISTS = CacheBuilder
+            .newBuilder().maximumSize(1024).build();
+
     private final VariableList variables;
 
     @Nullable
-    private Set<String> names;
+    private transient Set<String> names;
 
     private int hash;
 
@@ -42,6 +50,10 @@ public abstract class CompactBindingSet implements BindingSet, Serializable {
 
     abstract Value get(int index);
 
+    final VariableList getVariables() {
+        return this.variables;
+    }
+
     @Override
     public final int size() {
         return getBindingNames().size();
@@ -170,6 +182,36 @@ public abstract class CompactBindingSet implements BindingSet, Serializable {
         return builder.toString();
     }
 
+    /**
+     * Returns a view of the binding set specified where values are rewritten with the supplied
+     * function only when read. The function must return its argument if no rewriting is needed,
+     * in which case the value is returned as is without any allocation; rewritten values are
+     * retained by the view, so that each value is rewritten at most once. The view does not copy
+     * the wrapped binding set, which should thus not be modified while the view is in use.
+     * 
+     * @param bindings
+     *            the binding set to wrap
+     * @param function
+     *            the function used to rewrite values, returning its argument if unchanged
+     * @return the produced view
+     */
+    public static CompactBindingSet rewrite(final BindingSet bindings,
+            final Function<? super Value, ? extends Value> function) {
+        Preconditions.checkNotNull(function);
+        if (bindings instanceof CompactBindingSet) {
+            return new RewritingCompactBindingSet(((CompactBindingSet) bindings).variables,
+                    bindings, function);
+        }
+        final Set<String> names = bindings.getBindingNames();
+        VariableList variables = VARIABLE_LISTS.getIfPresent(names);
+        if (variables == null) {
+            final Set<String> key = ImmutableSet.copyOf(names);
+            variables = new VariableList(key);
+            VARIABLE_LISTS.put(key, variables);
+        }
+        return new RewritingCompactBindingSet(variables, bindings, function);
+    }
+
     public static Builder builder(final Iterable<? extends String> variables) {
         return new Builder(variables instanceof VariableList ? (VariableList) variables
                 : new VariableList(variables));
@@ -372,7 +414,10 @@ public abstract class CompactBindingSet implements BindingSet, Serializable {
 
     }
 
-    private static final class VariableList extends AbstractList<String> {
+    private static final class VariableList extends AbstractList<String> implements
+            Serializable {
+
+        private static final long serialVersionUID = 1L;
 
         private final String[] variables;
 
@@ -382,7 +427,7 @@ public abstract class CompactBindingSet implements BindingSet, Serializable {
 
         public VariableList(final Iterable<? extends String> variables) {
             final int size = Iterables.size(variables);
-            final int tableSize = size * 4 - 1;
+            final int tableSize = Math.max(size * 4 - 1, 1);
             this.variables = new String[size];
             this.variableTable = new String[tableSize];
             this.indexTable = new int[tableSize];
@@ -474,6 +519,64 @@ public abstract class CompactBindingSet implements BindingSet, Serializable {
 
     }
 
+    private static final class RewritingCompactBindingSet extends CompactBindingSet {
+
+        private static final long serialVersionUID = 1L;
+
+        private final BindingSet delegate;
+
+        private final Function<? super Value, ? extends Value> function;
+
+        @Nullable
+        private Value[] rewritten; // allocated at the first value actually rewritten
+
+        RewritingCompactBindingSet(final VariableList variables, final BindingSet delegate,
+                final Function<? super Value, ? extends Value> function) {
+            super(variables);
+            this.delegate = delegate;
+            this.function = function;
+        }
+
+        @Override
+        @Nullable
+        public Value get(final int index) {
+            final VariableList variables = getVariables();
+            if (index < 0 || index >= variables.size()) {
+                return null;
+            }
+            if (this.rewritten != null && this.rewritten[index] != null) {
+                return this.rewritten[index];
+            }
+            final Value value;
+            if (this.delegate instanceof CompactBindingSet) {
+                value = ((CompactBindingSet) this.delegate).get(index); // same variables
+            } else {
+                value = this.delegate.getValue(variables.get(index));
+            }
+            if (value == null) {
+                return null;
+            }
+            final Value result = this.function.apply(value);
+            if (result != value) {
+                if (this.rewritten == null) {
+                    this.rewritten = new Value[variables.size()];
+                }
+                this.rewritten[index] = result;
+            }
+            return result;
+        }
+
+        private Object writeReplace() {
+            final VariableList variables = getVariables();
+            final Value[] values = new Value[variables.size()];
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = get(i);
+            }
+            return new ArrayCompactBindingSet(variables, values);
+        }
+
+    }
+
     private static final class ArrayCompactBindingSet extends CompactBindingSet {
 
         private static final long serialVersionUID = 1L;
@@ -134,6 +134,26 @@ public final class RDFUtil {
         }
     }
 
+    /**
+     * Returns a view of the statement specified whose components are rewritten with the supplied
+     * function only when read. The function must return its argument if no rewriting is needed
+     * (in which case the component is returned as is without any allocation), must map
+     * resources to resources and URIs to URIs, and should not change the identity of values
+     * other than URIs, as only URIs may appear in predicate position. Rewritten components are
+     * retained by the view, so that each component is rewritten at most once.
+     * 
+     * @param statement
+     *            the statement to wrap
+     * @param function
+     *            the function used to rewrite values, returning its argument if unchanged
+     * @return the produced view
+     */
+    public static Statement rewrite(final Statement statement,
+            final Function<? super Value, ? extends Value> function) {
+        return new RewritingStatement(Preconditions.checkNotNull(statement),
+                Preconditions.checkNotNull(function));
+    }
+
     public static Stream<Statement> toStatementStream(
             final Iteration<? extends BindingSet, ?> iteration) {
 
@@ -780,6 +800,103 @@ public final class RDFUtil {
         }
     }
 
+    private static final class RewritingStatement implements Statement {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Statement delegate;
+
+        private final Function<? super Value, ? extends Value> function;
+
+        @Nullable
+        private Resource subject;
+
+        @Nullable
+        private URI predicate;
+
+        @Nullable
+        private Value object;
+
+        @Nullable
+        private Resource context;
+
+        RewritingStatement(final Statement delegate,
+                final Function<? super Value, ? extends Value> function) {
+            this.delegate = delegate;
+            this.function = function;
+        }
+
+        @Override
+        public Resource getSubject() {
+            if (this.subject == null) {
+                this.subject = (Resource) this.function.apply(this.delegate.getSubject());
+            }
+            return this.subject;
+        }
+
+        @Override
+        public URI getPredicate() {
+            if (this.predicate == null) {
+                this.predicate = (URI) this.function.apply(this.delegate.getPredicate());
+            }
+            return this.predicate;
+        }
+
+        @Override
+        public Value getObject() {
+            if (this.object == null) {
+                this.object = this.function.apply(this.delegate.getObject());
+            }
+            return this.object;
+        }
+
+        @Override
+        @Nullable
+        public Resource getContext() {
+            if (this.context == null) {
+                final Resource context = this.delegate.getContext();
+                this.context = context == null ? null : (Resource) this.function.apply(context);
+            }
+            return this.context;
+        }
+
+        @Override
+        public boolean equals(final Object object) {
+            if (object == this) {
+                return true;
+            }
+            if (!(object instanceof Statement)) {
+                return false;
+            }
+            final Statement other = (Statement) object;
+            return getObject().equals(other.getObject())
+                    && getSubject().equals(other.getSubject())
+                    && getPredicate().equals(other.getPredicate());
+        }
+
+        @Override
+        public int hashCode() {
+            // same as Sesame StatementImpl
+            return 961 * getSubject().hashCode() + 31 * getPredicate().hashCode()
+                    + getObject().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            final Resource context = getContext();
+            return "(" + getSubject() + ", " + getPredicate() + ", " + getObject() + ")"
+                    + (context == null ? "" : " [" + context + "]");
+        }
+
+        private Object writeReplace() {
+            final Resource context = getContext();
+            return context == null ? Data.getValueFactory().createStatement(getSubject(),
+                    getPredicate(), getObject()) : Data.getValueFactory().createStatement(
+                    getSubject(), getPredicate(), getObject(), context);
+        }
+
+    }
+
     private static final class MergingHandler implements RDFHandler {
 
         private final RDFHandler handler;
@@ -7,6 +7,7 @@ import java.io.ObjectOutputStream;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.List;
 
 import com.google.common.io.BaseEncoding;
 
@@ -34,6 +35,22 @@ public class SerializerTest {
         Assert.assertEquals(l1, l2);
     }
 
+    @Test
+    public void testLangString() throws Throwable {
+        final Serializer serializer = new Serializer();
+        final Literal literal = ValueFactoryImpl.getInstance().createLiteral("the news", "en");
+        Assert.assertEquals(RDF.LANGSTRING, literal.getDatatype());
+        final List<Object> values = Arrays.<Object>asList(literal, null,
+                ValueFactoryImpl.getInstance().createLiteral("the news"));
+        final List<?> result = (List<?>) serializer.fromBytes(serializer.toBytes(values));
+        Assert.assertEquals(values, result);
+        Assert.assertEquals("en", ((Literal) result.get(0)).getLanguage());
+        Assert.assertEquals(RDF.LANGSTRING, ((Literal) result.get(0)).getDatatype());
+        final Record record = Record.create(new URIImpl("ex:r"), KS.RESOURCE);
+        record.set(DCTERMS.TITLE, literal);
+        Assert.assertEquals(record, serializer.fromBytes(serializer.toBytes(record)));
+    }
+
     // JAVA SERIALIZATION
     // 2432
 
@@ -0,0 +1,30 @@
+package eu.fbk.knowledgestore.data;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SmazTest {
+
+    @Test
+    public void testEmpty() {
+        Assert.assertEquals(0, Smaz.compress("").length);
+        Assert.assertEquals("", Smaz.decompress(new byte[0]));
+    }
+
+    @Test
+    public void testAscii() {
+        for (final String string : new String[] { "a", "the", "the news", "hello world",
+                "http://dkm.fbk.eu/resource/r15#char=0,12", "This is the news title" }) {
+            Assert.assertEquals(string, Smaz.decompress(Smaz.compress(string)));
+        }
+    }
+
+    @Test
+    public void testNonAscii() {
+        for (final String string : new String[] { "à", "café", "Città di Trento",
+                "中文" }) {
+            Assert.assertEquals(string, Smaz.decompress(Smaz.compress(string)));
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+package eu.fbk.knowledgestore.internal.rdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.query.impl.MapBindingSet;
+
+import eu.fbk.knowledgestore.data.Data;
+
+public class CompactBindingSetTest {
+
+    private static final Value A = Data.getValueFactory().createURI("ex:a");
+
+    private static final BNode B = Data.getValueFactory().createBNode("b");
+
+    private static final Value B_SKOLEMIZED = Data.getValueFactory().createURI("bnode:b");
+
+    private static final Value C = Data.getValueFactory().createLiteral("c");
+
+    @Test
+    public void testRewriteCompact() throws Throwable {
+        final CompactBindingSet bindings = CompactBindingSet
+                .builder(ImmutableList.of("x", "y", "z", "w")).set("x", A).set("y", B)
+                .set("z", C).build();
+        final AtomicInteger calls = new AtomicInteger();
+        final BindingSet view = CompactBindingSet.rewrite(bindings, skolemizer(calls));
+        Assert.assertSame(A, view.getValue("x"));
+        Assert.assertEquals(B_SKOLEMIZED, view.getValue("y"));
+        Assert.assertSame(view.getValue("y"), view.getValue("y")); // rewritten once
+        Assert.assertSame(C, view.getValue("z"));
+        Assert.assertNull(view.getValue("w"));
+        Assert.assertNull(view.getValue("unknown"));
+        Assert.assertEquals(ImmutableSet.of("x", "y", "z"), view.getBindingNames());
+        Assert.assertEquals(expected(), view);
+        Assert.assertEquals(expected().hashCode(), view.hashCode());
+        Assert.assertEquals(1, calls.get()); // the blank node is rewritten only once
+    }
+
+    @Test
+    public void testRewriteNonCompact() throws Throwable {
+        final MapBindingSet bindings = new MapBindingSet();
+        bindings.addBinding("x", A);
+        bindings.addBinding("y", B);
+        bindings.addBinding("z", C);
+        final BindingSet view = CompactBindingSet.rewrite(bindings, skolemizer(null));
+        Assert.assertSame(A, view.getValue("x"));
+        Assert.assertEquals(B_SKOLEMIZED, view.getValue("y"));
+        Assert.assertSame(C, view.getValue("z"));
+        Assert.assertEquals(3, view.size());
+        Assert.assertEquals(expected(), view);
+        Assert.assertEquals(view, expected());
+        Assert.assertEquals(expected().hashCode(), view.hashCode());
+        Assert.assertEquals(bindings, CompactBindingSet.rewrite(bindings, identity()));
+    }
+
+    @Test
+    public void testRewriteEmpty() throws Throwable {
+        final BindingSet view = CompactBindingSet.rewrite(EmptyBindingSet.getInstance(),
+                skolemizer(null));
+        Assert.assertEquals(0, view.size());
+        Assert.assertFalse(view.iterator().hasNext());
+        Assert.assertNull(view.getValue("x"));
+        Assert.assertEquals(EmptyBindingSet.getInstance(), view);
+    }
+
+    @Test
+    public void testRewriteSerialization() throws Throwable {
+        final MapBindingSet bindings = new MapBindingSet();
+        bindings.addBinding("x", A);
+        bindings.addBinding("y", B);
+        final BindingSet view = CompactBindingSet.rewrite(bindings, skolemizer(null));
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(view);
+        oos.close();
+        final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(
+                bos.toByteArray()));
+        final BindingSet copy = (BindingSet) ois.readObject();
+        ois.close();
+
+        Assert.assertEquals(view, copy);
+        Assert.assertEquals(B_SKOLEMIZED, copy.getValue("y"));
+    }
+
+    private static BindingSet expected() {
+        final MapBindingSet bindings = new MapBindingSet();
+        bindings.addBinding("x", A);
+        bindings.addBinding("y", B_SKOLEMIZED);
+        bindings.addBinding("z", C);
+        return bindings;
+    }
+
+    private static Function<Value, Value> skolemizer(final AtomicInteger calls) {
+        return new Function<Value, Value>() {
+
+            @Override
+            public Value apply(final Value value) {
+                if (!(value instanceof BNode)) {
+                    return value;
+                }
+                if (calls != null) {
+                    calls.incrementAndGet();
+                }
+                return Data.getValueFactory().createURI("bnode:", ((BNode) value).getID());
+            }
+
+        };
+    }
+
+    private static Function<Value, Value> identity() {
+        return new Function<Value, Value>() {
+
+            @Override
+            public Value apply(final Value value) {
+                return value;
+            }
+
+        };
+    }
+
+}
@@ -0,0 +1,95 @@
+package eu.fbk.knowledgestore.internal.rdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Function;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+
+import eu.fbk.knowledgestore.data.Data;
+
+public class RDFUtilTest {
+
+    private static final ValueFactory VF = Data.getValueFactory();
+
+    private static final BNode B = VF.createBNode("b");
+
+    private static final URI B_SKOLEMIZED = VF.createURI("bnode:b");
+
+    private static final URI P = VF.createURI("ex:p");
+
+    private static final Resource G = VF.createURI("ex:g");
+
+    @Test
+    public void testRewriteStatement() throws Throwable {
+        final AtomicInteger calls = new AtomicInteger();
+        final Statement view = RDFUtil.rewrite(VF.createStatement(B, P, B, G), skolemizer(calls));
+        Assert.assertEquals(B_SKOLEMIZED, view.getSubject());
+        Assert.assertSame(P, view.getPredicate());
+        Assert.assertEquals(B_SKOLEMIZED, view.getObject());
+        Assert.assertSame(G, view.getContext());
+        Assert.assertSame(view.getSubject(), view.getSubject());
+        Assert.assertEquals(2, calls.get()); // subject and object rewritten once each
+
+        final Statement expected = VF.createStatement(B_SKOLEMIZED, P, B_SKOLEMIZED, G);
+        Assert.assertEquals(expected, view);
+        Assert.assertEquals(view, expected);
+        Assert.assertEquals(expected.hashCode(), view.hashCode());
+        Assert.assertEquals(VF.createStatement(B_SKOLEMIZED, P, B_SKOLEMIZED), view);
+    }
+
+    @Test
+    public void testRewriteStatementWithoutContext() throws Throwable {
+        final Statement view = RDFUtil.rewrite(VF.createStatement(B, P, G), skolemizer(null));
+        Assert.assertNull(view.getContext());
+        Assert.assertSame(G, view.getObject());
+        Assert.assertEquals(VF.createStatement(B_SKOLEMIZED, P, G), view);
+        Assert.assertFalse(view.equals(VF.createStatement(B, P, G)));
+    }
+
+    @Test
+    public void testRewriteStatementSerialization() throws Throwable {
+        final Statement view = RDFUtil.rewrite(VF.createStatement(B, P, B, G), skolemizer(null));
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(view);
+        oos.close();
+        final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(
+                bos.toByteArray()));
+        final Statement copy = (Statement) ois.readObject();
+        ois.close();
+
+        Assert.assertEquals(view, copy);
+        Assert.assertEquals(G, copy.getContext());
+    }
+
+    private static Function<Value, Value> skolemizer(final AtomicInteger calls) {
+        return new Function<Value, Value>() {
+
+            @Override
+            public Value apply(final Value value) {
+                if (!(value instanceof BNode)) {
+                    return value;
+                }
+                if (calls != null) {
+                    calls.incrementAndGet();
+                }
+                return VF.createURI("bnode:", ((BNode) value).getID());
+            }
+
+        };
+    }
+
+}
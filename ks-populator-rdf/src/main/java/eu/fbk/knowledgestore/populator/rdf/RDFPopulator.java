@@ -38,6 +38,7 @@ import org.openrdf.rio.RDFFormat;
 import org.openrdf.rio.RDFHandler;
 import org.openrdf.rio.RDFHandlerException;
 import org.openrdf.rio.helpers.RDFHandlerBase;
+import org.openrdf.sail.memory.MemoryStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,6 +58,10 @@ import eu.fbk.knowledgestore.data.Stream;
 import eu.fbk.knowledgestore.internal.Compression;
 import eu.fbk.knowledgestore.internal.Util;
 import eu.fbk.knowledgestore.internal.rdf.RDFUtil;
+import eu.fbk.knowledgestore.triplestore.InferencingTripleStore;
+import eu.fbk.knowledgestore.triplestore.RepositoryTripleStore;
+import eu.fbk.knowledgestore.triplestore.TripleStore;
+import eu.fbk.knowledgestore.triplestore.TripleTransaction;
 import eu.fbk.knowledgestore.vocabulary.CKR;
 import eu.fbk.knowledgestore.vocabulary.KS;
 
@@ -76,6 +81,8 @@ public final class RDFPopulator {
 
     private static final Logger STATUS_LOGGER = LoggerFactory.getLogger("status");
 
+    private static final int BULK_LOAD_CHUNK_SIZE = 100000;
+
     public static void main(final String... args) {
         try {
             // Parse command line, handling -h and -v commands
@@ -100,6 +107,8 @@ public final class RDFPopulator {
             final URI globalURI = cmd.hasOption('g') ? (URI) Data.parseValue(
                     cmd.getOptionValue('g'), Data.getNamespaceMap()) : CKR.GLOBAL;
             final String credentials = cmd.getOptionValue('u');
+            final String repository = cmd.getOptionValue('r');
+            final boolean materialize = cmd.hasOption('m');
 
             // Split username / password
             String username = null;
@@ -116,6 +125,12 @@ public final class RDFPopulator {
                 checkFileParseable(file, sourceFormat);
             }
 
+            // Bulk-load input triples in an embedded repository, if option -r is specified
+            if (repository != null) {
+                load(sources, parallelism, base, sourceFormat, new File(repository), materialize);
+                System.exit(0);
+            }
+
             // Setup axiom decoding
             final Stream<Record> axioms = decode(sources, globalURI, parallelism, base,
                     sourceFormat);
@@ -211,6 +226,10 @@ public final class RDFPopulator {
                 "don't check server certificate (default: check)");
         newOption(outputOpts, 'c', "criteria", 1, false, "C",
                 "upload with merge criteria C (default: overwrite *)");
+        newOption(outputOpts, 'r', "repository", 1, false, "DIR",
+                "bulk-load input triples (no axiom decoding) in embedded repository DIR");
+        newOption(outputOpts, 'm', "materialize", 0, false, null,
+                "materialize RDFS / OWL closure of repository DIR after loading (requires -r)");
         // -U|--proxy-user "user[:password]" proxy
         // -x|--proxy host:port
 
@@ -374,6 +393,98 @@ public final class RDFPopulator {
         };
     }
 
+    private static void load(final List<File> files, final int parallelism,
+            @Nullable final String base, @Nullable final String formatString,
+            final File directory, final boolean materialize) throws Throwable {
+
+        // Determine source RDF format and compression based on format string
+        final Compression compression = detectCompression(formatString, null);
+        final RDFFormat format = detectRDFFormat(formatString, null);
+
+        // Setup an embedded memory store persisted in the directory only at shutdown, accessed
+        // in bulk-load mode (chunked commits, no isolation)
+        final MemoryStore sail = new MemoryStore(directory);
+        sail.setPersist(true);
+        sail.setSyncDelay(-1L);
+        final TripleStore store = new RepositoryTripleStore(sail, BULK_LOAD_CHUNK_SIZE);
+        store.init();
+
+        try {
+            // Load all the statements in a single (chunked) read-write transaction
+            final TripleTransaction transaction = store.begin(false);
+            boolean committed = false;
+            try {
+                RDFHandler rdfHandler = new RDFHandlerBase() {
+
+                    private final List<Statement> buffer = Lists.newArrayList();
+
+                    @Override
+                    public synchronized void handleStatement(final Statement stmt)
+                            throws RDFHandlerException {
+                        this.buffer.add(stmt);
+                        if (this.buffer.size() >= BULK_LOAD_CHUNK_SIZE) {
+                            flush();
+                        }
+                    }
+
+                    @Override
+                    public synchronized void endRDF() throws RDFHandlerException {
+                        flush();
+                    }
+
+                    private void flush() throws RDFHandlerException {
+                        try {
+                            transaction.add(this.buffer);
+                            this.buffer.clear();
+                        } catch (final IOException ex) {
+                            throw new RDFHandlerException(ex);
+                        }
+                    }
+
+                };
+
+                // Add logging
+                rdfHandler = RDFUtil.newLoggingHandler(rdfHandler, STATUS_LOGGER, null,
+                        "loading: %d triples (%d triples/s, %d triples/s avg)", null);
+
+                // Perform parallel parsing
+                final Map<File, RDFHandler> map = Maps.newLinkedHashMap();
+                for (final File file : files) {
+                    final RDFHandler fileHandler = RDFUtil.newLoggingHandler(rdfHandler,
+                            MAIN_LOGGER, null, null,
+                            "loaded " + (file == null ? "STDIN" : file.getAbsolutePath())
+                                    + ": %d triples, (%d triples/s avg)");
+                    map.put(file, fileHandler);
+                }
+                rdfHandler.startRDF();
+                RDFUtil.readRDF(map, format, null, base, false, compression, parallelism);
+                rdfHandler.endRDF();
+                STATUS_LOGGER.info("");
+                transaction.end(true);
+                committed = true;
+            } finally {
+                if (!committed) {
+                    transaction.end(false);
+                }
+            }
+
+            // Materialize the closure of loaded statements, if requested
+            if (materialize) {
+                final long ts = System.currentTimeMillis();
+                final long numInferred = new InferencingTripleStore(store, null).materialize();
+                MAIN_LOGGER.info("Closure materialized in {} ms, {} triples inferred",
+                        System.currentTimeMillis() - ts, numInferred);
+            }
+
+        } finally {
+            // Persist the repository
+            final long ts = System.currentTimeMillis();
+            store.close();
+            MAIN_LOGGER.info("Repository {} persisted in {} ms", directory,
+                    System.currentTimeMillis() - ts);
+        }
+    }
+
     private static Stream<Record> upload(final Session session, final Criteria criteria,
             final Stream<Record> axioms) {
 
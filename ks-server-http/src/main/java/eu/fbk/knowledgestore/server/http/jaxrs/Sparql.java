@@ -13,6 +13,7 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
 
 import com.google.common.collect.Sets;
@@ -43,8 +44,10 @@ public class Sparql extends Resource {
     public Response get(
             @QueryParam(Protocol.PARAMETER_DEFAULT_GRAPH) final List<String> defaultGraphs,
             @QueryParam(Protocol.PARAMETER_NAMED_GRAPH) final List<String> namedGraphs,
-            @QueryParam(Protocol.PARAMETER_QUERY) final String query) throws OperationException {
-        return query(query, defaultGraphs, namedGraphs);
+            @QueryParam(Protocol.PARAMETER_QUERY) final String query,
+            @QueryParam(Protocol.PARAMETER_EXPLAIN) final boolean explain)
+            throws OperationException {
+        return query(query, defaultGraphs, namedGraphs, explain);
     }
 
     @POST
@@ -54,8 +57,10 @@ public class Sparql extends Resource {
     public Response postURLencoded(
             @FormParam(Protocol.PARAMETER_DEFAULT_GRAPH) final List<String> defaultGraphs,
             @FormParam(Protocol.PARAMETER_NAMED_GRAPH) final List<String> namedGraphs,
-            @FormParam(Protocol.PARAMETER_QUERY) final String query) throws OperationException {
-        return query(query, defaultGraphs, namedGraphs);
+            @FormParam(Protocol.PARAMETER_QUERY) final String query,
+            @FormParam(Protocol.PARAMETER_EXPLAIN) final boolean explain)
+            throws OperationException {
+        return query(query, defaultGraphs, namedGraphs, explain);
     }
 
     @POST
@@ -65,12 +70,13 @@ public class Sparql extends Resource {
     public Response postDirect(
             @QueryParam(Protocol.PARAMETER_DEFAULT_GRAPH) final List<String> defaultGraphs,
             @QueryParam(Protocol.PARAMETER_NAMED_GRAPH) final List<String> namedGraphs,
-            final String query) throws OperationException {
-        return query(query, defaultGraphs, namedGraphs);
+            @QueryParam(Protocol.PARAMETER_EXPLAIN) final boolean explain, final String query)
+            throws OperationException {
+        return query(query, defaultGraphs, namedGraphs, explain);
     }
 
     private Response query(final String query, final List<String> defaultGraphs,
-            final List<String> namedGraphs) throws OperationException {
+            final List<String> namedGraphs, final boolean explain) throws OperationException {
 
         // Check mandatory parameter
         checkNotNull(query, Outcome.Status.ERROR_INVALID_INPUT, "Missing query");
@@ -89,9 +95,13 @@ public class Sparql extends Resource {
                     ex.getMessage()), ex);
         }
 
-        // Select correct MIME type via negotiation, validate preconditions and handle probes
+        // Select correct MIME type via negotiation, validate preconditions and handle probes;
+        // cost estimates requested via the explain parameter are always returned as tuples
         final GenericType<?> type;
-        if (form.equals("construct") || form.equals("describe")) {
+        if (explain) {
+            init(false, Protocol.MIME_TYPES_SPARQL_TUPLE, null, null);
+            type = Protocol.STREAM_OF_TUPLES;
+        } else if (form.equals("construct") || form.equals("describe")) {
             init(false, Protocol.MIME_TYPES_RDF, null, null);
             type = Protocol.STREAM_OF_STATEMENTS;
         } else if (form.equals("select")) {
@@ -107,6 +117,8 @@ public class Sparql extends Resource {
         Stream<?> entity;
         if (getMethod().equals(HttpMethod.HEAD)) {
             entity = Stream.create();
+        } else if (explain) {
+            entity = operation.execExplain();
         } else if (type == Protocol.STREAM_OF_STATEMENTS) {
             entity = operation.execTriples();
         } else if (type == Protocol.STREAM_OF_TUPLES) {
@@ -117,8 +129,15 @@ public class Sparql extends Resource {
             throw new Error("Unexpected type: " + type);
         }
 
-        // Build and return the SPARQL response
-        return newResponseBuilder(Status.OK, closeOnCompletion(entity), type).build();
+        // Build and return the SPARQL response, reporting the limit applied by the server to
+        // the results of an expensive query, if any
+        final Long limit = entity.getProperty("limit", Long.class);
+        final ResponseBuilder builder = newResponseBuilder(Status.OK, closeOnCompletion(entity),
+                type);
+        if (limit != null) {
+            builder.header(Protocol.HEADER_LIMIT, limit);
+        }
+        return builder.build();
     }
 
     private static Set<URI> parseGraphURIs(final List<String> strings) {
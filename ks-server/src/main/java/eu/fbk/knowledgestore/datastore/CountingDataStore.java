@@ -0,0 +1,378 @@
+package eu.fbk.knowledgestore.datastore;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.vocabulary.RDF;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.fbk.knowledgestore.data.Data;
+import eu.fbk.knowledgestore.data.Record;
+import eu.fbk.knowledgestore.data.Stream;
+import eu.fbk.knowledgestore.data.XPath;
+
+/**
+ * A {@code DataStore} wrapper that maintains per-type record totals and caches the results of
+ * conditional counts.
+ * <p>
+ * This wrapper aims at making {@link DataTransaction#count(URI, XPath) count} calls cheap, as
+ * they are frequently issued (e.g., by dashboards and the UI) while being implemented by most
+ * data stores with a full scan. The total number of records of each type is computed by the
+ * wrapped {@code DataStore} the first time it is requested, and then kept current by tracking
+ * the records created and deleted by each committed transaction. Tracking requires knowing
+ * whether a stored or deleted record already exists: this is taken from the lookups done by the
+ * transaction (as the server looks up each chunk of records with a single lookup before
+ * modifying them), and only records never looked up by the transaction are checked with an
+ * additional lookup each. The results of conditional counts are cached, up to a
+ * configurable {@code maxSize} number of conditions for each record type, using as key the
+ * condition normalized via {@link XPath#decompose(Map)}; cached results for a type are discarded
+ * whenever a transaction modifying records of that type commits.
+ * </p>
+ * <p>
+ * Similarly to {@code CachingDataStore}, a per-type revision number mechanism prevents a
+ * transaction from using or populating cached values for a type if a concurrent transaction
+ * modified that type after the former started. A read-write transaction that modified a type
+ * bypasses the cache of conditional counts for that type, while totals are adjusted with the
+ * transaction changes. Some statistics about cache hits and misses are logged at close time.
+ * </p>
+ */
+public class CountingDataStore extends ForwardingDataStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CountingDataStore.class);
+
+    private static final int DEFAULT_MAX_SIZE = 1024;
+
+    private static final String TOTAL_KEY = "";
+
+    private final DataStore delegate;
+
+    private final ReadWriteLock globalLock;
+
+    private final Map<URI, Long> globalRevisions;
+
+    private final ConcurrentMap<URI, Cache<String, Long>> globalCaches;
+
+    private final int maxSize;
+
+    // Counters for statistics
+
+    private final AtomicLong hitCount;
+
+    private final AtomicLong missCount;
+
+    private final AtomicLong invalidationCount;
+
+    /**
+     * Creates a new instance for the wrapped {@code DataStore} specified.
+     *
+     * @param delegate
+     *            the wrapped {@code DataStore}
+     * @param maxSize
+     *            the maximum number of conditional counts cached for each record type; if null
+     *            defaults to 1024
+     */
+    public CountingDataStore(final DataStore delegate, @Nullable final Integer maxSize) {
+
+        final int actualMaxSize = MoreObjects.firstNonNull(maxSize, DEFAULT_MAX_SIZE);
+        Preconditions.checkArgument(actualMaxSize > 0);
+
+        this.delegate = Preconditions.checkNotNull(delegate);
+        this.maxSize = actualMaxSize;
+        this.globalLock = new ReentrantReadWriteLock(true);
+        this.globalRevisions = Maps.newHashMap();
+        this.globalCaches = Maps.newConcurrentMap();
+        this.hitCount = new AtomicLong(0);
+        this.missCount = new AtomicLong(0);
+        this.invalidationCount = new AtomicLong(0);
+
+        CountingDataStore.LOGGER.info("{} configured", this.getClass().getSimpleName());
+    }
+
+    @Override
+    protected DataStore delegate() {
+        return this.delegate;
+    }
+
+    /**
+     * Returns whether the per-type record totals of the {@code DataStore} specified are
+     * maintained by a {@code CountingDataStore}, i.e., whether the store is or wraps (through a
+     * chain of {@code ForwardingDataStore}s) a {@code CountingDataStore}. If so, the total number
+     * of records of a type can be obtained via {@link DataTransaction#count(URI, XPath)} without
+     * a scan of the store, with the exception of the first request for that type.
+     *
+     * @param store
+     *            the {@code DataStore} to check
+     * @return true, if record totals are maintained by a {@code CountingDataStore}
+     */
+    public static boolean isCounting(final DataStore store) {
+        DataStore current = Preconditions.checkNotNull(store);
+        while (current instanceof ForwardingDataStore) {
+            if (current instanceof CountingDataStore) {
+                return true;
+            }
+            current = ((ForwardingDataStore) current).delegate();
+        }
+        return false;
+    }
+
+    @Override
+    public DataTransaction begin(final boolean readOnly) throws IOException, IllegalStateException {
+
+        // Need to acquire a shared lock to read revisions consistently w.r.t. commits
+        CountingDataStore.this.globalLock.readLock().lock();
+        try {
+            final Map<URI, Long> revisions = ImmutableMap.copyOf(this.globalRevisions);
+            final DataTransaction tx = delegate().begin(readOnly);
+            return new CountingDataTransaction(tx, readOnly, revisions);
+        } finally {
+            CountingDataStore.this.globalLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            LOGGER.info("{} - {} count cache hits, {} misses, {} invalidations", this.getClass()
+                    .getSimpleName(), this.hitCount, this.missCount, this.invalidationCount);
+        } finally {
+            super.close();
+        }
+    }
+
+    private Cache<String, Long> getGlobalCache(final URI type) {
+        Cache<String, Long> cache = this.globalCaches.get(type);
+        if (cache == null) {
+            // the total is cached as a conditional count with an empty key, hence the '+ 1'
+            cache = CacheBuilder.newBuilder().maximumSize(this.maxSize + 1).build();
+            final Cache<String, Long> oldCache = this.globalCaches.putIfAbsent(type, cache);
+            cache = MoreObjects.firstNonNull(oldCache, cache);
+        }
+        return cache;
+    }
+
+    private static String normalize(@Nullable final XPath condition) {
+
+        if (condition == null) {
+            return TOTAL_KEY;
+        }
+
+        // Decompose the condition and sort restrictions, so that equivalent conditions whose
+        // conjuncts are written in a different order are mapped to the same key
+        final Map<URI, Set<Object>> restrictions = Maps.newTreeMap(Data.getTotalComparator());
+        final XPath remaining = condition.decompose(restrictions);
+        final StringBuilder builder = new StringBuilder();
+        for (final Map.Entry<URI, Set<Object>> entry : restrictions.entrySet()) {
+            builder.append(entry.getKey()).append(" in ");
+            builder.append(Ordering.usingToString().sortedCopy(entry.getValue()));
+            builder.append(" and ");
+        }
+        builder.append(remaining == null ? "true()" : remaining.toString());
+        return builder.toString();
+    }
+
+    private class CountingDataTransaction extends ForwardingDataTransaction {
+
+        private final DataTransaction delegate;
+
+        private final Map<URI, Long> localRevisions;
+
+        @Nullable
+        private final Map<URI, Map<URI, Boolean>> existences; // null if read-only
+
+        @Nullable
+        private final Set<URI> modifiedTypes; // null if read-only
+
+        @Nullable
+        private final Map<URI, Long> deltas; // null if read-only
+
+        CountingDataTransaction(final DataTransaction delegate, final boolean readOnly,
+                final Map<URI, Long> revisions) {
+            this.delegate = Preconditions.checkNotNull(delegate);
+            this.localRevisions = revisions;
+            this.existences = readOnly ? null : Maps.<URI, Map<URI, Boolean>>newHashMap();
+            this.modifiedTypes = readOnly ? null : Sets.<URI>newHashSet();
+            this.deltas = readOnly ? null : Maps.<URI, Long>newHashMap();
+        }
+
+        @Override
+        protected DataTransaction delegate() {
+            return this.delegate;
+        }
+
+        @Override
+        public long count(final URI type, @Nullable final XPath condition) throws IOException,
+                IllegalArgumentException, IllegalStateException {
+
+            // Conditional counts are not cached if the type was modified locally, while totals
+            // are cached without the local delta (as it may be rolled back)
+            final long delta = getDelta(type);
+            final boolean modified = this.modifiedTypes != null
+                    && this.modifiedTypes.contains(type);
+            if (modified && condition != null) {
+                return super.count(type, condition);
+            }
+
+            // Lookup in global cache, if revision unchanged
+            final String key = normalize(condition);
+            final Cache<String, Long> cache = getGlobalCache(type);
+            CountingDataStore.this.globalLock.readLock().lock();
+            try {
+                if (isCurrent(type)) {
+                    final Long count = cache.getIfPresent(key);
+                    if (count != null) {
+                        CountingDataStore.this.hitCount.incrementAndGet();
+                        return count + delta;
+                    }
+                }
+            } finally {
+                CountingDataStore.this.globalLock.readLock().unlock();
+            }
+
+            // Compute the count, which includes the local delta
+            final long count = super.count(type, condition);
+            CountingDataStore.this.missCount.incrementAndGet();
+
+            // Cache the count without local delta, if revision unchanged
+            CountingDataStore.this.globalLock.readLock().lock();
+            try {
+                if (isCurrent(type)) {
+                    cache.put(key, count - delta);
+                }
+            } finally {
+                CountingDataStore.this.globalLock.readLock().unlock();
+            }
+            return count;
+        }
+
+        @Override
+        public Stream<Record> lookup(final URI type, final Set<? extends URI> ids,
+                @Nullable final Set<? extends URI> properties) throws IOException,
+                IllegalArgumentException, IllegalStateException {
+
+            // Delegate if read-only. Otherwise record whether looked up records exist, so that
+            // records later stored or deleted by the transaction need not be looked up again
+            final Stream<Record> stream = super.lookup(type, ids, properties);
+            if (this.existences == null) {
+                return stream;
+            }
+            final List<Record> records = stream.toList();
+            final Map<URI, Boolean> map = getExistences(type);
+            for (final URI id : ids) {
+                map.put(id, Boolean.FALSE);
+            }
+            for (final Record record : records) {
+                map.put(record.getID(), Boolean.TRUE);
+            }
+            return Stream.create(records);
+        }
+
+        @Override
+        public void store(final URI type, final Record record) throws IOException,
+                IllegalStateException {
+            Preconditions.checkState(this.existences != null, "Read-only DataTransaction");
+            registerChange(type, record.getID(), true);
+            super.store(type, record);
+        }
+
+        @Override
+        public void delete(final URI type, final URI id) throws IOException, IllegalStateException {
+            Preconditions.checkState(this.existences != null, "Read-only DataTransaction");
+            registerChange(type, id, false);
+            super.delete(type, id);
+        }
+
+        @Override
+        public void end(final boolean commit) throws IOException, IllegalStateException {
+
+            // Simply delegate if read-only, on rollback or if nothing was modified
+            if (this.existences == null || !commit || this.modifiedTypes.isEmpty()) {
+                super.end(commit);
+                return;
+            }
+
+            // Otherwise, commit and update totals / invalidate cached counts of modified types
+            // while holding an exclusive lock, so to properly handle revision numbers
+            CountingDataStore.this.globalLock.writeLock().lock();
+            try {
+                super.end(true);
+                for (final URI type : this.modifiedTypes) {
+                    final Cache<String, Long> cache = getGlobalCache(type);
+                    final Long total = isCurrent(type) ? cache.getIfPresent(TOTAL_KEY) : null;
+                    cache.invalidateAll();
+                    if (total != null) {
+                        cache.put(TOTAL_KEY, total + getDelta(type));
+                    }
+                    final Long revision = CountingDataStore.this.globalRevisions.get(type);
+                    CountingDataStore.this.globalRevisions.put(type,
+                            revision == null ? 1L : revision + 1);
+                    CountingDataStore.this.invalidationCount.incrementAndGet();
+                }
+            } finally {
+                CountingDataStore.this.globalLock.writeLock().unlock();
+            }
+        }
+
+        private boolean isCurrent(final URI type) {
+            final Long globalRevision = CountingDataStore.this.globalRevisions.get(type);
+            final Long localRevision = this.localRevisions.get(type);
+            return globalRevision == null ? localRevision == null : globalRevision
+                    .equals(localRevision);
+        }
+
+        private long getDelta(final URI type) {
+            final Long delta = this.deltas == null ? null : this.deltas.get(type);
+            return delta == null ? 0L : delta;
+        }
+
+        private Map<URI, Boolean> getExistences(final URI type) {
+            Map<URI, Boolean> map = this.existences.get(type);
+            if (map == null) {
+                map = Maps.newHashMap();
+                this.existences.put(type, map);
+            }
+            return map;
+        }
+
+        private void registerChange(final URI type, final URI id, final boolean exists)
+                throws IOException {
+
+            assert this.existences != null && this.deltas != null; // need read/write tx
+
+            this.modifiedTypes.add(type);
+            final Map<URI, Boolean> map = getExistences(type);
+
+            Boolean existed = map.get(id);
+            if (existed == null) {
+                existed = super.lookup(type, ImmutableSet.of(id), ImmutableSet.of(RDF.TYPE))
+                        .getUnique() != null;
+            }
+
+            if (existed != exists) {
+                this.deltas.put(type, getDelta(type) + (exists ? 1 : -1));
+            }
+            map.put(id, exists);
+        }
+
+    }
+
+}
@@ -210,6 +210,11 @@ public class MySQLDataStore implements DataStore {
 
 		@Override
 		public long count(URI type, @Nullable XPath condition) throws IOException, IllegalArgumentException, IllegalStateException {
+			if (condition != null) {
+				// The condition can only be evaluated on retrieved records
+				return retrieve(type, condition, condition.getProperties()).count();
+			}
+
 			String tableName = getTableName(type);
 			logger.debug("Counting rows");
 			String query = countQuery.replace("$tableName", tableName);
@@ -13,10 +13,11 @@
  * <li>abstract classes {@link eu.fbk.knowledgestore.datastore.ForwardingDataStore} and
  * {@link eu.fbk.knowledgestore.datastore.ForwardingDataTransaction} for implementing the
  * decorator pattern;</li>
- * <li>three concrete decorator classes that wrap another {@code DataStore} and add it logging
+ * <li>four concrete decorator classes that wrap another {@code DataStore} and add it logging
  * capabilities ({@link eu.fbk.knowledgestore.datastore.LoggingDataStore}), synchronization (
- * {@link eu.fbk.knowledgestore.datastore.SynchronizedDataStore}) and per-transaction caching (
- * {@link eu.fbk.knowledgestore.datastore.CachingDataStore}).</li>
+ * {@link eu.fbk.knowledgestore.datastore.SynchronizedDataStore}), per-transaction caching (
+ * {@link eu.fbk.knowledgestore.datastore.CachingDataStore}) and maintenance of record counts (
+ * {@link eu.fbk.knowledgestore.datastore.CountingDataStore}).</li>
  * </ul>
  * <p>
  * Custom implementations of the {@code DataStore} component may be provided by the user to
@@ -0,0 +1,267 @@
+package eu.fbk.knowledgestore.server;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.BindingSetAssignment;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.Projection;
+import org.openrdf.query.algebra.ProjectionElem;
+import org.openrdf.query.algebra.ProjectionElemList;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.impl.MapBindingSet;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.LookAheadIteration;
+
+import eu.fbk.knowledgestore.triplestore.SelectQuery;
+import eu.fbk.knowledgestore.triplestore.TripleTransaction;
+
+/**
+ * Iteration evaluating a {@code DescribeOperator} by fetching the descriptions of multiple
+ * resources with each triple store query.
+ * <p>
+ * The iteration produces the same bindings of Sesame {@code DescribeIteration} (i.e., the
+ * symmetric concise bounded description of each described value, following blank nodes), but
+ * rather than querying the triple store for each described value, it collects the distinct
+ * values to describe in batches of configurable size and fetches their outgoing and incoming
+ * links with a single query using {@code VALUES}. Blank nodes reached by a batch are described
+ * by later batches, in the same direction they were reached. Batches are evaluated sequentially
+ * in the transaction of the request, and the results of each batch are streamed from the triple
+ * store, so that at most one describe query is open at a time and memory does not depend on
+ * the number of links of described values (only the sets of described values and blank nodes
+ * are kept). Blank nodes are skolemized when placed in queries and values returned by the triple
+ * store are deskolemized, so that blank nodes stored in skolemized form are followed too.
+ * </p>
+ */
+final class BatchDescribeIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+    private static final String SUBJECT = "subject";
+
+    private static final String PREDICATE = "predicate";
+
+    private static final String OBJECT = "object";
+
+    private final CloseableIteration<BindingSet, QueryEvaluationException> sourceIter;
+
+    private final List<String> describeNames;
+
+    private final BindingSet parentBindings;
+
+    private final TripleTransaction transaction;
+
+    @Nullable
+    private final Dataset dataset;
+
+    @Nullable
+    private final Long timeout;
+
+    private final Function<Value, Value> skolemizer;
+
+    private final Function<Value, Value> deskolemizer;
+
+    private final int batchSize;
+
+    private final Set<Value> describedValues;
+
+    private final Set<BNode> processedNodes;
+
+    private final Deque<Value> pendingSubjects;
+
+    private final Deque<Value> pendingObjects;
+
+    @Nullable
+    private Batch batch;
+
+    BatchDescribeIteration(final CloseableIteration<BindingSet, QueryEvaluationException> source,
+            final Iterable<String> describeNames, final BindingSet parentBindings,
+            final TripleTransaction transaction, final SparqlHelper.Options options,
+            @Nullable final Dataset dataset, @Nullable final Long timeout,
+            final Function<Value, Value> skolemizer, final Function<Value, Value> deskolemizer) {
+        this.sourceIter = source;
+        this.describeNames = ImmutableList.copyOf(describeNames);
+        this.parentBindings = parentBindings;
+        this.transaction = transaction;
+        this.dataset = dataset;
+        this.timeout = timeout;
+        this.skolemizer = skolemizer;
+        this.deskolemizer = deskolemizer;
+        this.batchSize = options.getDescribeBatchSize();
+        this.describedValues = Sets.newHashSet();
+        this.processedNodes = Sets.newHashSet();
+        this.pendingSubjects = new ArrayDeque<Value>();
+        this.pendingObjects = new ArrayDeque<Value>();
+        this.batch = null;
+    }
+
+    @Override
+    protected BindingSet getNextElement() throws QueryEvaluationException {
+        while (true) {
+            if (this.batch != null) {
+                final BindingSet result = this.batch.next();
+                if (result != null) {
+                    return result;
+                }
+                this.batch = null;
+            }
+            this.batch = nextBatch();
+            if (this.batch == null) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    protected void handleClose() throws QueryEvaluationException {
+        try {
+            if (this.batch != null) {
+                this.batch.close();
+                this.batch = null;
+            }
+        } finally {
+            this.sourceIter.close();
+        }
+    }
+
+    @Nullable
+    private Batch nextBatch() throws QueryEvaluationException {
+
+        // Describe pending blank nodes first, then values from the source iteration
+        final Set<Value> subjects = Sets.newLinkedHashSet();
+        final Set<Value> objects = Sets.newLinkedHashSet();
+        while (Math.max(subjects.size(), objects.size()) < this.batchSize) {
+            if (!this.pendingSubjects.isEmpty()) {
+                subjects.add(this.skolemizer.apply(this.pendingSubjects.remove()));
+            } else if (!this.pendingObjects.isEmpty()) {
+                objects.add(this.skolemizer.apply(this.pendingObjects.remove()));
+            } else if (this.sourceIter.hasNext()) {
+                final BindingSet bindings = this.sourceIter.next();
+                for (final String name : this.describeNames) {
+                    final Value value = bindings.getValue(name);
+                    if (value != null && this.describedValues.add(value)) {
+                        if (value instanceof BNode) {
+                            this.processedNodes.add((BNode) value);
+                        }
+                        if (value instanceof Resource) {
+                            subjects.add(this.skolemizer.apply(value));
+                        }
+                        objects.add(this.skolemizer.apply(value));
+                    }
+                }
+            } else {
+                break;
+            }
+        }
+        return subjects.isEmpty() && objects.isEmpty() ? null : new Batch(subjects, objects);
+    }
+
+    private final class Batch {
+
+        private final Set<Value> subjects;
+
+        private final Set<Value> objects;
+
+        private final CloseableIteration<BindingSet, QueryEvaluationException> iteration;
+
+        Batch(final Set<Value> subjects, final Set<Value> objects)
+                throws QueryEvaluationException {
+            this.subjects = subjects;
+            this.objects = objects;
+            this.iteration = query();
+        }
+
+        @Nullable
+        BindingSet next() throws QueryEvaluationException {
+
+            // Return null and release the query at the end of the batch
+            if (!this.iteration.hasNext()) {
+                this.iteration.close();
+                return null;
+            }
+
+            // Extend the parent bindings with the returned link
+            final BindingSet bindings = this.iteration.next();
+            final Function<Value, Value> deskolemizer = BatchDescribeIteration.this.deskolemizer;
+            final Value subject = deskolemizer.apply(bindings.getValue(SUBJECT));
+            final Value object = deskolemizer.apply(bindings.getValue(OBJECT));
+            final QueryBindingSet result = new QueryBindingSet(
+                    BatchDescribeIteration.this.parentBindings);
+            result.setBinding(SUBJECT, subject);
+            result.setBinding(PREDICATE, deskolemizer.apply(bindings.getValue(PREDICATE)));
+            result.setBinding(OBJECT, object);
+
+            // Schedule the description of blank nodes reached from described values
+            final Function<Value, Value> skolemizer = BatchDescribeIteration.this.skolemizer;
+            if (object instanceof BNode && this.subjects.contains(skolemizer.apply(subject))
+                    && BatchDescribeIteration.this.processedNodes.add((BNode) object)) {
+                BatchDescribeIteration.this.pendingSubjects.add(object);
+            }
+            if (subject instanceof BNode && this.objects.contains(skolemizer.apply(object))
+                    && BatchDescribeIteration.this.processedNodes.add((BNode) subject)) {
+                BatchDescribeIteration.this.pendingObjects.add(subject);
+            }
+            return result;
+        }
+
+        void close() throws QueryEvaluationException {
+            this.iteration.close();
+        }
+
+        private CloseableIteration<BindingSet, QueryEvaluationException> query()
+                throws QueryEvaluationException {
+
+            // Build a query retrieving outgoing and incoming links of batch values, using a single
+            // VALUES block with rows binding either ?subject or ?object (a UNION of two VALUES
+            // blocks would be simpler, but it is evaluated incorrectly by Sesame)
+            final List<BindingSet> rows = Lists.newArrayListWithCapacity(this.subjects.size()
+                    + this.objects.size());
+            for (final Value subject : this.subjects) {
+                final MapBindingSet row = new MapBindingSet(1);
+                row.addBinding(SUBJECT, subject);
+                rows.add(row);
+            }
+            for (final Value object : this.objects) {
+                final MapBindingSet row = new MapBindingSet(1);
+                row.addBinding(OBJECT, object);
+                rows.add(row);
+            }
+            final BindingSetAssignment values = new BindingSetAssignment();
+            values.setBindingSets(rows);
+            final TupleExpr expr = new Join(values, new StatementPattern(new Var(SUBJECT),
+                    new Var(PREDICATE), new Var(OBJECT)));
+            final SelectQuery query = SelectQuery.from(new Projection(expr,
+                    new ProjectionElemList(new ProjectionElem(SUBJECT), new ProjectionElem(
+                            PREDICATE), new ProjectionElem(OBJECT))),
+                    BatchDescribeIteration.this.dataset);
+
+            // Open the query, whose results are consumed as the iteration is consumed
+            try {
+                return BatchDescribeIteration.this.transaction.query(query, null,
+                        BatchDescribeIteration.this.timeout);
+            } catch (final IOException ex) {
+                throw new QueryEvaluationException(ex);
+            }
+        }
+
+    }
+
+}
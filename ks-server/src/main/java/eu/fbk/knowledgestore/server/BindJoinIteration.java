@@ -0,0 +1,287 @@
+package eu.fbk.knowledgestore.server;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Value;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.BindingSetAssignment;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
+import org.openrdf.query.impl.MapBindingSet;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.LookAheadIteration;
+
+/**
+ * Iteration evaluating a {@code Join} as a bind join, pushing batches of bindings of the left
+ * argument into the evaluation of the right argument.
+ * <p>
+ * Rather than evaluating the right argument once for each binding of the left argument, left
+ * bindings are collected in batches and the right argument is evaluated once for each batch,
+ * joined with a {@link BindingSetAssignment} (i.e., a SPARQL {@code VALUES} block) listing the
+ * distinct values of the variables shared by the two arguments; results are then joined locally
+ * with the bindings of the batch using a hash index. The batch size starts at
+ * {@value #MIN_BATCH_SIZE} and is doubled after each batch (up to {@value #MAX_BATCH_SIZE})
+ * as long as the right argument produces at most {@value #MAX_FANOUT} results per left binding,
+ * being halved otherwise. Left bindings assigning a blank node to a shared variable cannot be
+ * expressed in a {@code VALUES} block and are evaluated one at a time, as in a nested loop join.
+ * </p>
+ */
+final class BindJoinIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+    private static final int MIN_BATCH_SIZE = 16;
+
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    private static final int MAX_FANOUT = 16;
+
+    private final EvaluationStrategy strategy;
+
+    private final TupleExpr rightArg;
+
+    private final BindingSet bindings;
+
+    private final Set<String> candidateNames;
+
+    private final CloseableIteration<BindingSet, QueryEvaluationException> leftIter;
+
+    private final Deque<BindingSet> pendingLefts;
+
+    private int batchSize;
+
+    // State of the current batch
+
+    @Nullable
+    private CloseableIteration<BindingSet, QueryEvaluationException> rightIter;
+
+    private List<BindingSet> lefts;
+
+    private List<String> joinNames;
+
+    @Nullable
+    private Map<List<Value>, List<BindingSet>> index; // null if some left is partially bound
+
+    private boolean batched;
+
+    private int rightCount;
+
+    private Iterator<BindingSet> results;
+
+    BindJoinIteration(final EvaluationStrategy strategy, final Join join,
+            final BindingSet bindings) throws QueryEvaluationException {
+
+        // Shared variables are searched among the unbound variables of the right argument
+        final Set<String> names = Sets.newHashSet(join.getRightArg().getBindingNames());
+        names.removeAll(bindings.getBindingNames());
+        join.getRightArg().visit(new QueryModelVisitorBase<RuntimeException>() {
+
+            @Override
+            public void meet(final Var var) {
+                if (var.hasValue()) {
+                    names.remove(var.getName());
+                }
+            }
+
+        });
+
+        this.strategy = strategy;
+        this.rightArg = join.getRightArg();
+        this.bindings = bindings;
+        this.candidateNames = names;
+        this.leftIter = strategy.evaluate(join.getLeftArg(), bindings);
+        this.pendingLefts = new ArrayDeque<BindingSet>();
+        this.batchSize = MIN_BATCH_SIZE;
+        this.results = Collections.emptyIterator();
+    }
+
+    @Override
+    protected BindingSet getNextElement() throws QueryEvaluationException {
+        while (true) {
+            if (this.results.hasNext()) {
+                return this.results.next();
+            } else if (this.rightIter != null && this.rightIter.hasNext()) {
+                ++this.rightCount;
+                this.results = join(this.rightIter.next());
+            } else if (!nextBatch()) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    protected void handleClose() throws QueryEvaluationException {
+        try {
+            closeRight();
+        } finally {
+            this.leftIter.close();
+        }
+    }
+
+    private boolean nextBatch() throws QueryEvaluationException {
+
+        // Adapt the batch size based on the fan-out of the completed batch
+        closeRight();
+        if (this.batched) {
+            final int size = this.lefts.size();
+            if (this.rightCount <= size * MAX_FANOUT) {
+                this.batchSize = Math.min(this.batchSize * 2, MAX_BATCH_SIZE);
+            } else {
+                this.batchSize = Math.max(this.batchSize / 2, MIN_BATCH_SIZE);
+            }
+        }
+
+        // Collect the left bindings of the batch; those binding a shared variable to a BNode are
+        // left pending and evaluated one at a time
+        final List<BindingSet> lefts = Lists.newArrayList();
+        final Set<String> names = Sets.newHashSet();
+        for (int i = 0; i < this.batchSize && this.leftIter.hasNext(); ++i) {
+            final BindingSet left = this.leftIter.next();
+            boolean bnode = false;
+            for (final String name : this.candidateNames) {
+                bnode |= left.getValue(name) instanceof BNode;
+            }
+            if (bnode) {
+                this.pendingLefts.add(left);
+            } else {
+                lefts.add(left);
+                names.addAll(left.getBindingNames());
+            }
+        }
+        this.rightCount = 0;
+
+        if (!lefts.isEmpty()) {
+            // Index left bindings by the values of shared variables, unless some are unbound
+            names.retainAll(this.candidateNames);
+            this.joinNames = ImmutableList.copyOf(names);
+            this.index = Maps.newHashMap();
+            final Set<List<Value>> rows = Sets.newLinkedHashSet();
+            for (final BindingSet left : lefts) {
+                final List<Value> key = key(left);
+                rows.add(key);
+                if (key.contains(null)) {
+                    this.index = null;
+                } else if (this.index != null) {
+                    List<BindingSet> list = this.index.get(key);
+                    if (list == null) {
+                        list = Lists.newArrayListWithCapacity(1);
+                        this.index.put(key, list);
+                    }
+                    list.add(left);
+                }
+            }
+
+            // Evaluate the right argument joined with the VALUES of the shared variables
+            TupleExpr expr = this.rightArg.clone();
+            if (!this.joinNames.isEmpty()) {
+                final List<BindingSet> bindingSets = Lists.newArrayListWithCapacity(rows.size());
+                for (final List<Value> row : rows) {
+                    final MapBindingSet bindingSet = new MapBindingSet(row.size());
+                    for (int i = 0; i < row.size(); ++i) {
+                        if (row.get(i) != null) {
+                            bindingSet.addBinding(this.joinNames.get(i), row.get(i));
+                        }
+                    }
+                    bindingSets.add(bindingSet);
+                }
+                final BindingSetAssignment values = new BindingSetAssignment();
+                values.setBindingSets(bindingSets);
+                expr = new Join(values, expr);
+            }
+            this.lefts = lefts;
+            this.batched = true;
+            this.rightIter = this.strategy.evaluate(expr, this.bindings);
+            return true;
+
+        } else if (!this.pendingLefts.isEmpty()) {
+            // Evaluate the right argument with the bindings of a single left binding set
+            final BindingSet left = this.pendingLefts.remove();
+            final QueryBindingSet actualBindings = new QueryBindingSet(this.bindings);
+            actualBindings.addAll(left);
+            names.addAll(left.getBindingNames());
+            names.retainAll(this.candidateNames);
+            this.joinNames = ImmutableList.copyOf(names);
+            this.lefts = ImmutableList.of(left);
+            this.index = null;
+            this.batched = false;
+            this.rightIter = this.strategy.evaluate(this.rightArg, actualBindings);
+            return true;
+        }
+
+        return false;
+    }
+
+    private Iterator<BindingSet> join(final BindingSet right) {
+
+        // Select candidate left bindings, using the index if possible
+        final List<Value> key = key(right);
+        Iterable<BindingSet> candidates = this.lefts;
+        if (this.index != null && !key.contains(null)) {
+            final List<BindingSet> list = this.index.get(key);
+            candidates = list != null ? list : ImmutableList.<BindingSet>of();
+        }
+
+        // Merge the right binding set with each compatible left binding set
+        final List<BindingSet> results = Lists.newArrayListWithCapacity(1);
+        for (final BindingSet left : candidates) {
+            if (compatible(left, right)) {
+                final QueryBindingSet result = new QueryBindingSet(left);
+                for (final Binding binding : right) {
+                    if (!result.hasBinding(binding.getName())) {
+                        result.addBinding(binding);
+                    }
+                }
+                results.add(result);
+            }
+        }
+        return results.iterator();
+    }
+
+    private boolean compatible(final BindingSet left, final BindingSet right) {
+        for (final String name : this.joinNames) {
+            final Value leftValue = left.getValue(name);
+            final Value rightValue = right.getValue(name);
+            if (leftValue != null && rightValue != null && !leftValue.equals(rightValue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<Value> key(final BindingSet bindings) {
+        final Value[] values = new Value[this.joinNames.size()];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = bindings.getValue(this.joinNames.get(i));
+        }
+        return Arrays.asList(values);
+    }
+
+    private void closeRight() throws QueryEvaluationException {
+        if (this.rightIter != null) {
+            final CloseableIteration<BindingSet, QueryEvaluationException> iter = this.rightIter;
+            this.rightIter = null;
+            iter.close();
+        }
+    }
+
+}
@@ -0,0 +1,225 @@
+package eu.fbk.knowledgestore.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.Striped;
+
+import org.openrdf.model.URI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.fbk.knowledgestore.data.Data;
+import eu.fbk.knowledgestore.data.Record;
+import eu.fbk.knowledgestore.data.XPath;
+import eu.fbk.knowledgestore.datastore.DataStore;
+import eu.fbk.knowledgestore.datastore.DataTransaction;
+import eu.fbk.knowledgestore.filestore.FileExistsException;
+import eu.fbk.knowledgestore.filestore.FileMissingException;
+import eu.fbk.knowledgestore.filestore.FileStore;
+import eu.fbk.knowledgestore.internal.Util;
+import eu.fbk.knowledgestore.vocabulary.KS;
+import eu.fbk.knowledgestore.vocabulary.NFO;
+
+/**
+ * Content-addressed index of the files stored by uploads, used to deduplicate them.
+ * <p>
+ * Each file in the {@code FileStore} written by an upload is treated as an immutable blob that
+ * may be shared by the representations of multiple resources having the same content. Blobs are
+ * identified by the SHA-256 hash and the size of their content, both computed by the server on
+ * the uploaded bytes (hashes supplied by clients are never used to locate a blob, as this would
+ * allow a client to reference content it never uploaded). The file of a blob is named after its
+ * hash, size and extension (the latter kept as {@code FileStore} decorators such as
+ * {@code GzippedFileStore} depend on it), so that the {@code FileStore} itself is the persistent
+ * index of blobs, shared by all the servers using it: a blob is stored if and only if its file
+ * exists, and an upload writes a file only if no blob with the same content exists. The blob
+ * referenced by a resource is described by a {@link #BLOB} record nested in the
+ * {@link KS#STORED_AS} file metadata, which keeps the file name in the {@code FileStore}, the hash
+ * and the size of the blob, while the {@link NFO#FILE_NAME} of the metadata remains specific to
+ * the resource.
+ * </p>
+ * <p>
+ * References to a blob are the resources whose {@code ks:storedAs/ks:blob/nfo:fileName} is the
+ * name of its file. They are counted in the {@code DataStore} after a transaction dropping a
+ * reference commits, and the file is deleted when no reference is left (files stored before
+ * deduplication, having no {@code ks:blob} record, are never shared and are always deleted).
+ * Counting requires evaluating a condition on resources, which most {@code DataStore}s do with a
+ * scan, and is thus done only when a representation is replaced or deleted. As an upload
+ * referencing an existing blob may commit after the count and before the deletion, the upload
+ * checks after committing that the blob still exists and writes it again otherwise; the check
+ * and the count / deletion are serialized for the same blob by a lock, so that no reference is
+ * lost within a server, while a (narrow) window remains between servers sharing a
+ * {@code FileStore}.
+ * </p>
+ */
+final class BlobIndex {
+
+    /** Property of file metadata linking the {@link Record} describing the referenced blob. */
+    static final URI BLOB = Data.getValueFactory().createURI(KS.NAMESPACE, "blob");
+
+    /** Hash algorithm used to identify blobs, as stored in {@link NFO#HASH_ALGORITHM}. */
+    static final String HASH_ALGORITHM = "SHA-256";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlobIndex.class);
+
+    private static final int NUM_LOCKS = 64;
+
+    private final FileStore fileStore;
+
+    private final DataStore dataStore;
+
+    private final Striped<Lock> locks;
+
+    BlobIndex(final FileStore fileStore, final DataStore dataStore) {
+        this.fileStore = Preconditions.checkNotNull(fileStore);
+        this.dataStore = Preconditions.checkNotNull(dataStore);
+        this.locks = Striped.lock(NUM_LOCKS);
+    }
+
+    /**
+     * Returns the record describing the blob with the hash and size specified, whose file has
+     * the extension specified.
+     */
+    static Record getBlob(final String hash, final long size, final String extension) {
+        final String fileName = hash.toLowerCase() + "." + Long.toString(size, 32) + "."
+                + extension;
+        final Record blob = Record.create();
+        blob.set(NFO.FILE_NAME, fileName);
+        blob.set(NFO.HASH_ALGORITHM, HASH_ALGORITHM);
+        blob.set(NFO.HASH_VALUE, hash.toLowerCase());
+        blob.set(NFO.FILE_SIZE, size);
+        return blob;
+    }
+
+    /**
+     * Returns the name of the file storing the content described by the metadata specified,
+     * which is the file of the referenced blob, if any, or the file named in the metadata.
+     */
+    @Nullable
+    static String getFileName(final Record metadata) {
+        final Record blob = metadata.getUnique(BLOB, Record.class, null);
+        if (blob != null) {
+            return blob.getUnique(NFO.FILE_NAME, String.class, null);
+        }
+        return metadata.getUnique(NFO.FILE_NAME, String.class, null);
+    }
+
+    /**
+     * Writes the file of the blob specified with the content supplied, unless the blob is already
+     * stored, returning whether the file has been written. A partially written file is deleted.
+     */
+    boolean write(final Record blob, final ByteSource content) throws IOException {
+        final String fileName = blob.getUnique(NFO.FILE_NAME, String.class);
+        final OutputStream stream;
+        try {
+            stream = this.fileStore.write(fileName);
+        } catch (final FileExistsException ex) {
+            return false; // content already stored
+        }
+        try {
+            content.copyTo(stream);
+            stream.close();
+            return true;
+        } catch (final Throwable ex) {
+            Util.closeQuietly(stream);
+            delete(fileName);
+            Throwables.propagateIfPossible(ex, IOException.class);
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    /**
+     * Ensures the file of a blob referenced by a just committed transaction still exists, writing
+     * it again with the content supplied if it has been deleted in the meanwhile.
+     */
+    void restore(final Record blob, final ByteSource content) throws IOException {
+        final String fileName = blob.getUnique(NFO.FILE_NAME, String.class);
+        final Lock lock = this.locks.get(fileName);
+        lock.lock();
+        try {
+            try {
+                this.fileStore.read(fileName).close();
+            } catch (final FileMissingException ex) {
+                LOGGER.warn("Blob {} deleted while referenced, storing it again", fileName);
+                final OutputStream stream = this.fileStore.write(fileName);
+                try {
+                    content.copyTo(stream);
+                } finally {
+                    stream.close();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the file of a blob that has been only partially written, as no reference to it is
+     * valid; uploads referencing it will find it missing and write it again.
+     */
+    private void delete(final String fileName) {
+        final Lock lock = this.locks.get(fileName);
+        lock.lock();
+        try {
+            this.fileStore.delete(fileName);
+        } catch (final Throwable ex) {
+            LOGGER.error("Failed to delete partially written file " + fileName, ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the reference to the file described by the metadata specified, which was dropped
+     * by a committed transaction, deleting the file if no longer referenced. Nothing is done if
+     * the file is the one of the blob specified as {@code keptBlob}.
+     */
+    void release(final Record metadata, @Nullable final Record keptBlob) {
+        final String fileName = getFileName(metadata);
+        if (fileName != null && (keptBlob == null
+                || !fileName.equals(keptBlob.getUnique(NFO.FILE_NAME, String.class, null)))) {
+            release(fileName, metadata.getUnique(BLOB, Record.class, null) != null);
+        }
+    }
+
+    /**
+     * Releases the blob specified, written by a transaction that did not commit, deleting its
+     * file if not referenced.
+     */
+    void discard(final Record blob) {
+        release(blob.getUnique(NFO.FILE_NAME, String.class), true);
+    }
+
+    private void release(final String fileName, final boolean shared) {
+        final Lock lock = this.locks.get(fileName);
+        lock.lock();
+        try {
+            if (!shared || countReferences(fileName) == 0) {
+                this.fileStore.delete(fileName);
+            }
+        } catch (final FileMissingException ex) {
+            // ignore
+        } catch (final Throwable ex) {
+            LOGGER.error("Failed to release file " + fileName, ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long countReferences(final String fileName) throws IOException {
+        final XPath condition = XPath.parse("ks:storedAs/ks:blob/nfo:fileName = $$", fileName);
+        final DataTransaction transaction = this.dataStore.begin(true);
+        try {
+            return transaction.count(KS.RESOURCE, condition);
+        } finally {
+            transaction.end(true); // commit or rollback irrelevant
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package eu.fbk.knowledgestore.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.common.base.Charsets;
+
+/**
+ * An {@code InputStream} that escapes HTML special characters in the UTF-8 text read from a
+ * wrapped stream.
+ * <p>
+ * Characters {@code & < > " '} are replaced with the same entities used by Guava
+ * {@code HtmlEscapers.htmlEscaper()}. Escaping is done at the byte level, which is correct for
+ * UTF-8 (and any ASCII-compatible charset) as the bytes of multi-byte sequences never coincide
+ * with ASCII characters; as a consequence, the stream works chunk by chunk with constant memory
+ * and does not need to decode the text, leaving malformed input as is.
+ * </p>
+ */
+final class HtmlEscapingInputStream extends FilterInputStream {
+
+    private static final byte[][] ENTITIES = new byte[128][];
+
+    static {
+        ENTITIES['&'] = "&amp;".getBytes(Charsets.US_ASCII);
+        ENTITIES['<'] = "&lt;".getBytes(Charsets.US_ASCII);
+        ENTITIES['>'] = "&gt;".getBytes(Charsets.US_ASCII);
+        ENTITIES['"'] = "&quot;".getBytes(Charsets.US_ASCII);
+        ENTITIES['\''] = "&#39;".getBytes(Charsets.US_ASCII);
+    }
+
+    private final byte[] buffer;
+
+    private int offset; // start of pending (already escaped) bytes in buffer
+
+    private int length; // end of pending bytes in buffer
+
+    private byte[] entity; // entity being emitted, if any
+
+    private int entityOffset; // next byte of entity to emit
+
+    HtmlEscapingInputStream(final InputStream stream) {
+        super(stream);
+        this.buffer = new byte[8192];
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        final int n = read(b, 0, 1);
+        return n <= 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] buf, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int count = 0;
+        while (count < len) {
+            // Emit pending entity bytes first
+            if (this.entity != null) {
+                final int n = Math.min(len - count, this.entity.length - this.entityOffset);
+                System.arraycopy(this.entity, this.entityOffset, buf, off + count, n);
+                count += n;
+                this.entityOffset += n;
+                if (this.entityOffset == this.entity.length) {
+                    this.entity = null;
+                }
+                continue;
+            }
+
+            // Refill the buffer if empty, blocking only if nothing was returned yet
+            if (this.offset == this.length) {
+                if (count > 0 && super.available() <= 0) {
+                    break;
+                }
+                final int n = super.read(this.buffer, 0, this.buffer.length);
+                if (n < 0) {
+                    return count == 0 ? -1 : count;
+                }
+                this.offset = 0;
+                this.length = n;
+            }
+
+            // Copy the longest run of bytes not requiring escaping, then start an entity
+            final int start = this.offset;
+            final int end = Math.min(this.length, start + len - count);
+            int index = start;
+            while (index < end) {
+                final byte b = this.buffer[index];
+                if (b >= 0 && ENTITIES[b] != null) {
+                    break;
+                }
+                ++index;
+            }
+            System.arraycopy(this.buffer, start, buf, off + count, index - start);
+            count += index - start;
+            this.offset = index;
+            if (index < end) {
+                this.entity = ENTITIES[this.buffer[index]];
+                this.entityOffset = 0;
+                ++this.offset;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        final byte[] buf = new byte[(int) Math.min(n, this.buffer.length)];
+        long skipped = 0;
+        while (skipped < n) {
+            final int r = read(buf, 0, (int) Math.min(n - skipped, buf.length));
+            if (r < 0) {
+                break;
+            }
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return this.length - this.offset + (this.entity == null ? 0 : this.entity.length
+                - this.entityOffset);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(final int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("Mark not supported");
+    }
+
+}
@@ -0,0 +1,487 @@
+package eu.fbk.knowledgestore.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import org.openrdf.model.URI;
+
+import eu.fbk.knowledgestore.data.Record;
+import eu.fbk.knowledgestore.data.Stream;
+import eu.fbk.knowledgestore.data.XPath;
+import eu.fbk.knowledgestore.datastore.DataTransaction;
+import eu.fbk.knowledgestore.vocabulary.KS;
+
+/**
+ * Evaluates {@code match} requests as a streaming join over the records of a
+ * {@code DataTransaction}.
+ * <p>
+ * The join is centered on mentions: each combination {@code <resource, mention, entity>} is
+ * obtained from a mention, the resource it is a mention of ({@link KS#MENTION_OF}) and, if the
+ * entity component is involved in the request, the entities it refers to ({@link KS#REFERS_TO}).
+ * Mentions are produced by a <i>driver</i> selected based on the most selective restriction
+ * available (mention IDs, resource IDs, entity IDs, resource condition, mention condition, in this
+ * order) and are processed in chunks. For each chunk, the related resources and entities are
+ * fetched with a single batched {@link DataTransaction#lookup(URI, Set, Set) lookup} per type,
+ * reusing records already fetched for previous chunks. Components whose IDs are supplied in the
+ * request are fetched once upfront and kept in memory, so that they are joined through a hash
+ * lookup without further accesses to the data store. Only the properties needed for evaluating
+ * conditions, performing the join and computing the requested projection are fetched.
+ * </p>
+ * <p>
+ * Each returned combination is a record without ID, whose properties {@link KS#MATCHED_RESOURCE},
+ * {@link KS#MATCHED_MENTION}, {@link KS#MATCHED_ENTITY} link to the projected component records
+ * requested by the caller. Related records that are not stored in the data store (typically
+ * entities) are represented by a record with only their ID, unless a condition has to be checked
+ * on them. Duplicate combinations, which may arise if mentions are not returned, are removed by
+ * keeping a 128 bit hash of the IDs of each returned combination; to bound memory usage, the
+ * evaluation fails if more than {@value #MAX_DISTINCT_COMBINATIONS} distinct combinations have
+ * to be tracked (the request has then to be restricted, or mentions have to be returned). The
+ * evaluation also fails if the optional timeout expires, which is checked before each chunk.
+ * </p>
+ */
+final class MatchHelper {
+
+    private static final Record NULL = Record.create();
+
+    private static final int CACHE_SIZE_FACTOR = 4;
+
+    private static final int MAX_DISTINCT_COMBINATIONS = 1000000;
+
+    static Stream<Record> match(final DataTransaction transaction,
+            final Map<URI, XPath> conditions, final Map<URI, Set<URI>> ids,
+            final Map<URI, Set<URI>> properties, final int chunkSize,
+            @Nullable final Long timeout) throws IOException {
+
+        Preconditions.checkNotNull(transaction);
+        Preconditions.checkArgument(chunkSize > 0);
+
+        final long deadline = timeout == null ? Long.MAX_VALUE : System.currentTimeMillis()
+                + timeout;
+
+        // Analyze the request, extracting the parameters of each component
+        final Side resources = new Side(KS.RESOURCE, conditions, ids, properties, chunkSize);
+        final Side mentions = new Side(KS.MENTION, conditions, ids, properties, chunkSize);
+        final Side entities = new Side(KS.ENTITY, conditions, ids, properties, chunkSize);
+
+        // Mentions are always needed with their links to resources and entities
+        mentions.require(KS.MENTION_OF);
+        if (entities.involved) {
+            mentions.require(KS.REFERS_TO);
+        }
+
+        // Build the hash tables for the resource and entity components whose IDs are known,
+        // aborting if no record is selected (the result would be empty)
+        final Set<URI> mentionIDs = Sets.newHashSet();
+        if (resources.ids != null) {
+            if (mentions.ids == null) {
+                resources.require(KS.HAS_MENTION);
+            }
+            resources.build(transaction, mentions.ids == null ? mentionIDs : null);
+            if (resources.table.size() == 0) {
+                return Stream.create();
+            }
+        }
+        if (entities.ids != null) {
+            entities.build(transaction, null);
+            if (entities.table.size() == 0) {
+                return Stream.create();
+            }
+        }
+
+        // Select the driver producing chunks of mentions to join
+        final Iterator<List<Record>> chunks;
+        final Closeable closeable;
+        if (mentions.ids != null) {
+            final Stream<List<Record>> stream = mentions.filter(
+                    transaction.lookup(KS.MENTION, mentions.ids, mentions.fetched)).chunk(
+                    chunkSize);
+            chunks = stream.iterator();
+            closeable = stream;
+
+        } else if (resources.ids != null) {
+            final Stream<List<Record>> stream = mentions.filter(
+                    transaction.lookup(KS.MENTION, mentionIDs, mentions.fetched)).chunk(chunkSize);
+            chunks = stream.iterator();
+            closeable = stream;
+
+        } else if (entities.ids != null) {
+            final XPath refersTo = XPath.parse("ks:refersTo = $$",
+                    (Object) entities.ids.toArray());
+            final XPath condition = mentions.condition == null ? refersTo : XPath.compose("and",
+                    mentions.condition, refersTo);
+            final Stream<List<Record>> stream = transaction.retrieve(KS.MENTION, condition,
+                    mentions.fetched).chunk(chunkSize);
+            chunks = stream.iterator();
+            closeable = stream;
+
+        } else if (resources.condition != null) {
+            resources.require(KS.HAS_MENTION);
+            final ResourceDrivenIterator iterator = new ResourceDrivenIterator(transaction,
+                    resources, mentions, chunkSize);
+            chunks = iterator;
+            closeable = iterator;
+
+        } else {
+            final Stream<List<Record>> stream = transaction.retrieve(KS.MENTION,
+                    mentions.condition, mentions.fetched).chunk(chunkSize);
+            chunks = stream.iterator();
+            closeable = stream;
+        }
+
+        // Join the mentions of each chunk with related resources and entities, returning the
+        // resulting combinations
+        final Iterator<Record> iterator = new AbstractIterator<Record>() {
+
+            private final Set<HashCode> emitted = mentions.projected ? null : Sets
+                    .<HashCode>newHashSet();
+
+            private Iterator<Record> combinations = Collections.emptyIterator();
+
+            @Override
+            protected Record computeNext() {
+                try {
+                    while (!this.combinations.hasNext()) {
+                        if (!chunks.hasNext()) {
+                            return endOfData();
+                        }
+                        if (System.currentTimeMillis() > deadline) {
+                            throw new IllegalStateException("Match timeout of " + timeout
+                                    + " ms expired");
+                        }
+                        this.combinations = join(transaction, chunks.next(), resources,
+                                mentions, entities, this.emitted).iterator();
+                    }
+                    return this.combinations.next();
+                } catch (final IOException ex) {
+                    throw Throwables.propagate(ex);
+                }
+            }
+
+        };
+        return Stream.create(iterator).onClose(closeable);
+    }
+
+    private static List<Record> join(final DataTransaction transaction,
+            final List<Record> chunk, final Side resources, final Side mentions,
+            final Side entities, @Nullable final Set<HashCode> emitted) throws IOException {
+
+        // Collect the IDs of the related records whose data is needed to perform the join
+        final Set<URI> resourceIDs = Sets.newHashSet();
+        final Set<URI> entityIDs = Sets.newHashSet();
+        for (final Record mention : chunk) {
+            if (resources.involved) {
+                final URI resourceID = mention.getUnique(KS.MENTION_OF, URI.class, null);
+                if (resourceID != null) {
+                    resourceIDs.add(resourceID);
+                }
+            }
+            if (entities.involved) {
+                entityIDs.addAll(mention.get(KS.REFERS_TO, URI.class));
+            }
+        }
+
+        // Resolve the related records with (at most) a batched lookup per type
+        final Map<URI, Record> resourceMap = resources.resolve(transaction, resourceIDs);
+        final Map<URI, Record> entityMap = entities.resolve(transaction, entityIDs);
+
+        // Emit the combinations for each mention in the chunk, removing duplicates if needed
+        final List<Record> result = Lists.newArrayList();
+        for (final Record mention : chunk) {
+            final URI resourceID = mention.getUnique(KS.MENTION_OF, URI.class, null);
+            final Record resource = resources.involved ? resourceMap.get(resourceID) : null;
+            if (resourceID == null || resources.involved && resource == null) {
+                continue;
+            }
+            final Record projectedMention = mentions.project(mention);
+            final List<URI> entityIDList = entities.involved ? mention.get(KS.REFERS_TO,
+                    URI.class) : Collections.<URI>singletonList(null);
+            for (final URI entityID : entityIDList) {
+                final Record entity = entityID == null ? null : entityMap.get(entityID);
+                if (entities.involved && entity == null) {
+                    continue;
+                }
+                if (emitted != null) {
+                    final Hasher hasher = Hashing.murmur3_128().newHasher();
+                    if (resources.projected) {
+                        hasher.putUnencodedChars(resourceID.stringValue());
+                    }
+                    hasher.putByte((byte) 0);
+                    if (entities.projected) {
+                        hasher.putUnencodedChars(entityID.stringValue());
+                    }
+                    if (!emitted.add(hasher.hash())) {
+                        continue;
+                    }
+                    if (emitted.size() > MAX_DISTINCT_COMBINATIONS) {
+                        throw new IllegalStateException("More than "
+                                + MAX_DISTINCT_COMBINATIONS + " distinct combinations matched: "
+                                + "restrict the request or include mentions in the result");
+                    }
+                }
+                final Record combination = Record.create();
+                if (resources.projected) {
+                    combination.set(KS.MATCHED_RESOURCE, resource);
+                }
+                if (mentions.projected) {
+                    combination.set(KS.MATCHED_MENTION, projectedMention);
+                }
+                if (entities.projected) {
+                    combination.set(KS.MATCHED_ENTITY, entity);
+                }
+                result.add(combination);
+            }
+        }
+        return result;
+    }
+
+    private static final class Side {
+
+        final URI type;
+
+        @Nullable
+        final XPath condition;
+
+        @Nullable
+        final Set<URI> ids;
+
+        final boolean projected;
+
+        final boolean involved;
+
+        @Nullable
+        final URI[] projection;
+
+        @Nullable
+        final Set<URI> fetched;
+
+        Cache<URI, Record> table;
+
+        boolean complete;
+
+        Side(final URI type, final Map<URI, XPath> conditions, final Map<URI, Set<URI>> ids,
+                final Map<URI, Set<URI>> properties, final int chunkSize) {
+
+            final Set<URI> projection = properties.get(type);
+            final boolean all = projection == null || projection.isEmpty();
+
+            this.type = type;
+            this.condition = conditions.get(type);
+            this.ids = ids.get(type);
+            this.projected = properties.containsKey(type);
+            this.involved = this.projected || this.condition != null || this.ids != null;
+            this.projection = all ? null : projection.toArray(new URI[projection.size()]);
+            this.table = CacheBuilder.newBuilder().maximumSize(chunkSize * CACHE_SIZE_FACTOR)
+                    .build();
+            this.complete = false;
+
+            if (this.projected && all) {
+                this.fetched = null;
+            } else {
+                this.fetched = Sets.newHashSet();
+                if (this.projected) {
+                    this.fetched.addAll(projection);
+                }
+                if (this.condition != null) {
+                    this.fetched.addAll(this.condition.getProperties());
+                }
+            }
+        }
+
+        void require(final URI property) {
+            if (this.fetched != null) {
+                this.fetched.add(property);
+            }
+        }
+
+        Stream<Record> filter(final Stream<Record> stream) {
+            return this.condition == null ? stream : stream.filter(this.condition.asPredicate(),
+                    0);
+        }
+
+        Record project(final Record record) {
+            if (!this.projected) {
+                return record;
+            }
+            final Record result = Record.create(record, true);
+            if (this.projection != null) {
+                result.retain(this.projection);
+            }
+            return result;
+        }
+
+        void build(final DataTransaction transaction, @Nullable final Set<URI> mentionIDs)
+                throws IOException {
+
+            assert this.ids != null;
+
+            final Map<URI, Record> map = Maps.newHashMap();
+            for (final Record record : filter(transaction.lookup(this.type, this.ids,
+                    this.fetched))) {
+                if (mentionIDs != null) {
+                    mentionIDs.addAll(record.get(KS.HAS_MENTION, URI.class));
+                }
+                map.put(record.getID(), project(record));
+            }
+            if (this.condition == null) {
+                for (final URI id : this.ids) {
+                    if (!map.containsKey(id)) {
+                        map.put(id, Record.create(id, this.type));
+                    }
+                }
+            }
+
+            this.table = CacheBuilder.newBuilder().build();
+            this.table.putAll(map);
+            this.complete = true;
+        }
+
+        void register(final Record record) {
+            if (this.condition == null || this.condition.evalBoolean(record)) {
+                this.table.put(record.getID(), project(record));
+            } else {
+                this.table.put(record.getID(), NULL);
+            }
+        }
+
+        Map<URI, Record> resolve(final DataTransaction transaction, final Set<URI> ids)
+                throws IOException {
+
+            if (ids.isEmpty()) {
+                return Collections.emptyMap();
+            }
+
+            final Map<URI, Record> result = Maps.newHashMap();
+            final Set<URI> missingIDs = Sets.newHashSet();
+            for (final URI id : ids) {
+                final Record record = this.table.getIfPresent(id);
+                if (record == null) {
+                    if (!this.complete) {
+                        missingIDs.add(id);
+                    }
+                } else if (record != NULL) {
+                    result.put(id, record);
+                }
+            }
+
+            if (!missingIDs.isEmpty()) {
+                for (final Record record : transaction.lookup(this.type,
+                        ImmutableSet.copyOf(missingIDs), this.fetched)) {
+                    register(record);
+                    missingIDs.remove(record.getID());
+                    final Record registered = this.table.getIfPresent(record.getID());
+                    if (registered != null && registered != NULL) {
+                        result.put(record.getID(), registered);
+                    }
+                }
+                for (final URI id : missingIDs) {
+                    if (this.condition == null) {
+                        final Record stub = Record.create(id, this.type);
+                        this.table.put(id, stub);
+                        result.put(id, stub);
+                    } else {
+                        this.table.put(id, NULL);
+                    }
+                }
+            }
+
+            return result;
+        }
+
+    }
+
+    private static final class ResourceDrivenIterator extends AbstractIterator<List<Record>>
+            implements Closeable {
+
+        private final DataTransaction transaction;
+
+        private final Side resources;
+
+        private final Side mentions;
+
+        private final int chunkSize;
+
+        private final Stream<List<Record>> resourceStream;
+
+        private final Iterator<List<Record>> resourceIterator;
+
+        @Nullable
+        private Stream<List<Record>> mentionStream;
+
+        private Iterator<List<Record>> mentionIterator;
+
+        ResourceDrivenIterator(final DataTransaction transaction, final Side resources,
+                final Side mentions, final int chunkSize) throws IOException {
+            this.transaction = transaction;
+            this.resources = resources;
+            this.mentions = mentions;
+            this.chunkSize = chunkSize;
+            this.resourceStream = transaction.retrieve(KS.RESOURCE, resources.condition,
+                    resources.fetched).chunk(chunkSize);
+            this.resourceIterator = this.resourceStream.iterator();
+            this.mentionStream = null;
+            this.mentionIterator = Collections.emptyIterator();
+        }
+
+        @Override
+        protected List<Record> computeNext() {
+            try {
+                while (!this.mentionIterator.hasNext()) {
+                    if (this.mentionStream != null) {
+                        this.mentionStream.close();
+                        this.mentionStream = null;
+                    }
+                    if (!this.resourceIterator.hasNext()) {
+                        return endOfData();
+                    }
+                    final Set<URI> mentionIDs = Sets.newHashSet();
+                    for (final Record resource : this.resourceIterator.next()) {
+                        mentionIDs.addAll(resource.get(KS.HAS_MENTION, URI.class));
+                        this.resources.register(resource);
+                    }
+                    if (!mentionIDs.isEmpty()) {
+                        this.mentionStream = this.mentions.filter(
+                                this.transaction.lookup(KS.MENTION, mentionIDs,
+                                        this.mentions.fetched)).chunk(this.chunkSize);
+                        this.mentionIterator = this.mentionStream.iterator();
+                    }
+                }
+                return this.mentionIterator.next();
+            } catch (final IOException ex) {
+                throw Throwables.propagate(ex);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (this.mentionStream != null) {
+                    this.mentionStream.close();
+                }
+            } finally {
+                this.resourceStream.close();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,388 @@
+package eu.fbk.knowledgestore.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import org.openrdf.model.URI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.fbk.knowledgestore.data.Record;
+import eu.fbk.knowledgestore.vocabulary.NFO;
+
+/**
+ * Two-tier cache of file contents, used to serve downloads without accessing the
+ * {@code FileStore}.
+ * <p>
+ * Files are cached with the (raw) content read from the {@code FileStore}, using as key the ID of
+ * the file metadata record and the MD5 hash of the content stored in that record. As the key
+ * identifies the content, a cached entry is never stale and invalidation is only needed to free
+ * space when a file is replaced or deleted. Small files (up to 1/256 of the memory budget) are
+ * kept in a heap tier, while larger files (up to 1/16 of the disk budget) are kept as local files
+ * in a disk tier; both tiers are bounded by size in bytes, evicting least recently used entries.
+ * </p>
+ * <p>
+ * The cache is populated while a file is downloaded, by copying read bytes to a buffer which is
+ * added to the cache only if the download completes and the content matches the size and hash in
+ * the metadata; partially read downloads leave the cache unchanged. Some statistics about cache
+ * hits and misses are logged at close time.
+ * </p>
+ */
+final class RepresentationCache implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RepresentationCache.class);
+
+    private final Cache<Key, byte[]> memoryCache;
+
+    private final Cache<Key, File> diskCache;
+
+    private final long memoryMaxFileSize;
+
+    private final long diskMaxFileSize;
+
+    private final File directory;
+
+    private final boolean deleteDirectory;
+
+    private final AtomicLong fileCounter;
+
+    // Counters for statistics
+
+    private final AtomicLong hitCount;
+
+    private final AtomicLong missCount;
+
+    private final AtomicLong invalidationCount;
+
+    RepresentationCache(final long memorySize, final long diskSize,
+            @Nullable final String path) {
+
+        Preconditions.checkArgument(memorySize >= 0);
+        Preconditions.checkArgument(diskSize >= 0);
+
+        this.memoryMaxFileSize = memorySize / 256;
+        this.diskMaxFileSize = Math.min(diskSize / 16, Integer.MAX_VALUE);
+        this.fileCounter = new AtomicLong(0);
+        this.hitCount = new AtomicLong(0);
+        this.missCount = new AtomicLong(0);
+        this.invalidationCount = new AtomicLong(0);
+
+        this.memoryCache = CacheBuilder.newBuilder().maximumWeight(memorySize)
+                .weigher(new Weigher<Key, byte[]>() {
+
+                    @Override
+                    public int weigh(final Key key, final byte[] value) {
+                        return value.length;
+                    }
+
+                }).build();
+
+        this.diskCache = CacheBuilder.newBuilder().maximumWeight(diskSize)
+                .weigher(new Weigher<Key, File>() {
+
+                    @Override
+                    public int weigh(final Key key, final File value) {
+                        return (int) value.length();
+                    }
+
+                }).removalListener(new RemovalListener<Key, File>() {
+
+                    @Override
+                    public void onRemoval(final RemovalNotification<Key, File> notification) {
+                        deleteQuietly(notification.getValue());
+                    }
+
+                }).build();
+
+        if (diskSize == 0) {
+            this.directory = null;
+            this.deleteDirectory = false;
+        } else if (path != null) {
+            this.directory = new File(path);
+            this.deleteDirectory = !this.directory.exists();
+        } else {
+            this.directory = new File(System.getProperty("java.io.tmpdir"), "ks-cache-"
+                    + Long.toString(System.nanoTime(), 32));
+            this.deleteDirectory = true;
+        }
+        if (this.directory != null && !this.directory.isDirectory()
+                && !this.directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create cache directory " + this.directory);
+        }
+
+        LOGGER.info("{} configured, {} bytes in memory, {} bytes on disk{}", this.getClass()
+                .getSimpleName(), memorySize, diskSize, this.directory == null ? "" : " ("
+                + this.directory.getAbsolutePath() + ")");
+    }
+
+    /**
+     * Returns a stream over the cached content of the file described by the metadata specified,
+     * or null if not cached.
+     */
+    @Nullable
+    InputStream read(final Record metadata) {
+        final Key key = Key.forMetadata(metadata);
+        if (key != null) {
+            final byte[] bytes = this.memoryCache.getIfPresent(key);
+            if (bytes != null) {
+                this.hitCount.incrementAndGet();
+                return new ByteArrayInputStream(bytes);
+            }
+            final File file = this.diskCache.getIfPresent(key);
+            if (file != null) {
+                try {
+                    final InputStream stream = new FileInputStream(file);
+                    this.hitCount.incrementAndGet();
+                    return stream;
+                } catch (final FileNotFoundException ex) {
+                    this.diskCache.invalidate(key); // evicted concurrently
+                }
+            }
+        }
+        this.missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Wraps the stream over the content of the file described by the metadata specified, so that
+     * the content is cached if the stream is completely read.
+     */
+    InputStream populate(final Record metadata, final InputStream stream) {
+        final Key key = Key.forMetadata(metadata);
+        final Long size = metadata.getUnique(NFO.FILE_SIZE, Long.class, null);
+        if (key == null || size == null) {
+            return stream;
+        } else if (size <= this.memoryMaxFileSize) {
+            return new PopulatingStream(stream, key, size, new ByteArrayOutputStream(
+                    size.intValue()), null);
+        } else if (size <= this.diskMaxFileSize) {
+            final File file = new File(this.directory, Long.toString(
+                    this.fileCounter.incrementAndGet(), 32));
+            try {
+                return new PopulatingStream(stream, key, size, new FileOutputStream(file), file);
+            } catch (final IOException ex) {
+                LOGGER.warn("Cannot create cache file " + file, ex);
+            }
+        }
+        return stream;
+    }
+
+    /**
+     * Discards the cached content, if any, of the file described by the metadata specified.
+     */
+    void invalidate(@Nullable final Record metadata) {
+        final Key key = metadata == null ? null : Key.forMetadata(metadata);
+        if (key != null) {
+            this.memoryCache.invalidate(key);
+            this.diskCache.invalidate(key);
+            this.invalidationCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void close() {
+        LOGGER.info("{} - {} hits, {} misses, {} invalidations", this.getClass().getSimpleName(),
+                this.hitCount, this.missCount, this.invalidationCount);
+        this.memoryCache.invalidateAll();
+        this.diskCache.invalidateAll();
+        if (this.deleteDirectory) {
+            deleteQuietly(this.directory);
+        }
+    }
+
+    private static void deleteQuietly(@Nullable final File file) {
+        if (file != null && file.exists() && !file.delete()) {
+            LOGGER.warn("Cannot delete cache file " + file);
+        }
+    }
+
+    private static final class Key {
+
+        private final URI fileID;
+
+        private final String hash;
+
+        private Key(final URI fileID, final String hash) {
+            this.fileID = fileID;
+            this.hash = hash;
+        }
+
+        @Nullable
+        static Key forMetadata(final Record metadata) {
+            final URI fileID = metadata.getID();
+            final Record hash = metadata.getUnique(NFO.HAS_HASH, Record.class, null);
+            if (fileID == null || hash == null
+                    || !"MD5".equals(hash.getUnique(NFO.HASH_ALGORITHM, String.class, null))) {
+                return null;
+            }
+            final String value = hash.getUnique(NFO.HASH_VALUE, String.class, null);
+            return value == null ? null : new Key(fileID, value);
+        }
+
+        @Override
+        public boolean equals(final Object object) {
+            if (object == this) {
+                return true;
+            }
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) object;
+            return this.fileID.equals(other.fileID) && this.hash.equals(other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(this.fileID, this.hash);
+        }
+
+    }
+
+    private final class PopulatingStream extends FilterInputStream {
+
+        private final Key key;
+
+        private final long size;
+
+        private final Hasher hasher;
+
+        @Nullable
+        private OutputStream buffer; // null after completion or failure
+
+        @Nullable
+        private final File file; // null if populating the memory tier
+
+        private long count;
+
+        PopulatingStream(final InputStream stream, final Key key, final long size,
+                final OutputStream buffer, @Nullable final File file) {
+            super(stream);
+            this.key = key;
+            this.size = size;
+            this.hasher = Hashing.md5().newHasher();
+            this.buffer = buffer;
+            this.file = file;
+            this.count = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                append(new byte[] { (byte) b }, 0, 1);
+            } else {
+                complete();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] buf, final int off, final int len) throws IOException {
+            final int n = super.read(buf, off, len);
+            if (n > 0) {
+                append(buf, off, n);
+            } else if (n < 0) {
+                complete();
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            discard(); // skipped bytes are not seen, so content cannot be cached
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                discard();
+            } finally {
+                super.close();
+            }
+        }
+
+        private void append(final byte[] buf, final int off, final int len) {
+            if (this.buffer != null) {
+                this.count += len;
+                if (this.count > this.size) {
+                    discard();
+                    return;
+                }
+                try {
+                    this.buffer.write(buf, off, len);
+                    this.hasher.putBytes(buf, off, len);
+                } catch (final IOException ex) {
+                    LOGGER.warn("Cannot write cache file " + this.file, ex);
+                    discard();
+                }
+            }
+        }
+
+        private void complete() {
+            if (this.buffer == null) {
+                return;
+            }
+            final OutputStream buffer = this.buffer;
+            this.buffer = null;
+            try {
+                buffer.close();
+                if (this.count != this.size
+                        || !this.hasher.hash().toString().equals(this.key.hash)) {
+                    LOGGER.warn("Content of file {} does not match stored size / hash",
+                            this.key.fileID);
+                    deleteQuietly(this.file);
+                } else if (this.file == null) {
+                    RepresentationCache.this.memoryCache.put(this.key,
+                            ((ByteArrayOutputStream) buffer).toByteArray());
+                } else {
+                    RepresentationCache.this.diskCache.put(this.key, this.file);
+                }
+            } catch (final IOException ex) {
+                LOGGER.warn("Cannot write cache file " + this.file, ex);
+                deleteQuietly(this.file);
+            }
+        }
+
+        private void discard() {
+            if (this.buffer != null) {
+                try {
+                    this.buffer.close();
+                } catch (final IOException ex) {
+                    // ignore
+                }
+                this.buffer = null;
+                deleteQuietly(this.file);
+            }
+        }
+
+    }
+
+}
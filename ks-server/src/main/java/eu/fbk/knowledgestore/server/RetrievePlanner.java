@@ -0,0 +1,239 @@
+package eu.fbk.knowledgestore.server;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.openrdf.model.URI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.fbk.knowledgestore.data.Data;
+import eu.fbk.knowledgestore.data.XPath;
+import eu.fbk.knowledgestore.datastore.CountingDataStore;
+import eu.fbk.knowledgestore.datastore.DataStore;
+import eu.fbk.knowledgestore.datastore.DataTransaction;
+import eu.fbk.knowledgestore.vocabulary.KS;
+
+/**
+ * Rule-based planner for retrieve and count requests with a condition and/or a set of IDs.
+ * <p>
+ * The condition is decomposed via {@link XPath#decompose(Map)} into property restrictions plus
+ * an optional remaining expression, and one of the following plans is chosen:
+ * </p>
+ * <ul>
+ * <li>{@link Kind#LOOKUP}, if IDs were supplied with the request, or if the restrictions allow to
+ * compute the IDs of candidate records (via a lookup of the mentions / resources in
+ * {@code ks:hasMention} / {@code ks:mentionOf}) and their number is not large compared to the
+ * number of records of the type, in which case candidates are looked up by ID and the condition
+ * is evaluated locally;</li>
+ * <li>{@link Kind#SCAN}, otherwise, in which case the condition is evaluated by the
+ * {@code DataStore} on all the records of the type.</li>
+ * </ul>
+ * <p>
+ * Other restrictions (e.g., on {@code dct:identifier} or {@code owl:sameAs}) cannot be resolved
+ * to candidate IDs, as {@code DataStore}s do not expose secondary indexes on property values,
+ * and are evaluated by the scan. The number of records per type is used only if the
+ * {@code DataStore} maintains it via a {@link CountingDataStore} (see
+ * {@link CountingDataStore#isCounting(DataStore)}): in that case it is obtained via
+ * {@link DataTransaction#count(URI, XPath)} in a background task (as computing the first total
+ * still requires a scan) and refreshed every {@value #STATISTICS_TTL} seconds, as an approximate
+ * value is enough for planning. Otherwise no count is ever issued, and resolvable restrictions
+ * are always looked up, as done before the introduction of the planner. Until the number of
+ * records is available, a lookup is chosen for up to {@value #LOOKUP_MAX_IDS} candidates.
+ * Computed plans are logged by the server at debug level.
+ * </p>
+ */
+final class RetrievePlanner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetrievePlanner.class);
+
+    private static final double LOOKUP_MAX_RATIO = 0.1;
+
+    private static final int LOOKUP_MAX_IDS = 10000;
+
+    private static final long STATISTICS_TTL = 60; // seconds
+
+    private final DataStore dataStore;
+
+    private final boolean counting;
+
+    private final ConcurrentMap<URI, Long> typeSizes;
+
+    private final ConcurrentMap<URI, Long> typeTimestamps;
+
+    private final Set<URI> pendingTypes;
+
+    RetrievePlanner(final DataStore dataStore) {
+        this.dataStore = Preconditions.checkNotNull(dataStore);
+        this.counting = CountingDataStore.isCounting(dataStore);
+        this.typeSizes = Maps.newConcurrentMap();
+        this.typeTimestamps = Maps.newConcurrentMap();
+        this.pendingTypes = Sets.newConcurrentHashSet();
+    }
+
+    Plan plan(final DataTransaction transaction, final URI type,
+            @Nullable final XPath condition, @Nullable final Set<URI> ids) throws IOException {
+
+        // Supplied IDs are always looked up, applying the condition locally
+        if (ids != null) {
+            return new Plan(Kind.LOOKUP, type, condition, ids, ids.size(), -1L);
+        }
+
+        // Without a condition, all the records of the type have to be returned
+        if (condition == null) {
+            return new Plan(Kind.SCAN, type, null, null, -1L, -1L);
+        }
+
+        // Decompose the condition into property restrictions plus remaining condition
+        final Map<URI, Set<Object>> restrictions = Maps.newHashMap();
+        condition.decompose(restrictions);
+
+        // Compute candidate IDs, if restrictions can be resolved by looking up the inverse
+        // ks:mentionOf / ks:hasMention values of the resources / mentions restricted
+        Set<URI> candidateIDs = null;
+        if (KS.RESOURCE.equals(type) && restrictions.containsKey(KS.HAS_MENTION)) {
+            candidateIDs = lookupValues(transaction, KS.MENTION,
+                    restrictions.get(KS.HAS_MENTION), KS.MENTION_OF);
+        }
+        if (KS.MENTION.equals(type) && restrictions.containsKey(KS.MENTION_OF)) {
+            candidateIDs = lookupValues(transaction, KS.RESOURCE,
+                    restrictions.get(KS.MENTION_OF), KS.HAS_MENTION);
+        }
+
+        // Always choose a lookup if the size of the type is not maintained by the data store;
+        // otherwise choose it if candidate IDs are a small fraction of the records of the type,
+        // or if they are few and the size of the type is not known yet; scan otherwise
+        if (candidateIDs != null && !this.counting) {
+            return new Plan(Kind.LOOKUP, type, condition, candidateIDs, candidateIDs.size(), -1L);
+        } else if (candidateIDs != null) {
+            final long typeSize = candidateIDs.isEmpty() ? -1L : getTypeSize(type);
+            final double maxIDs = typeSize < 0 ? LOOKUP_MAX_IDS : typeSize * LOOKUP_MAX_RATIO;
+            if (candidateIDs.size() <= maxIDs) {
+                return new Plan(Kind.LOOKUP, type, condition, candidateIDs,
+                        candidateIDs.size(), typeSize);
+            }
+            return new Plan(Kind.SCAN, type, condition, null, candidateIDs.size(), typeSize);
+        }
+        return new Plan(Kind.SCAN, type, condition, null, -1L, -1L);
+    }
+
+    private static Set<URI> lookupValues(final DataTransaction transaction, final URI type,
+            final Iterable<Object> ids, final URI property) throws IOException {
+        final Set<URI> values = Sets.newHashSet();
+        transaction.lookup(type, ImmutableSet.copyOf(Iterables.filter(ids, URI.class)),
+                ImmutableSet.of(property)).transform(URI.class, true, property)
+                .toCollection(values);
+        return values;
+    }
+
+    private long getTypeSize(final URI type) {
+
+        // Schedule the computation of the type size if missing or expired, returning the last
+        // computed value (if any) in the meanwhile
+        final Long size = this.typeSizes.get(type);
+        final Long timestamp = this.typeTimestamps.get(type);
+        final long now = System.currentTimeMillis();
+        if ((timestamp == null || now - timestamp > STATISTICS_TTL * 1000)
+                && this.pendingTypes.add(type)) {
+            Data.getExecutor().submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        final DataTransaction transaction = RetrievePlanner.this.dataStore
+                                .begin(true);
+                        try {
+                            final long ts = System.currentTimeMillis();
+                            final long count = transaction.count(type, null);
+                            RetrievePlanner.this.typeSizes.put(type, count);
+                            RetrievePlanner.this.typeTimestamps.put(type, ts);
+                            LOGGER.debug("Size of type {} computed in {} ms: {} records",
+                                    Data.toString(type, Data.getNamespaceMap()),
+                                    System.currentTimeMillis() - ts, count);
+                        } finally {
+                            transaction.end(true); // commit or rollback irrelevant
+                        }
+                    } catch (final Throwable ex) {
+                        LOGGER.warn("Could not compute size of type " + type, ex);
+                    } finally {
+                        RetrievePlanner.this.pendingTypes.remove(type);
+                    }
+                }
+
+            });
+        }
+        return size == null ? -1L : size;
+    }
+
+    enum Kind {
+
+        LOOKUP,
+
+        SCAN
+
+    }
+
+    static final class Plan {
+
+        private final Kind kind;
+
+        private final URI type;
+
+        @Nullable
+        private final XPath condition;
+
+        @Nullable
+        private final Set<URI> ids;
+
+        private final long estimatedSize;
+
+        private final long typeSize;
+
+        Plan(final Kind kind, final URI type, @Nullable final XPath condition,
+                @Nullable final Set<URI> ids, final long estimatedSize, final long typeSize) {
+            this.kind = kind;
+            this.type = type;
+            this.condition = condition;
+            this.ids = ids;
+            this.estimatedSize = estimatedSize;
+            this.typeSize = typeSize;
+        }
+
+        Kind getKind() {
+            return this.kind;
+        }
+
+        @Nullable
+        XPath getCondition() {
+            return this.condition;
+        }
+
+        @Nullable
+        Set<URI> getIDs() {
+            return this.ids;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this).omitNullValues().add("kind", this.kind)
+                    .add("type", Data.toString(this.type, Data.getNamespaceMap()))
+                    .add("condition", this.condition)
+                    .add("ids", this.ids == null ? null : this.ids.size())
+                    .add("estimatedSize", this.estimatedSize < 0 ? null : this.estimatedSize)
+                    .add("typeSize", this.typeSize < 0 ? null : this.typeSize).toString();
+        }
+
+    }
+
+}
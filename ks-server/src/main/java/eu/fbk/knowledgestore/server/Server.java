@@ -5,8 +5,6 @@ import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.*;
 import com.google.common.hash.Hashing;
 import com.google.common.hash.HashingOutputStream;
-import com.google.common.html.HtmlEscapers;
-import com.google.common.io.ByteStreams;
 import com.google.common.io.CountingOutputStream;
 import com.google.common.io.FileBackedOutputStream;
 import com.google.common.net.MediaType;
@@ -17,6 +15,7 @@ import eu.fbk.knowledgestore.data.*;
 import eu.fbk.knowledgestore.datastore.DataStore;
 import eu.fbk.knowledgestore.datastore.DataTransaction;
 import eu.fbk.knowledgestore.filestore.FileStore;
+import eu.fbk.knowledgestore.internal.Logging;
 import eu.fbk.knowledgestore.internal.rdf.RDFUtil;
 import eu.fbk.knowledgestore.triplestore.TripleStore;
 import eu.fbk.knowledgestore.triplestore.TripleTransaction;
@@ -24,6 +23,8 @@ import eu.fbk.knowledgestore.vocabulary.KS;
 import eu.fbk.knowledgestore.vocabulary.NFO;
 import eu.fbk.knowledgestore.vocabulary.NIE;
 import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.CloseableIteratorIteration;
+import org.openrdf.model.Literal;
 import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
 import org.openrdf.model.ValueFactory;
@@ -31,18 +32,33 @@ import org.openrdf.model.vocabulary.RDF;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.Dataset;
 import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.Slice;
 import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.query.impl.MapBindingSet;
 import org.openrdf.query.impl.DatasetImpl;
 import org.openrdf.query.parser.ParsedQuery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
 
 import javax.annotation.Nullable;
 import java.io.*;
+import java.security.SecureRandom;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 // TODO file garbage collection
@@ -55,7 +71,25 @@ public final class Server extends AbstractKnowledgeStore {
 
     private static final int DEFAULT_BUFFER_SIZE = 16 * 1024 * 1024;
 
-    private static long fileVersionCounter = 0L;
+    private static final int DEFAULT_PARALLELISM = 1;
+
+    private static final long DEFAULT_CACHE_MEMORY_SIZE = 64L * 1024 * 1024;
+
+    private static final long DEFAULT_CACHE_DISK_SIZE = 1024L * 1024 * 1024;
+
+    private static final long DEFAULT_SPARQL_AUTO_LIMIT = 10000L;
+
+    private static final int DEFAULT_SPARQL_QUEUE_SIZE = 1;
+
+    private static final int DEFAULT_SPARQL_DESCRIBE_BATCH_SIZE = 64;
+
+    private static final String ACTION_ACCEPT = "accept";
+
+    private static final String ACTION_LIMIT = "limit";
+
+    private static final String ACTION_QUEUE = "queue";
+
+    private static final String ACTION_REJECT = "reject";
 
     private final FileStore fileStore;
 
@@ -67,6 +101,42 @@ public final class Server extends AbstractKnowledgeStore {
 
     private final int bufferSize;
 
+    private final int parallelism;
+
+    private final RetrievePlanner planner;
+
+    private final RepresentationCache representationCache;
+
+    private final BlobIndex blobIndex;
+
+    @Nullable
+    private final SparqlCache sparqlCache;
+
+    @Nullable
+    private final Integer sparqlUpdateChunkSize;
+
+    private final SparqlCostEstimator sparqlCostEstimator;
+
+    @Nullable
+    private final Long sparqlLimitCost;
+
+    @Nullable
+    private final Long sparqlQueueCost;
+
+    @Nullable
+    private final Long sparqlRejectCost;
+
+    private final long sparqlAutoLimit;
+
+    private final Semaphore sparqlQueue;
+
+    @Nullable
+    private final SparqlHelper.Options sparqlOptions;
+
+    private final String fileNodeID;
+
+    private final AtomicLong fileVersionCounter;
+
     private Server(final Builder builder) {
 
         boolean success = false;
@@ -74,12 +144,42 @@ public final class Server extends AbstractKnowledgeStore {
         this.fileStore = Preconditions.checkNotNull(builder.fileStore);
         this.dataStore = Preconditions.checkNotNull(builder.dataStore);
         this.tripleStore = Preconditions.checkNotNull(builder.tripleStore);
+        this.planner = new RetrievePlanner(this.dataStore);
+        this.blobIndex = new BlobIndex(this.fileStore, this.dataStore);
+        this.fileNodeID = Long.toString((new SecureRandom().nextInt() & 0x3FFFFFFF) | 0x40000000,
+                32).substring(1);
+        this.fileVersionCounter = new AtomicLong(System.currentTimeMillis());
 
         try {
             this.chunkSize = MoreObjects.firstNonNull(builder.chunkSize, DEFAULT_CHUNK_SIZE);
             this.bufferSize = MoreObjects.firstNonNull(builder.bufferSize, DEFAULT_BUFFER_SIZE);
+            this.parallelism = MoreObjects.firstNonNull(builder.parallelism, DEFAULT_PARALLELISM);
             Preconditions.checkArgument(this.chunkSize > 0);
             Preconditions.checkArgument(this.bufferSize > 0);
+            Preconditions.checkArgument(this.parallelism > 0);
+            this.representationCache = new RepresentationCache(MoreObjects.firstNonNull(
+                    builder.cacheMemorySize, DEFAULT_CACHE_MEMORY_SIZE),
+                    MoreObjects.firstNonNull(builder.cacheDiskSize, DEFAULT_CACHE_DISK_SIZE),
+                    builder.cachePath);
+            final long sparqlCacheSize = MoreObjects.firstNonNull(builder.sparqlCacheSize, 0L);
+            Preconditions.checkArgument(sparqlCacheSize >= 0);
+            this.sparqlCache = sparqlCacheSize == 0 ? null : new SparqlCache(sparqlCacheSize);
+            this.sparqlUpdateChunkSize = builder.sparqlUpdateChunkSize;
+            Preconditions.checkArgument(this.sparqlUpdateChunkSize == null
+                    || this.sparqlUpdateChunkSize > 0);
+            this.sparqlCostEstimator = new SparqlCostEstimator();
+            this.sparqlLimitCost = builder.sparqlLimitCost;
+            this.sparqlQueueCost = builder.sparqlQueueCost;
+            this.sparqlRejectCost = builder.sparqlRejectCost;
+            this.sparqlAutoLimit = MoreObjects.firstNonNull(builder.sparqlAutoLimit,
+                    DEFAULT_SPARQL_AUTO_LIMIT);
+            final int sparqlQueueSize = MoreObjects.firstNonNull(builder.sparqlQueueSize,
+                    DEFAULT_SPARQL_QUEUE_SIZE);
+            Preconditions.checkArgument(this.sparqlAutoLimit > 0);
+            Preconditions.checkArgument(sparqlQueueSize > 0);
+            this.sparqlQueue = new Semaphore(sparqlQueueSize, true);
+            this.sparqlOptions = new SparqlHelper.Options(MoreObjects.firstNonNull(
+                    builder.sparqlDescribeBatchSize, DEFAULT_SPARQL_DESCRIBE_BATCH_SIZE));
 
             // TODO
             try {
@@ -108,6 +208,9 @@ public final class Server extends AbstractKnowledgeStore {
 
     @Override
     protected void doClose() {
+        closeQuietly(this.representationCache);
+        closeQuietly(this.sparqlCache);
+        closeQuietly(this.sparqlCostEstimator);
         closeQuietly(this.fileStore);
         closeQuietly(this.dataStore);
         closeQuietly(this.tripleStore);
@@ -180,8 +283,6 @@ public final class Server extends AbstractKnowledgeStore {
         protected Representation doDownload(@Nullable final Long timeout, final URI resourceID,
                 @Nullable final Set<String> mimeTypes, final boolean useCaches) throws Throwable {
 
-            // Note: no caches used at this moment, so useCaches is ignored
-
             // Start a new read-only datastore TX to retrieve file metadata
             final DataTransaction transaction = Server.this.dataStore.begin(true);
 
@@ -201,8 +302,8 @@ public final class Server extends AbstractKnowledgeStore {
                     return null;
                 }
 
-                // Retrieve the stored file name (must exist)
-                final String fileName = metadata.getUnique(NFO.FILE_NAME, String.class);
+                // Retrieve the name of the stored file, possibly a shared blob (must exist)
+                final String fileName = BlobIndex.getFileName(metadata);
                 check(fileName != null, null, resourceID, "No filename stored for resource (!)");
 
                 // Check mimeType constraint, if any
@@ -229,10 +330,17 @@ public final class Server extends AbstractKnowledgeStore {
                             "Incompatible MIME type %s for file %s", fileType, fileName);
                 }
 
-                // Open a stream over file contents
-                InputStream stream = Server.this.fileStore.read(fileName);
-                check(stream != null, null, resourceID, "File %s missing for resource %s (!)",
-                        fileName);
+                // Open a stream over file contents, using the representation cache if enabled
+                InputStream stream = useCaches ? Server.this.representationCache.read(metadata)
+                        : null;
+                if (stream == null) {
+                    stream = Server.this.fileStore.read(fileName);
+                    check(stream != null, null, resourceID,
+                            "File %s missing for resource %s (!)", fileName);
+                    if (useCaches) {
+                        stream = Server.this.representationCache.populate(metadata, stream);
+                    }
+                }
 
                 if (transformToType != null) {
                     // Transformation required: do it and return a subset of metadata
@@ -255,6 +363,9 @@ public final class Server extends AbstractKnowledgeStore {
                     final Representation representation = Representation.create(stream);
                     representation.getMetadata().setID(metadata.getID());
                     for (final URI property : metadata.getProperties()) {
+                        if (property.equals(BlobIndex.BLOB)) {
+                            continue; // internal
+                        }
                         representation.getMetadata().set(property, metadata.get(property));
                     }
                     return representation;
@@ -275,24 +386,16 @@ public final class Server extends AbstractKnowledgeStore {
                 final InputStream fromStream) throws IOException {
             final String type = toType.trim().toLowerCase();
             if (type.equals("text/html")) {
-                // TODO inefficient + conversion to String may not work as charset is unknown
-                final byte[] data = ByteStreams.toByteArray(fromStream);
-                final String string = new String(data, Charsets.UTF_8);
-                final ByteArrayOutputStream out = new ByteArrayOutputStream();
-                final OutputStreamWriter writer = new OutputStreamWriter(out, Charsets.UTF_8);
-                writer.append("<html>\n");
-                writer.append("<head>\n");
-                writer.append("<meta http-equiv=\"Content-type\" "
-                        + "content=\"text/html;charset=UTF-8\"/>\n");
-                writer.append("</head>\n");
-                writer.append("<body>\n");
-                writer.append("<pre>");
-                writer.append(HtmlEscapers.htmlEscaper().escape(string));
-                writer.append("</pre>\n");
-                writer.append("</body>\n");
-                writer.append("</html>\n");
-                writer.close();
-                return new ByteArrayInputStream(out.toByteArray());
+                // Stream the escaped text between a fixed header and footer, so that memory
+                // usage is constant and the first bytes are returned immediately (as before,
+                // the text is assumed to be UTF-8 encoded)
+                final String header = "<html>\n<head>\n<meta http-equiv=\"Content-type\" "
+                        + "content=\"text/html;charset=UTF-8\"/>\n</head>\n<body>\n<pre>";
+                final String footer = "</pre>\n</body>\n</html>\n";
+                return new SequenceInputStream(Iterators.asEnumeration(ImmutableList.of(
+                        new ByteArrayInputStream(header.getBytes(Charsets.UTF_8)),
+                        new HtmlEscapingInputStream(fromStream),
+                        new ByteArrayInputStream(footer.getBytes(Charsets.UTF_8))).iterator()));
             } else if (type.equals("text/plain")) {
                 return fromStream; // pretend it can be interpreted as UTF-8 data
             } else {
@@ -304,8 +407,13 @@ public final class Server extends AbstractKnowledgeStore {
         protected Outcome doUpload(@Nullable final Long timeout, final URI resourceID,
                 @Nullable final Representation representation) throws Throwable {
 
-            // Keep track of the new file name and the status to return
-            String fileName = null;
+            // Keep track of the referenced blob, whether its file has been written, the buffer
+            // with the uploaded content and the status
+            Record blob = null;
+            boolean written = false;
+            final FileBackedOutputStream buffer = new FileBackedOutputStream(
+                    Server.this.bufferSize);
+            Record oldMetadata = null;
             Status status;
 
             // Start a read write datastore TX to update resource metadata
@@ -321,7 +429,7 @@ public final class Server extends AbstractKnowledgeStore {
                 }
 
                 // Retrieve old metadata
-                final Record oldMetadata = resource.getUnique(KS.STORED_AS, Record.class);
+                oldMetadata = resource.getUnique(KS.STORED_AS, Record.class);
 
                 // Differentiate between delete and store representation
                 if (representation == null) {
@@ -334,7 +442,7 @@ public final class Server extends AbstractKnowledgeStore {
                     status = oldMetadata == null ? Status.OK_CREATED : Status.OK_MODIFIED;
                     final Record metadata = representation.getMetadata();
                     metadata.setID(Data.getValueFactory().createURI(resourceID + "_file"));
-                    fileName = metadata.getUnique(NFO.FILE_NAME, String.class);
+                    String fileName = metadata.getUnique(NFO.FILE_NAME, String.class);
                     String fileType = metadata.getUnique(NIE.MIME_TYPE, String.class);
                     if (fileType != null) {
                         try {
@@ -349,26 +457,42 @@ public final class Server extends AbstractKnowledgeStore {
                     metadata.set(NFO.FILE_NAME, fileName);
                     metadata.set(NIE.MIME_TYPE, fileType);
 
-                    // Create new file using the assigned file name
-                    final OutputStream stream = Server.this.fileStore.write(fileName);
-                    try {
-                        // Store the representation, counting written bytes and computing MD5
-                        final CountingOutputStream cos = new CountingOutputStream(stream);
-                        final HashingOutputStream hos = new HashingOutputStream(Hashing.md5(), cos);
-                        representation.writeTo(hos);
-                        hos.close();
-
-                        // Update metadata attributes
-                        final Record hash = Record.create();
-                        hash.set(NFO.HASH_ALGORITHM, "MD5");
-                        hash.set(NFO.HASH_VALUE, hos.hash().toString());
-                        metadata.set(NFO.HAS_HASH, hash);
-                        metadata.set(NFO.FILE_SIZE, cos.getCount());
-                        if (metadata.isNull(NFO.FILE_LAST_MODIFIED)) {
-                            metadata.set(NFO.FILE_LAST_MODIFIED, new Date());
-                        }
-                    } finally {
-                        stream.close();
+                    // Buffer the representation (overflowing to disk), counting bytes and
+                    // computing both the MD5 hash exposed to clients and the SHA-256 hash
+                    // identifying blobs, so that a file is written only for new content
+                    final CountingOutputStream cos = new CountingOutputStream(buffer);
+                    final HashingOutputStream sha256os = new HashingOutputStream(
+                            Hashing.sha256(), cos);
+                    final HashingOutputStream md5os = new HashingOutputStream(Hashing.md5(),
+                            sha256os);
+                    representation.writeTo(md5os);
+                    md5os.close();
+                    final String md5 = md5os.hash().toString();
+                    final String sha256 = sha256os.hash().toString();
+                    final long size = cos.getCount();
+
+                    // Check the hash supplied by the client, if any
+                    final String suppliedHash = getSuppliedHash(metadata);
+                    if (suppliedHash != null && !suppliedHash.equalsIgnoreCase(md5)) {
+                        throw newException(Status.ERROR_INVALID_INPUT, resourceID,
+                                "Supplied MD5 hash " + suppliedHash
+                                        + " does not match content hash " + md5);
+                    }
+
+                    // Reference the blob storing the same content, writing its file if missing
+                    blob = BlobIndex.getBlob(sha256, size,
+                            fileName.substring(fileName.lastIndexOf('.') + 1));
+                    written = Server.this.blobIndex.write(blob, buffer.asByteSource());
+
+                    // Update metadata attributes, keeping the file name of the resource
+                    final Record hash = Record.create();
+                    hash.set(NFO.HASH_ALGORITHM, "MD5");
+                    hash.set(NFO.HASH_VALUE, md5);
+                    metadata.set(NFO.HAS_HASH, hash);
+                    metadata.set(NFO.FILE_SIZE, size);
+                    metadata.set(BlobIndex.BLOB, blob);
+                    if (metadata.isNull(NFO.FILE_LAST_MODIFIED)) {
+                        metadata.set(NFO.FILE_LAST_MODIFIED, new Date());
                     }
 
                     // Update the resource record
@@ -380,23 +504,34 @@ public final class Server extends AbstractKnowledgeStore {
                     transaction.store(KS.RESOURCE, resource);
                 }
 
-                // Always delete the old file, if previously stored
-                if (oldMetadata != null) {
-                    deleteFileQuietly(oldMetadata.getUnique(NFO.FILE_NAME, String.class));
-                }
-
                 // Commit transaction
                 transaction.end(true);
 
-                // Compute and return outcome
-                return newOutcome(status, resourceID, null);
+                // Ensure the referenced blob was not deleted by a concurrent release (in which
+                // case it is written again), then release the old file deleting it if no longer
+                // referenced, and discard its cached content
+                if (blob != null) {
+                    Server.this.blobIndex.restore(blob, buffer.asByteSource());
+                }
+                if (oldMetadata != null) {
+                    Server.this.blobIndex.release(oldMetadata, blob);
+                    Server.this.representationCache.invalidate(oldMetadata);
+                }
 
             } catch (final Throwable ex) {
-                // Rollback changes on failure
-                deleteFileQuietly(fileName);
+                // Rollback changes on failure, releasing the file written for the new blob
+                if (written) {
+                    Server.this.blobIndex.discard(blob);
+                }
                 transaction.end(false);
                 throw ex;
+
+            } finally {
+                buffer.reset();
             }
+
+            // Compute and return outcome
+            return newOutcome(status, resourceID, null);
         }
 
         private String generateFileName(final URI resourceID,
@@ -443,49 +578,68 @@ public final class Server extends AbstractKnowledgeStore {
                 fileName = uri.substring(start, end);
             }
 
-            // Obtain the file version
-            long fileVersion;
-            final long ts = System.currentTimeMillis();
-            synchronized (Server.class) {
-                ++Server.fileVersionCounter;
-                if (Server.fileVersionCounter < ts) {
-                    Server.fileVersionCounter = ts;
-                }
-                fileVersion = Server.fileVersionCounter;
-            }
+            // Obtain the file version, combining a counter (initialized with the startup time)
+            // with a random ID of this server instance, so that versions are unique across
+            // restarts and across servers sharing the same FileStore without any locking
+            final long fileVersion = Server.this.fileVersionCounter.incrementAndGet();
 
             // Generate and return the filename
-            return fileName + "." + Long.toString(fileVersion, 32) + "." + fileExt;
+            return fileName + "." + Long.toString(fileVersion, 32) + Server.this.fileNodeID + "."
+                    + fileExt;
         }
 
-        private void deleteFileQuietly(@Nullable final String fileName) {
-            if (fileName != null) {
-                try {
-                    Server.this.fileStore.delete(fileName);
-                } catch (final Throwable ex) {
-                    LOGGER.error("Failed to delete file " + fileName
-                            + " (will be garbage collected)", ex);
-                }
+        @Nullable
+        private String getSuppliedHash(final Record metadata) {
+            final Record hash = metadata.getUnique(NFO.HAS_HASH, Record.class, null);
+            if (hash != null
+                    && "MD5".equals(hash.getUnique(NFO.HASH_ALGORITHM, String.class, null))) {
+                return hash.getUnique(NFO.HASH_VALUE, String.class, null);
             }
+            return null;
         }
 
         @Override
         protected long doCount(@Nullable final Long timeout, final URI type,
                 @Nullable final XPath condition, @Nullable final Set<URI> ids) throws Throwable {
 
-            // Try to transform a retrieve with condition to a faster lookup, if possible
-            final Set<URI> actualIDs = ids != null ? ids : retrieveToLookup(type, condition);
+            // Count mentions of given resources using the ks:hasMention values of the latter
+            if (ids == null && condition != null && KS.MENTION.equals(type)) {
+                final Map<URI, Set<Object>> restrictions = Maps.newHashMap();
+                if (condition.decompose(restrictions) == null
+                        && restrictions.keySet().equals(ImmutableSet.of(KS.MENTION_OF))) {
+                    final Set<URI> mentionIDs = Sets.newHashSet();
+                    final DataTransaction tx = Server.this.dataStore.begin(true);
+                    try {
+                        tx.lookup(KS.RESOURCE, ImmutableSet.copyOf(Iterables.filter(
+                                restrictions.get(KS.MENTION_OF), URI.class)),
+                                ImmutableSet.of(KS.HAS_MENTION))
+                                .transform(URI.class, true, KS.HAS_MENTION)
+                                .toCollection(mentionIDs);
+                    } finally {
+                        tx.end(true); // commit or rollback irrelevant
+                    }
+                    return mentionIDs.size();
+                }
+            }
 
             // If IDs have been supplied, we prefer to retrieve the records and apply the optional
             // condition locally (more efficient if few IDs are used)
-            if (actualIDs != null) {
-                return doRetrieve(timeout, type, condition, actualIDs, condition == null ? null : condition.getProperties(),
-                        null, null).count();
+            if (ids != null) {
+                return doRetrieve(timeout, type, condition, ids, condition == null ? null
+                        : condition.getProperties(), null, null).count();
             }
 
-            // Otherwise, we resort to the count operation within a read-only datastore TX
+            // Otherwise, we plan the count within a read-only datastore TX, resorting either to
+            // a lookup of candidate records or to the count operation of the data store
             final DataTransaction tx = Server.this.dataStore.begin(true);
             try {
+                final RetrievePlanner.Plan plan = Server.this.planner.plan(tx, type, condition,
+                        null);
+                LOGGER.debug("Count plan: {}", plan);
+                if (plan.getIDs() != null) {
+                    return lookup(tx, type, condition, plan.getIDs(),
+                            condition.getProperties()).count();
+                }
                 return tx.count(type, condition);
             } finally {
                 tx.end(true); // commit or rollback irrelevant
@@ -498,89 +652,75 @@ public final class Server extends AbstractKnowledgeStore {
                 @Nullable final Set<URI> properties, @Nullable final Long offset,
                 @Nullable final Long limit) throws Throwable {
 
-            // Try to transform a retrieve with condition to a faster lookup, if possible
-            final Set<URI> actualIDs = ids != null ? ids : retrieveToLookup(type, condition);
-
             // Start a read-only datastore TX that will end when the resulting cursor is closed
             final DataTransaction tx = Server.this.dataStore.begin(true);
 
-            Stream<Record> stream;
-            if (actualIDs == null) {
-                // 1st approach: do a retrieve() if no ID was supplied
-                stream = tx.retrieve(type, condition, properties);
-
-            } else {
-                // 2nd approach: do a lookup() and apply condition locally
-                Set<URI> props = properties;
-                if (props != null && condition != null
-                        && !props.containsAll(condition.getProperties())) {
-                    props = Sets.union(properties, condition.getProperties());
-                }
-                stream = tx.lookup(type, actualIDs, props);
-                if (condition != null) {
-                    stream = stream.filter(condition.asPredicate(), 0);
+            try {
+                // Plan the retrieval to determine whether the condition can be transformed to a
+                // faster lookup (always chosen if IDs were supplied)
+                final RetrievePlanner.Plan plan = Server.this.planner.plan(tx, type, condition,
+                        ids);
+                LOGGER.debug("Retrieve plan: {}", plan);
+                final Set<URI> actualIDs = plan.getIDs();
+
+                // Do a retrieve() if no ID is available, otherwise a lookup() with the condition
+                // applied locally
+                Stream<Record> stream;
+                if (actualIDs == null) {
+                    stream = tx.retrieve(type, condition, properties);
+                } else {
+                    stream = lookup(tx, type, condition, actualIDs, properties);
                 }
-                if (props != properties) {
-                    final URI[] array = properties.toArray(new URI[properties.size()]);
-                    stream = stream.transform(new Function<Record, Record>() {
-
-                        @Override
-                        public Record apply(final Record record) {
-                            record.retain(array);
-                            return record;
-                        }
 
-                    }, 0);
+                // Apply offset and limit directives
+                if (offset != null || limit != null) {
+                    stream = stream.slice(MoreObjects.firstNonNull(offset, 0L),
+                            MoreObjects.firstNonNull(limit, Long.MAX_VALUE));
                 }
-            }
 
-            // Apply offset and limit directives
-            if (offset != null || limit != null) {
-                stream = stream.slice(MoreObjects.firstNonNull(offset, 0L),
-                        MoreObjects.firstNonNull(limit, Long.MAX_VALUE));
-            }
+                // Attach the transaction to the cursor, so that it ends when the latter is closed
+                return attach(tx, stream);
 
-            // Attach the transaction to the cursor, so that it ends when the latter is closed
-            return attach(tx, stream);
+            } catch (final Throwable ex) {
+                tx.end(true);
+                throw ex;
+            }
         }
 
-        @SuppressWarnings({ "unchecked", "rawtypes" })
-        private Set<URI> retrieveToLookup(final URI type, @Nullable final XPath condition)
-                throws IOException {
+        private Stream<Record> lookup(final DataTransaction transaction, final URI type,
+                @Nullable final XPath condition, final Set<URI> ids,
+                @Nullable final Set<URI> properties) throws IOException {
 
-            if (condition == null) {
-                return null;
+            // Lookup the records, fetching also the properties needed to evaluate the condition
+            Set<URI> props = properties;
+            if (props != null && condition != null
+                    && !props.containsAll(condition.getProperties())) {
+                props = Sets.union(properties, condition.getProperties());
             }
+            Stream<Record> stream = transaction.lookup(type, ids, props);
 
-            final Map<URI, Set<Object>> restrictions = Maps.newHashMap();
-            condition.decompose(restrictions);
-
-            DataTransaction tx = null;
-            Set<URI> ids = null;
-            try {
-                if (KS.RESOURCE.equals(type) && restrictions.containsKey(KS.HAS_MENTION)) {
-                    ids = Sets.newHashSet();
-                    tx = Server.this.dataStore.begin(true);
-                    tx.lookup(KS.MENTION, (Set) restrictions.get(KS.HAS_MENTION),
-                            ImmutableSet.of(KS.MENTION_OF))
-                            .transform(URI.class, true, KS.MENTION_OF).toCollection(ids);
-
-                } else if (KS.MENTION.equals(type) && restrictions.containsKey(KS.MENTION_OF)) {
-                    ids = Sets.newHashSet();
-                    tx = Server.this.dataStore.begin(true);
-                    tx.lookup(KS.RESOURCE, (Set) restrictions.get(KS.MENTION_OF),
-                            ImmutableSet.of(KS.HAS_MENTION))
-                            .transform(URI.class, true, KS.HAS_MENTION).toCollection(ids);
-                }
-            } finally {
-                if (tx != null) {
-                    tx.end(false);
-                }
+            // Apply the condition locally, if any
+            if (condition != null) {
+                stream = stream.filter(condition.asPredicate(), 0);
             }
 
-            return ids;
+            // Remove the properties fetched only for evaluating the condition
+            if (props != properties) {
+                final URI[] array = properties.toArray(new URI[properties.size()]);
+                stream = stream.transform(new Function<Record, Record>() {
+
+                    @Override
+                    public Record apply(final Record record) {
+                        record.retain(array);
+                        return record;
+                    }
+
+                }, 0);
+            }
+            return stream;
         }
 
+        @SuppressWarnings({ "unchecked", "rawtypes" })
         @Override
         protected void doCreate(@Nullable final Long timeout, final URI type,
                 @Nullable final Stream<? extends Record> records,
@@ -671,50 +811,186 @@ public final class Server extends AbstractKnowledgeStore {
             final Stream<?> stream = recordOrIDStream != null ? recordOrIDStream : //
                     retrieveIDs(type, condition);
 
-            try {
-                // Process records in chunks, keeping track of chunk start index
-                stream.chunk(Server.this.chunkSize).toHandler(new Handler<List<?>>() {
+            // Allocate the partitions records are assigned to. Partitions are processed in
+            // parallel, while chunks of the same partition are processed sequentially
+            final int parallelism = Server.this.parallelism;
+            final URI invocationID = getInvocationID();
+            final Handler<Outcome> partitionHandler = new Handler<Outcome>() {
+
+                @Override
+                public void handle(final Outcome outcome) throws Throwable {
+                    synchronized (this) {
+                        handler.handle(outcome);
+                    }
+                }
+
+            };
+            final List<ModifyPartition> partitions = Lists.newArrayList();
+            for (int i = 0; i < parallelism; ++i) {
+                partitions.add(new ModifyPartition(updater, type, condition, invocationID,
+                        partitionHandler, parallelism > 1));
+            }
 
-                    private final AtomicLong index = new AtomicLong(0L);
+            // Records touching records of different partitions are processed sequentially by the
+            // calling thread, while the other partitions are idle
+            final ModifyPartition sequential = parallelism == 1 ? partitions.get(0)
+                    : new ModifyPartition(updater, type, condition, invocationID,
+                            partitionHandler, false);
 
-                    @Override
-                    public void handle(@Nullable final List<?> chunk) throws Throwable {
-                        final long startIndex = this.index.get();
-                        if (chunk != null) {
-                            // Attempt to process the chunk in a single transaction
-                            final boolean success = modifyChunk(updater, type, condition, chunk,
-                                    handler, this.index, false);
-
-                            // On failure, process elementary 1-element chunks, notifying failures
-                            if (!success) {
-                                this.index.set(startIndex);
-                                for (int i = 0; !Thread.interrupted() && i < chunk.size(); ++i) {
-                                    final List<?> newChunk = ImmutableList.of(chunk.get(i));
-                                    modifyChunk(updater, type, condition, newChunk, handler,
-                                            this.index, true);
+            try {
+                // Assign records to partitions based on the hash of the keys of the records they
+                // touch, keeping track of their index in the input stream. Inputs are examined in
+                // chunks, so that old records can be looked up with a single lookup per chunk
+                long index = 0L;
+                boolean barrier = false;
+                for (final List<?> chunk : stream.chunk(Server.this.chunkSize)) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    final List<Set<String>> keys = parallelism == 1 ? null : partitionKeys(type,
+                            chunk);
+                    for (int i = 0; i < chunk.size(); ++i) {
+                        int partition = -1;
+                        boolean crossing = false;
+                        for (final String key : keys == null ? ImmutableSet.<String>of() : keys
+                                .get(i)) {
+                            final int p = (key.hashCode() & 0x7FFFFFFF) % parallelism;
+                            crossing = partition >= 0 && partition != p;
+                            if (crossing) {
+                                break;
+                            }
+                            partition = p;
+                        }
+                        if (crossing) {
+                            if (!barrier) {
+                                for (final ModifyPartition p : partitions) {
+                                    p.flush();
+                                }
+                                for (final ModifyPartition p : partitions) {
+                                    p.await();
                                 }
+                                barrier = true;
+                            }
+                            sequential.add(chunk.get(i), ++index);
+                        } else {
+                            if (barrier) {
+                                sequential.flush();
+                                barrier = false;
                             }
+                            partitions.get(Math.max(0, partition)).add(chunk.get(i), ++index);
                         }
                     }
+                }
 
-                });
+                // Flush partial chunks and wait for all partitions to complete
+                sequential.flush();
+                for (final ModifyPartition partition : partitions) {
+                    partition.flush();
+                }
+                for (final ModifyPartition partition : partitions) {
+                    partition.await();
+                }
 
                 // Notify handler of completion
                 handler.handle(null);
 
             } finally {
-                // Ensure to close the cursor
+                // Ensure to stop pending workers and close the cursor
+                for (final ModifyPartition partition : partitions) {
+                    partition.cancel();
+                }
                 closeQuietly(stream);
             }
         }
 
+        private List<Set<String>> partitionKeys(final URI type, final List<?> recordsOrIDs)
+                throws Throwable {
+
+            // Look up the old records of the chunk, limited to the properties linking related
+            // records, as the records touched by a modification are the ones related to both the
+            // old and the new state of the modified record
+            final Set<URI> ids = Sets.newHashSet();
+            for (final Object input : recordsOrIDs) {
+                final URI id = input instanceof URI ? (URI) input : ((Record) input).getID();
+                if (id != null) {
+                    ids.add(id);
+                }
+            }
+            final Map<URI, Record> oldRecords = Maps.newHashMap();
+            final DataTransaction tx = Server.this.dataStore.begin(true);
+            try {
+                for (final Record record : tx.lookup(type, ids,
+                        ImmutableSet.of(KS.MENTION_OF, KS.HAS_MENTION))) {
+                    oldRecords.put(record.getID(), record);
+                }
+            } finally {
+                tx.end(true);
+            }
+
+            // Collect the keys of the modified record and of the old and new related records.
+            // Keys are IDs without the fragment, so that IDs of mentions in the form
+            // <resource>#<fragment> fall in the partition of their resource
+            final List<Set<String>> keys = Lists.newArrayListWithCapacity(recordsOrIDs.size());
+            for (final Object input : recordsOrIDs) {
+                final Set<String> set = Sets.newHashSet();
+                final Record record = input instanceof URI ? null : (Record) input;
+                final URI id = record == null ? (URI) input : record.getID();
+                if (id != null) {
+                    set.add(partitionKey(id));
+                    for (final Record r : new Record[] { oldRecords.get(id), record }) {
+                        try {
+                            if (r != null) {
+                                for (final URI relatedID : Iterables.concat(
+                                        r.get(KS.MENTION_OF, URI.class),
+                                        r.get(KS.HAS_MENTION, URI.class))) {
+                                    set.add(partitionKey(relatedID));
+                                }
+                            }
+                        } catch (final Throwable ex) {
+                            // ignore (invalid record, will be reported when processing it)
+                        }
+                    }
+                }
+                keys.add(set);
+            }
+            return keys;
+        }
+
+        private String partitionKey(final URI id) {
+            final String string = id.stringValue();
+            final int index = string.indexOf('#');
+            return index < 0 ? string : string.substring(0, index);
+        }
+
+        private void modifyBisecting(final RecordUpdater updater, final URI type,
+                @Nullable final XPath condition, final List<?> suppliedRecordsOrIDs,
+                final List<Long> indexes, final URI invocationID,
+                final Handler<? super Outcome> handler) throws Throwable {
+
+            // Attempt to process the chunk in a single transaction. On failure, split the chunk
+            // in two halves and process them separately, until failing records are isolated in
+            // 1-element chunks whose failure is notified to the handler
+            final int size = suppliedRecordsOrIDs.size();
+            if (!modifyChunk(updater, type, condition, suppliedRecordsOrIDs, indexes,
+                    invocationID, handler, size == 1) && size > 1) {
+                final int middle = size / 2;
+                modifyBisecting(updater, type, condition, suppliedRecordsOrIDs.subList(0, middle),
+                        indexes.subList(0, middle), invocationID, handler);
+                if (!Thread.currentThread().isInterrupted()) {
+                    modifyBisecting(updater, type, condition,
+                            suppliedRecordsOrIDs.subList(middle, size),
+                            indexes.subList(middle, size), invocationID, handler);
+                }
+            }
+        }
+
         private boolean modifyChunk(final RecordUpdater updater, final URI type,
                 @Nullable final XPath condition, final List<?> suppliedRecordsOrIDs,
-                final Handler<? super Outcome> handler, final AtomicLong index,
-                final boolean reportFailure) throws Throwable {
+                final List<Long> indexes, final URI invocationID,
+                final Handler<? super Outcome> handler, final boolean reportFailure)
+                throws Throwable {
 
             // Extract IDs and allocate list for outcomes
-            final long startIndex = index.get();
             final ValueFactory factory = Data.getValueFactory();
             final int size = suppliedRecordsOrIDs.size();
             final List<Outcome> outcomes = Lists.newArrayListWithCapacity(size);
@@ -746,9 +1022,15 @@ public final class Server extends AbstractKnowledgeStore {
 
                 }, Functions.<Record>identity());
 
+                // Prefetch the records related to the ones of this chunk, so that they can be
+                // retrieved with a single lookup per type rather than one lookup per record
+                final Map<URI, Record> relatedRecords = prefetchRelated(tx, oldRecords.values(),
+                        suppliedRecords);
+                final Set<URI> modifiedRelatedIDs = Sets.newLinkedHashSet();
+
                 // Process old/new record pairs (only those whose old record matches the
                 // optional condition - this must be checked again as we work in new TX)
-                for (int i = 0; !Thread.interrupted() && i < size; ++i) {
+                for (int i = 0; !Thread.currentThread().isInterrupted() && i < size; ++i) {
                     final URI id = ids.get(i);
                     final Record oldRecord = oldRecords.get(id);
                     final Record suppliedRecord = suppliedRecords.get(i);
@@ -760,19 +1042,32 @@ public final class Server extends AbstractKnowledgeStore {
 
                     } else if (suppliedRecord != null || oldRecord != null
                             && (condition == null || condition.evalBoolean(oldRecord))) {
-                        final URI oldInvocationID = getInvocationID();
-                        setInvocationID(factory.createURI(oldInvocationID + "#"
-                                + index.incrementAndGet()));
+                        // Log in the context of the record, identified by its index
+                        final URI recordInvocationID = factory.createURI(invocationID + "#"
+                                + indexes.get(i));
+                        final String oldContext = MDC.get(Logging.MDC_CONTEXT);
+                        MDC.put(Logging.MDC_CONTEXT, recordInvocationID.stringValue());
+                        Outcome outcome;
                         try {
-                            outcomes.add(modifyRecord(updater, tx, id, oldRecord, suppliedRecord));
+                            outcome = modifyRecord(updater, tx, id, oldRecord, suppliedRecord,
+                                    relatedRecords, modifiedRelatedIDs);
                         } catch (final OperationException ex) {
-                            outcomes.add(ex.getOutcome());
+                            outcome = ex.getOutcome();
                         } finally {
-                            setInvocationID(oldInvocationID);
+                            MDC.put(Logging.MDC_CONTEXT, oldContext);
                         }
+                        outcomes.add(Outcome.create(outcome.getStatus(), recordInvocationID,
+                                outcome.getObjectID(), outcome.getMessage()));
                     }
                 }
 
+                // Store the related records modified by the chunk, once per record: this way a
+                // resource is rewritten once per chunk rather than once per mention added to it
+                for (final URI relatedID : modifiedRelatedIDs) {
+                    final Record related = relatedRecords.get(relatedID);
+                    tx.store(related.getSystemType(), related);
+                }
+
                 // Attempt commit
                 tx.end(true);
 
@@ -789,11 +1084,9 @@ public final class Server extends AbstractKnowledgeStore {
                 // Report failure to handler, if requested to do so
                 if (reportFailure) {
                     for (int i = 0; i < ids.size(); ++i) {
-                        index.set(startIndex);
-                        handler.handle(Outcome.create(
-                                Status.ERROR_UNEXPECTED,
-                                factory.createURI(getInvocationID() + "#"
-                                        + index.incrementAndGet()), ids.get(i), ex.getMessage()));
+                        handler.handle(Outcome.create(Status.ERROR_UNEXPECTED,
+                                factory.createURI(invocationID + "#" + indexes.get(i)),
+                                ids.get(i), ex.getMessage()));
                     }
                 }
 
@@ -803,14 +1096,59 @@ public final class Server extends AbstractKnowledgeStore {
             }
         }
 
+        private Map<URI, Record> prefetchRelated(final DataTransaction transaction,
+                final Iterable<Record> oldRecords, final Iterable<Record> suppliedRecords)
+                throws IOException {
+
+            // Collect the IDs of related records, grouped by type. Related records of supplied
+            // records are a superset of the ones of the new records in most cases; misses are
+            // handled by modifyRecord() with an individual lookup
+            final Map<URI, Set<URI>> ids = Maps.newHashMap();
+            for (final Record record : Iterables.concat(oldRecords, suppliedRecords)) {
+                if (record != null && record.getID() != null) {
+                    Map<URI, Record> relatedMap;
+                    try {
+                        relatedMap = extractRelated(record);
+                    } catch (final Throwable ex) {
+                        continue; // invalid record, will be reported by modifyRecord()
+                    }
+                    for (final Record related : relatedMap.values()) {
+                        final URI type = related.getSystemType();
+                        Set<URI> set = ids.get(type);
+                        if (set == null) {
+                            set = Sets.newHashSet();
+                            ids.put(type, set);
+                        }
+                        set.add(related.getID());
+                    }
+                }
+            }
+
+            // Fetch related records with a batched lookup per type, tracking missing records
+            // with null values
+            final Map<URI, Record> map = Maps.newHashMap();
+            for (final Map.Entry<URI, Set<URI>> entry : ids.entrySet()) {
+                for (final URI id : entry.getValue()) {
+                    map.put(id, null);
+                }
+                for (final Record record : transaction.lookup(entry.getKey(), entry.getValue(),
+                        null)) {
+                    map.put(record.getID(), record);
+                }
+            }
+            return map;
+        }
+
         private Outcome modifyRecord(final RecordUpdater updater,
                 final DataTransaction transaction, final URI recordID,
-                @Nullable final Record oldRecord, @Nullable final Record suppliedRecord)
+                @Nullable final Record oldRecord, @Nullable final Record suppliedRecord,
+                final Map<URI, Record> relatedRecords, final Set<URI> modifiedRelatedIDs)
                 throws Throwable {
 
             // Allocate three maps where to track the modifications that have to be done
             final Set<Record> recordsToStore = Sets.newHashSet();
             final Set<Record> recordsToDelete = Sets.newHashSet();
+            final Set<Record> relatedToStore = Sets.newHashSet();
 
             // Preprocess supplied record
             if (suppliedRecord != null) {
@@ -872,12 +1210,18 @@ public final class Server extends AbstractKnowledgeStore {
                 // If there are changes to apply, fetch the record, update it locally, expand and
                 // validate it and register the required modification (either creation or update)
                 if (!oldProperties.isEmpty() || !newProperties.isEmpty()) {
-                    Record related = transaction.lookup(type, ImmutableSet.of(id), null)
-                            .getUnique();
+                    Record related;
+                    if (relatedRecords.containsKey(id)) {
+                        related = relatedRecords.get(id);
+                        related = related == null ? null : Record.create(related, true);
+                    } else {
+                        related = transaction.lookup(type, ImmutableSet.of(id), null)
+                                .getUnique();
+                    }
                     if (related == null) {
                         related = Record.create(id, type);
                     }
-                    recordsToStore.add(related);
+                    relatedToStore.add(related);
                     for (final URI property : oldProperties) {
                         assert oldRel != null;
                         if (!property.equals(RDF.TYPE)) {
@@ -902,31 +1246,180 @@ public final class Server extends AbstractKnowledgeStore {
                 transaction.delete(record.getSystemType(), record.getID());
             }
 
+            // Register modified related records, which are stored once at the end of the chunk,
+            // and keep prefetched related records in sync with the modifications just applied
+            for (final Record record : relatedToStore) {
+                relatedRecords.put(record.getID(), record);
+                modifiedRelatedIDs.add(record.getID());
+            }
+            for (final Record record : recordsToStore) {
+                if (relatedRecords.containsKey(record.getID())) {
+                    relatedRecords.put(record.getID(), record);
+                }
+            }
+            for (final Record record : recordsToDelete) {
+                if (relatedRecords.containsKey(record.getID())) {
+                    relatedRecords.put(record.getID(), null);
+                }
+            }
+
             // On success, return Status referred to target object
             return newOutcome(status, recordID, null);
         }
 
+        private final class ModifyPartition implements Callable<Void> {
+
+            private final RecordUpdater updater;
+
+            private final URI type;
+
+            @Nullable
+            private final XPath condition;
+
+            private final URI invocationID;
+
+            private final Handler<? super Outcome> handler;
+
+            @Nullable
+            private final BlockingQueue<Map.Entry<List<Object>, List<Long>>> queue;
+
+            @Nullable
+            private Future<Void> future;
+
+            private List<Object> inputs;
+
+            private List<Long> indexes;
+
+            ModifyPartition(final RecordUpdater updater, final URI type,
+                    @Nullable final XPath condition, final URI invocationID,
+                    final Handler<? super Outcome> handler, final boolean concurrent) {
+                this.updater = updater;
+                this.type = type;
+                this.condition = condition;
+                this.invocationID = invocationID;
+                this.handler = handler;
+                this.queue = concurrent ? new ArrayBlockingQueue<Map.Entry<List<Object>, //
+                        List<Long>>>(2) : null;
+                this.future = null;
+                this.inputs = Lists.newArrayList();
+                this.indexes = Lists.newArrayList();
+            }
+
+            void add(final Object input, final long index) throws Throwable {
+                this.inputs.add(input);
+                this.indexes.add(index);
+                if (this.inputs.size() >= Server.this.chunkSize) {
+                    submit();
+                }
+            }
+
+            void flush() throws Throwable {
+                if (!this.inputs.isEmpty()) {
+                    submit();
+                }
+                if (this.future != null) {
+                    put(Maps.immutableEntry(ImmutableList.<Object>of(), ImmutableList.<Long>of()));
+                }
+            }
+
+            void await() throws Throwable {
+                if (this.future != null) {
+                    try {
+                        this.future.get();
+                    } catch (final ExecutionException ex) {
+                        throw ex.getCause();
+                    }
+                    this.future = null; // a new worker is started on next submit
+                }
+            }
+
+            void cancel() {
+                if (this.future != null) {
+                    this.future.cancel(true);
+                }
+            }
+
+            @Override
+            public Void call() throws Exception {
+                try {
+                    while (true) {
+                        final Map.Entry<List<Object>, List<Long>> entry = this.queue.take();
+                        if (entry.getKey().isEmpty()) {
+                            return null;
+                        }
+                        modifyBisecting(this.updater, this.type, this.condition, entry.getKey(),
+                                entry.getValue(), this.invocationID, this.handler);
+                    }
+                } catch (final Throwable ex) {
+                    Throwables.propagateIfPossible(ex, Exception.class);
+                    throw new RuntimeException(ex);
+                }
+            }
+
+            private void submit() throws Throwable {
+                final List<Object> inputs = this.inputs;
+                final List<Long> indexes = this.indexes;
+                this.inputs = Lists.newArrayList();
+                this.indexes = Lists.newArrayList();
+                if (this.queue == null) {
+                    modifyBisecting(this.updater, this.type, this.condition, inputs, indexes,
+                            this.invocationID, this.handler);
+                } else {
+                    if (this.future == null) {
+                        this.future = Data.getExecutor().submit(this);
+                    }
+                    put(Maps.immutableEntry(inputs, indexes));
+                }
+            }
+
+            private void put(final Map.Entry<List<Object>, List<Long>> entry) throws Throwable {
+                // Wait for space in the queue (bounded, so to limit buffered records), checking
+                // whether the worker failed in the meanwhile
+                while (!this.queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+                    if (this.future.isDone()) {
+                        await();
+                        throw new IllegalStateException("Partition worker terminated");
+                    }
+                }
+            }
+
+        }
+
         private Stream<URI> retrieveIDs(final URI type, @Nullable final XPath condition)
                 throws Throwable {
 
-            // Allocate a memory buffer that will overflow to disk after a certain size
+            // IDs are collected in memory as long as their estimated size is below the buffer
+            // size, and then spooled in chunks to a buffer that will overflow to disk
+            final List<URI> ids = Lists.newArrayList();
+            final Serializer serializer = new Serializer();
             final FileBackedOutputStream buffer = new FileBackedOutputStream(
                     Server.this.bufferSize);
 
             try {
-                // Store the IDs of all matching records one per line in the buffer
-                final Writer writer = new OutputStreamWriter(buffer, Charsets.UTF_8);
                 final DataTransaction tx = Server.this.dataStore.begin(true);
                 Stream<Record> cursor = null;
                 try {
                     cursor = tx.retrieve(type, condition, ImmutableSet.<URI>of());
                     cursor.toHandler(new Handler<Record>() {
 
+                        private long size = 0L; // estimated memory size of buffered IDs
+
+                        private boolean spooling = false;
+
                         @Override
                         public void handle(final Record record) throws Throwable {
                             if (record != null) {
-                                writer.write(record.getID().stringValue());
-                                writer.write("\n");
+                                final URI id = record.getID();
+                                ids.add(id);
+                                this.size += 64 + 2 * id.stringValue().length();
+                                if (this.size > Server.this.bufferSize) {
+                                    this.spooling = true;
+                                }
+                            }
+                            if (this.spooling && (ids.size() >= Server.this.chunkSize
+                                    || record == null && !ids.isEmpty())) {
+                                spoolIDs(serializer, buffer, ids);
+                                ids.clear();
                             }
                         }
 
@@ -934,26 +1427,38 @@ public final class Server extends AbstractKnowledgeStore {
                 } finally {
                     closeQuietly(cursor);
                     tx.end(true); // does not matter
-                    writer.flush();
                 }
 
-                // Return a cursor over buffered IDs
-                final BufferedReader reader = buffer.asByteSource().asCharSource(Charsets.UTF_8)
-                        .openBufferedStream();
+                // Fast path: return buffered IDs, sorted, if spooling was not necessary
+                if (!ids.isEmpty()) {
+                    buffer.close();
+                    Collections.sort(ids, Data.getTotalComparator());
+                    return Stream.create(ids);
+                }
+
+                // Otherwise return a cursor over spooled IDs, reading a chunk at a time
+                final InputStream stream = buffer.asByteSource().openBufferedStream();
                 return Stream.create(new AbstractIterator<URI>() {
 
+                    private Iterator<URI> chunk = Iterators.emptyIterator();
+
                     @Override
                     protected URI computeNext() {
                         try {
-                            final String line = reader.readLine();
-                            return line == null ? endOfData() : Data.getValueFactory().createURI(
-                                    line);
+                            while (!this.chunk.hasNext()) {
+                                final List<URI> ids = unspoolIDs(serializer, stream);
+                                if (ids == null) {
+                                    return endOfData();
+                                }
+                                this.chunk = ids.iterator();
+                            }
+                            return this.chunk.next();
                         } catch (final Throwable ex) {
                             throw Throwables.propagate(ex);
                         }
                     }
 
-                }).onClose(buffer);
+                }).onClose(stream, buffer);
 
             } catch (final Throwable ex) {
                 // Release the buffer and propagate
@@ -962,52 +1467,229 @@ public final class Server extends AbstractKnowledgeStore {
             }
         }
 
+        private void spoolIDs(final Serializer serializer, final OutputStream stream,
+                final List<URI> ids) throws IOException {
+
+            // IDs of a chunk are sorted and each ID is encoded as the length of the prefix in
+            // common with the previous ID plus the remaining suffix, serializing the resulting
+            // list of literals (this also applies string compression to suffixes)
+            final List<URI> sortedIDs = Ordering.from(Data.getTotalComparator()).sortedCopy(ids);
+            final List<Literal> literals = Lists.newArrayListWithCapacity(2 * ids.size());
+            final ValueFactory factory = Data.getValueFactory();
+            String previous = "";
+            for (final URI id : sortedIDs) {
+                final String string = id.stringValue();
+                final int max = Math.min(previous.length(), string.length());
+                int prefix = 0;
+                while (prefix < max && previous.charAt(prefix) == string.charAt(prefix)) {
+                    ++prefix;
+                }
+                literals.add(factory.createLiteral(prefix));
+                literals.add(factory.createLiteral(string.substring(prefix)));
+                previous = string;
+            }
+            serializer.toStream(stream, literals);
+        }
+
+        @Nullable
+        private List<URI> unspoolIDs(final Serializer serializer, final InputStream stream)
+                throws IOException {
+
+            // Return null at the end of the stream, otherwise decode the next chunk
+            stream.mark(1);
+            if (stream.read() < 0) {
+                return null;
+            }
+            stream.reset();
+            final List<?> literals = (List<?>) serializer.fromStream(stream);
+            final List<URI> ids = Lists.newArrayListWithCapacity(literals.size() / 2);
+            final ValueFactory factory = Data.getValueFactory();
+            String previous = "";
+            for (int i = 0; i < literals.size(); i += 2) {
+                final int prefix = ((Literal) literals.get(i)).intValue();
+                final String suffix = ((Literal) literals.get(i + 1)).getLabel();
+                previous = previous.substring(0, prefix) + suffix;
+                ids.add(factory.createURI(previous));
+            }
+            return ids;
+        }
+
         @Override
         protected Stream<Record> doMatch(@Nullable final Long timeout,
                 final Map<URI, XPath> conditions, final Map<URI, Set<URI>> ids,
                 final Map<URI, Set<URI>> properties) throws Throwable {
-            // TODO
-            throw new UnsupportedOperationException();
-        }
 
-        @SuppressWarnings("unchecked")
-        @Override
-        protected Outcome doSparqlUpdate(@Nullable Long timeout, @Nullable Stream<? extends Statement> statements) throws Throwable {
+            // Fail if no component has been selected for being returned
+            check(!properties.isEmpty(), Status.ERROR_INVALID_INPUT, null,
+                    "No component selected for projection");
+
+            // Start a read-only datastore TX that will end when the resulting cursor is closed
+            final DataTransaction tx = Server.this.dataStore.begin(true);
 
-            LOGGER.debug("Server.UPDATING");
-            final TripleTransaction tx = Server.this.tripleStore.begin(false);
             try {
-                tx.add(statements);
-                Outcome outcome = newOutcome(Status.OK_BULK, null, null);
-                tx.end(true);
-                return outcome;
+                // Evaluate the match as a streaming join over the records in the datastore
+                final Stream<Record> stream = MatchHelper.match(tx, conditions, ids, properties,
+                        Server.this.chunkSize, timeout);
+
+                // Attach the transaction to the cursor, so that it ends when the latter is closed
+                return attach(tx, stream);
+
             } catch (final Throwable ex) {
-                ex.printStackTrace();
-                tx.end(false); // commit or rollback does not matter
+                tx.end(true); // commit or rollback does not matter
                 throw ex;
             }
-            finally {
-                closeQuietly(statements);
-            }
         }
 
-        @SuppressWarnings("unchecked")
         @Override
-        protected Outcome doSparqlDelete(@Nullable Long timeout, @Nullable Stream<? extends Statement> statements) throws Throwable {
+        protected Outcome doSparqlUpdate(@Nullable final Long timeout,
+                @Nullable final Stream<? extends Statement> statements) throws Throwable {
+            LOGGER.debug("Server.UPDATING");
+            return modifyTriples(true, statements);
+        }
 
+        @Override
+        protected Outcome doSparqlDelete(@Nullable final Long timeout,
+                @Nullable final Stream<? extends Statement> statements) throws Throwable {
             LOGGER.debug("Server.REMOVING");
-            final TripleTransaction tx = Server.this.tripleStore.begin(false);
+            return modifyTriples(false, statements);
+        }
+
+        private Outcome modifyTriples(final boolean add,
+                @Nullable final Stream<? extends Statement> statements) throws Throwable {
+
             try {
+                // Apply all the statements in a single transaction, unless chunking is enabled
+                final Integer chunkSize = Server.this.sparqlUpdateChunkSize;
+                if (statements == null || chunkSize == null) {
+                    final TripleTransaction tx = Server.this.tripleStore.begin(false);
+                    try {
+                        if (statements != null) {
+                            modifyTriples(tx, add, statements);
+                        }
+                        final Outcome outcome = newOutcome(Status.OK_BULK, null, null);
+                        tx.end(true);
+                        return outcome;
+                    } catch (final Throwable ex) {
+                        tx.end(false); // commit or rollback does not matter
+                        throw ex;
+                    }
+                }
+
+                // Otherwise, apply chunks of statements in separate transactions, running up to
+                // 'parallelism' of them concurrently (the TripleStore may serialize them). After
+                // the first failure no further chunk is submitted, and chunks submitted but not
+                // yet started are skipped; chunks already running may still commit, so the
+                // ranges of committed statements (by position in the input) are tracked
+                final RangeSet<Long> committedRanges = TreeRangeSet.create();
+                final AtomicLong committedChunks = new AtomicLong(0L);
+                final AtomicBoolean failed = new AtomicBoolean(false);
+                final List<Future<?>> futures = Lists.newLinkedList();
+                Throwable failure = null;
+                try {
+                    final Iterator<? extends Statement> iterator = statements.iterator();
+                    long index = 0L;
+                    while (iterator.hasNext() && !failed.get()) {
+                        if (Thread.interrupted()) {
+                            throw new InterruptedException();
+                        }
+                        final List<Statement> chunk = Lists.newArrayListWithCapacity(chunkSize);
+                        while (chunk.size() < chunkSize && iterator.hasNext()) {
+                            chunk.add(iterator.next());
+                        }
+                        final Range<Long> range = Range.closedOpen(index, index + chunk.size());
+                        index += chunk.size();
+                        if (futures.size() >= Server.this.parallelism) {
+                            futures.remove(0).get();
+                        }
+                        futures.add(Data.getExecutor().submit(new Callable<Void>() {
+
+                            @Override
+                            public Void call() throws Exception {
+                                if (failed.get()) {
+                                    return null;
+                                }
+                                final TripleTransaction tx = Server.this.tripleStore
+                                        .begin(false);
+                                try {
+                                    modifyTriples(tx, add, chunk);
+                                } catch (final Throwable ex) {
+                                    failed.set(true);
+                                    tx.end(false);
+                                    Throwables.propagateIfPossible(ex, Exception.class);
+                                    throw Throwables.propagate(ex);
+                                }
+                                try {
+                                    tx.end(true);
+                                } catch (final Throwable ex) {
+                                    failed.set(true);
+                                    Throwables.propagateIfPossible(ex, Exception.class);
+                                    throw Throwables.propagate(ex);
+                                }
+                                synchronized (committedRanges) {
+                                    committedRanges.add(range);
+                                }
+                                committedChunks.incrementAndGet();
+                                return null;
+                            }
+
+                        }));
+                    }
+                } catch (final Throwable ex) {
+                    failed.set(true);
+                    failure = ex instanceof ExecutionException ? ex.getCause() : ex;
+                }
+
+                // Wait for pending chunks (at most 'parallelism'), recording the first failure
+                for (final Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (final Throwable ex) {
+                        if (failure == null) {
+                            failure = ex instanceof ExecutionException ? ex.getCause() : ex;
+                        }
+                    }
+                }
+
+                // Report progress: on failure, committed chunks are not rolled back
+                long committedStatements = 0L;
+                final StringBuilder builder = new StringBuilder();
+                for (final Range<Long> range : committedRanges.asRanges()) {
+                    committedStatements += range.upperEndpoint() - range.lowerEndpoint();
+                    builder.append(builder.length() == 0 ? "" : ", ")
+                            .append(range.lowerEndpoint() + 1).append('-')
+                            .append(range.upperEndpoint());
+                }
+                if (failure != null) {
+                    final String ranges = builder.length() == 0 ? "none" : builder.toString();
+                    LOGGER.error("Chunked triple " + (add ? "update" : "delete") + " failed after "
+                            + committedStatements + " statements committed (statements "
+                            + ranges + ")", failure);
+                    return newOutcome(Status.ERROR_BULK, null, "Failed after "
+                            + committedStatements + " statements committed in "
+                            + committedChunks + " chunks (statements " + ranges + "): "
+                            + failure.getMessage());
+                }
+                return newOutcome(Status.OK_BULK, null, committedStatements
+                        + " statements committed in " + committedChunks + " chunks");
+
+            } finally {
+                closeQuietly(statements);
+                invalidateSparqlCache();
+            }
+        }
+
+        private void modifyTriples(final TripleTransaction tx, final boolean add,
+                final Iterable<? extends Statement> statements) throws IOException {
+            if (add) {
+                tx.add(statements);
+            } else {
                 tx.remove(statements);
-                Outcome outcome = newOutcome(Status.OK_BULK, null, null);
-                tx.end(true);
-                return outcome;
-            } catch (final Throwable ex) {
-                tx.end(false); // commit or rollback does not matter
-                throw ex;
             }
-            finally {
-                closeQuietly(statements);
+        }
+
+        private void invalidateSparqlCache() {
+            if (Server.this.sparqlCache != null) {
+                Server.this.sparqlCache.invalidate();
             }
         }
 
@@ -1018,12 +1700,7 @@ public final class Server extends AbstractKnowledgeStore {
                 @Nullable final Set<URI> namedGraphs) throws Throwable {
 
             // Parse the query
-            final ParsedQuery parsedQuery;
-            try {
-                parsedQuery = SparqlHelper.parse(expression, null);
-            } catch (final Throwable ex) {
-                throw newException(Status.ERROR_INVALID_INPUT, null, ex.getMessage(), ex);
-            }
+            final ParsedQuery parsedQuery = parseSparql(expression);
 
             // Override the query dataset, if provided in the operation parameters
             Dataset dataset = parsedQuery.getDataset();
@@ -1039,36 +1716,191 @@ public final class Server extends AbstractKnowledgeStore {
                 dataset = ds;
             }
 
-            // Operate inside a triple store transaction
-            final TripleTransaction tx = Server.this.tripleStore.begin(true);
+            // Lookup query results in the cache, if enabled
+            TupleExpr expr = parsedQuery.getTupleExpr();
+            final SparqlCache cache = Server.this.sparqlCache;
+            String key = cache == null ? null : type.getSimpleName() + "\n"
+                    + SparqlCache.key(expr, dataset, null);
+            final long revision = cache == null ? 0L : cache.getRevision();
+            final CloseableIteration<BindingSet, QueryEvaluationException> cached;
+            cached = cache == null ? null : cache.get(key);
+            if (cached != null) {
+                return toSparqlStream(type, parsedQuery, cached);
+            }
+
+            // Estimate the query cost if thresholds are configured, rejecting expensive queries,
+            // executing them at most sparqlQueueSize at a time (in arrival order) or limiting
+            // their results, in which case the applied limit is logged and returned as a stream
+            // property. Estimation uses its own
+            // transaction, so that no transaction is held while queued behind other queries
+            final long ts = System.currentTimeMillis();
+            String action = ACTION_ACCEPT;
+            if (Server.this.sparqlLimitCost != null || Server.this.sparqlQueueCost != null
+                    || Server.this.sparqlRejectCost != null) {
+                final TripleTransaction tx = Server.this.tripleStore.begin(true);
+                try {
+                    action = getCostAction(Server.this.sparqlCostEstimator.estimate(tx, expr,
+                            timeout));
+                } finally {
+                    tx.end(true); // commit or rollback does not matter
+                }
+            }
+            boolean queued = false;
+            Long limit = null;
+            if (action.equals(ACTION_REJECT)) {
+                throw newException(Status.ERROR_FORBIDDEN, null,
+                        "Query rejected as too expensive (use the explain parameter "
+                                + "to obtain its estimated cost)");
+            } else if (action.equals(ACTION_QUEUE)) {
+                if (timeout == null) {
+                    Server.this.sparqlQueue.acquire();
+                } else if (!Server.this.sparqlQueue.tryAcquire(
+                        Math.max(0L, ts + timeout - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS)) {
+                    throw newException(Status.ERROR_INTERRUPTED, null,
+                            "Timeout expired while queued behind other expensive queries");
+                }
+                queued = true;
+            } else if (action.equals(ACTION_LIMIT) && type != Boolean.class) {
+                limit = Server.this.sparqlAutoLimit;
+                LOGGER.info("{} - query results limited to {} as too expensive",
+                        getInvocationID(), limit);
+                expr = new Slice(expr, 0, limit);
+                key = cache == null ? null : type.getSimpleName() + "\n"
+                        + SparqlCache.key(expr, dataset, null);
+            }
+
+            // Operate inside a triple store transaction, consuming the time left
+            final Long timeLeft = timeout == null ? null : Math.max(1L, ts + timeout
+                    - System.currentTimeMillis());
+            TripleTransaction tx = null;
             try {
-                // Start executing the query, obtaining a Sesame CloseableIteration object
-                final TupleExpr expr = parsedQuery.getTupleExpr();
-                final CloseableIteration<BindingSet, QueryEvaluationException> iteration;
-                iteration = SparqlHelper.evaluate(tx, expr, dataset, null, timeout);
+                tx = Server.this.tripleStore.begin(true);
 
-                // Wrap the iteration object dependings on the requested result
-                if (type == BindingSet.class) {
-                    return attach(tx, (Stream<T>) RDFUtil.toBindingsStream(iteration, parsedQuery
-                            .getTupleExpr().getBindingNames()));
-                } else if (type == Statement.class) {
-                    return (Stream<T>) attach(tx, RDFUtil.toStatementStream(iteration));
-                } else if (type == Boolean.class) {
+                // Start executing the query, obtaining a Sesame CloseableIteration object
+                CloseableIteration<BindingSet, QueryEvaluationException> iteration;
+                iteration = SparqlHelper.evaluate(tx, Server.this.sparqlOptions, expr,
+                        dataset, null, timeLeft);
+
+                // Cache results, if enabled: boolean results are cached at once, while other
+                // results are cached if completely consumed
+                if (cache != null && type == Boolean.class) {
+                    final boolean result;
                     try {
-                        return (Stream<T>) attach(tx, Stream.create(iteration.hasNext()));
+                        result = iteration.hasNext();
                     } finally {
                         iteration.close();
                     }
-                } else {
-                    throw new Error("Unexpected result type: " + type);
+                    final List<BindingSet> results = result ? ImmutableList
+                            .<BindingSet>of(EmptyBindingSet.getInstance()) : ImmutableList
+                            .<BindingSet>of();
+                    cache.put(key, revision, results);
+                    return (Stream<T>) release(queued, attach(tx, Stream.create(result)));
+                } else if (cache != null) {
+                    iteration = cache.populate(key, revision, iteration);
                 }
 
+                // Wrap the iteration object dependings on the requested result
+                return release(queued, attach(tx, toSparqlStream(type, parsedQuery, iteration)))
+                        .setProperty("limit", limit);
+
             } catch (final Throwable ex) {
-                tx.end(true); // commit or rollback does not matter
+                try {
+                    if (tx != null) {
+                        tx.end(true); // commit or rollback does not matter
+                    }
+                } finally {
+                    if (queued) {
+                        Server.this.sparqlQueue.release();
+                    }
+                }
                 throw ex;
             }
         }
 
+        @Override
+        protected Stream<BindingSet> doSparqlExplain(@Nullable final Long timeout,
+                final String expression, @Nullable final Set<URI> defaultGraphs,
+                @Nullable final Set<URI> namedGraphs) throws Throwable {
+
+            // Parse the query; the dataset is not considered by cost estimation
+            final ParsedQuery parsedQuery = parseSparql(expression);
+
+            // Estimate the query cost and the action that would be taken when evaluating it
+            final SparqlCostEstimator.Estimate estimate;
+            final TripleTransaction tx = Server.this.tripleStore.begin(true);
+            try {
+                estimate = Server.this.sparqlCostEstimator.estimate(tx,
+                        parsedQuery.getTupleExpr(), timeout);
+            } finally {
+                tx.end(true); // commit or rollback does not matter
+            }
+
+            // Return a single binding set describing the estimate
+            final ValueFactory factory = Data.getValueFactory();
+            final MapBindingSet bindings = new MapBindingSet();
+            bindings.addBinding("cardinality",
+                    factory.createLiteral((long) estimate.getCardinality()));
+            bindings.addBinding("cost", factory.createLiteral((long) estimate.getCost()));
+            bindings.addBinding("action", factory.createLiteral(getCostAction(estimate)));
+            bindings.addBinding("plan", factory.createLiteral(estimate.getPlan()));
+            return RDFUtil.toBindingsStream(
+                    new CloseableIteratorIteration<BindingSet, QueryEvaluationException>(
+                            Iterators.<BindingSet>singletonIterator(bindings)),
+                    ImmutableList.of("cardinality", "cost", "action", "plan"));
+        }
+
+        private ParsedQuery parseSparql(final String expression) throws OperationException {
+            try {
+                return SparqlHelper.parse(expression, null);
+            } catch (final Throwable ex) {
+                throw newException(Status.ERROR_INVALID_INPUT, null, ex.getMessage(), ex);
+            }
+        }
+
+        private String getCostAction(final SparqlCostEstimator.Estimate estimate) {
+            final double cost = estimate.getCost();
+            if (Server.this.sparqlRejectCost != null && cost > Server.this.sparqlRejectCost) {
+                return ACTION_REJECT;
+            } else if (Server.this.sparqlQueueCost != null && cost > Server.this.sparqlQueueCost) {
+                return ACTION_QUEUE;
+            } else if (Server.this.sparqlLimitCost != null && cost > Server.this.sparqlLimitCost) {
+                return ACTION_LIMIT;
+            }
+            return ACTION_ACCEPT;
+        }
+
+        private <T> Stream<T> release(final boolean queued, final Stream<T> stream) {
+            return !queued ? stream : stream.onClose(new Closeable() {
+
+                @Override
+                public void close() {
+                    Server.this.sparqlQueue.release();
+                }
+
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> Stream<T> toSparqlStream(final Class<T> type, final ParsedQuery parsedQuery,
+                final CloseableIteration<BindingSet, QueryEvaluationException> iteration)
+                throws QueryEvaluationException {
+            if (type == BindingSet.class) {
+                return (Stream<T>) RDFUtil.toBindingsStream(iteration, parsedQuery
+                        .getTupleExpr().getBindingNames());
+            } else if (type == Statement.class) {
+                return (Stream<T>) RDFUtil.toStatementStream(iteration);
+            } else if (type == Boolean.class) {
+                try {
+                    return (Stream<T>) Stream.create(iteration.hasNext());
+                } finally {
+                    iteration.close();
+                }
+            } else {
+                throw new Error("Unexpected result type: " + type);
+            }
+        }
+
         @Override
         protected void doClose() {
             evictClosedSessions();
@@ -1146,6 +1978,42 @@ public final class Server extends AbstractKnowledgeStore {
         @Nullable
         private Integer bufferSize;
 
+        @Nullable
+        private Integer parallelism;
+
+        @Nullable
+        private Long cacheMemorySize;
+
+        @Nullable
+        private Long cacheDiskSize;
+
+        @Nullable
+        private String cachePath;
+
+        @Nullable
+        private Long sparqlCacheSize;
+
+        @Nullable
+        private Integer sparqlUpdateChunkSize;
+
+        @Nullable
+        private Long sparqlLimitCost;
+
+        @Nullable
+        private Long sparqlQueueCost;
+
+        @Nullable
+        private Long sparqlRejectCost;
+
+        @Nullable
+        private Long sparqlAutoLimit;
+
+        @Nullable
+        private Integer sparqlQueueSize;
+
+        @Nullable
+        private Integer sparqlDescribeBatchSize;
+
         Builder(final FileStore fileStore, final DataStore dataStore, final TripleStore tripleStore) {
             this.fileStore = Preconditions.checkNotNull(fileStore);
             this.dataStore = Preconditions.checkNotNull(dataStore);
@@ -1162,6 +2030,66 @@ public final class Server extends AbstractKnowledgeStore {
             return this;
         }
 
+        public Builder parallelism(@Nullable final Integer parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        public Builder cacheMemorySize(@Nullable final Long cacheMemorySize) {
+            this.cacheMemorySize = cacheMemorySize;
+            return this;
+        }
+
+        public Builder cacheDiskSize(@Nullable final Long cacheDiskSize) {
+            this.cacheDiskSize = cacheDiskSize;
+            return this;
+        }
+
+        public Builder cachePath(@Nullable final String cachePath) {
+            this.cachePath = cachePath;
+            return this;
+        }
+
+        public Builder sparqlCacheSize(@Nullable final Long sparqlCacheSize) {
+            this.sparqlCacheSize = sparqlCacheSize;
+            return this;
+        }
+
+        public Builder sparqlUpdateChunkSize(@Nullable final Integer sparqlUpdateChunkSize) {
+            this.sparqlUpdateChunkSize = sparqlUpdateChunkSize;
+            return this;
+        }
+
+        public Builder sparqlLimitCost(@Nullable final Long sparqlLimitCost) {
+            this.sparqlLimitCost = sparqlLimitCost;
+            return this;
+        }
+
+        public Builder sparqlQueueCost(@Nullable final Long sparqlQueueCost) {
+            this.sparqlQueueCost = sparqlQueueCost;
+            return this;
+        }
+
+        public Builder sparqlRejectCost(@Nullable final Long sparqlRejectCost) {
+            this.sparqlRejectCost = sparqlRejectCost;
+            return this;
+        }
+
+        public Builder sparqlAutoLimit(@Nullable final Long sparqlAutoLimit) {
+            this.sparqlAutoLimit = sparqlAutoLimit;
+            return this;
+        }
+
+        public Builder sparqlQueueSize(@Nullable final Integer sparqlQueueSize) {
+            this.sparqlQueueSize = sparqlQueueSize;
+            return this;
+        }
+
+        public Builder sparqlDescribeBatchSize(@Nullable final Integer sparqlDescribeBatchSize) {
+            this.sparqlDescribeBatchSize = sparqlDescribeBatchSize;
+            return this;
+        }
+
         public Server build() {
             return new Server(this);
         }
@@ -0,0 +1,473 @@
+package eu.fbk.knowledgestore.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.ExtensionElem;
+import org.openrdf.query.algebra.Group;
+import org.openrdf.query.algebra.GroupElem;
+import org.openrdf.query.algebra.ProjectionElem;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
+import org.openrdf.query.impl.MapBindingSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.CloseableIteratorIteration;
+
+import eu.fbk.knowledgestore.data.Serializer;
+
+/**
+ * Bounded cache of SPARQL query results, invalidated as a whole on triple store updates.
+ * <p>
+ * Results are cached as the sequence of binding sets produced by query evaluation (from which
+ * tuple, graph and boolean results are derived), keyed by the textual rendering of the query
+ * algebra (where the random names of anonymous variables are replaced with sequential ones),
+ * the query dataset and the supplied bindings. Binding sets are serialized with
+ * {@link Serializer} while they are returned to the client, and the cache is bounded by the
+ * total size in bytes of serialized results; results whose size exceeds 1/16 of that budget are
+ * not cached.
+ * </p>
+ * <p>
+ * An entry is added only if the client consumes all the results. A revision number is
+ * incremented (and the cache cleared) via {@link #invalidate()}, and a result is cached only if
+ * the revision did not change while it was computed. The {@code Server} invalidates the cache
+ * only after SPARQL update and delete operations: modifications of the triple store done by
+ * other means (e.g., by a populator or another server sharing the triple store) are not
+ * detected and make cached results stale, hence the cache must be enabled only if the server is
+ * the only writer of the triple store. Statistics about cache hits, misses, invalidations and
+ * memory usage are logged after each invalidation (at debug level) and at close time.
+ * </p>
+ */
+final class SparqlCache implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SparqlCache.class);
+
+    private final Cache<String, Entry> cache;
+
+    private final long maxEntrySize;
+
+    private final Serializer serializer;
+
+    private final ReadWriteLock lock;
+
+    private long revision;
+
+    // Counters for statistics
+
+    private final AtomicLong hitCount;
+
+    private final AtomicLong missCount;
+
+    private final AtomicLong invalidationCount;
+
+    private final AtomicLong memorySize;
+
+    SparqlCache(final long maxSize) {
+        Preconditions.checkArgument(maxSize > 0);
+        this.maxEntrySize = maxSize / 16;
+        this.serializer = new Serializer();
+        this.lock = new ReentrantReadWriteLock();
+        this.revision = 0L;
+        this.hitCount = new AtomicLong(0);
+        this.missCount = new AtomicLong(0);
+        this.invalidationCount = new AtomicLong(0);
+        this.memorySize = new AtomicLong(0);
+        this.cache = CacheBuilder.newBuilder().maximumWeight(maxSize)
+                .weigher(new Weigher<String, Entry>() {
+
+                    @Override
+                    public int weigh(final String key, final Entry value) {
+                        return weight(key, value);
+                    }
+
+                }).removalListener(new RemovalListener<String, Entry>() {
+
+                    @Override
+                    public void onRemoval(final RemovalNotification<String, Entry> notification) {
+                        SparqlCache.this.memorySize.addAndGet(-weight(notification.getKey(),
+                                notification.getValue()));
+                    }
+
+                }).build();
+        LOGGER.info("{} configured, {} bytes", this.getClass().getSimpleName(), maxSize);
+    }
+
+    /**
+     * Returns the cache key for the query algebra, dataset and bindings specified.
+     */
+    static String key(final TupleExpr expr, @Nullable final Dataset dataset,
+            @Nullable final BindingSet bindings) {
+
+        // Render a copy of the algebra where anonymous variables, whose names are random, are
+        // renamed sequentially (as '-' cannot occur in SPARQL variable names, new names cannot
+        // clash with the ones of query variables)
+        final TupleExpr normalizedExpr = expr.clone();
+        final Map<String, String> names = Maps.newHashMap();
+        normalizedExpr.visit(new QueryModelVisitorBase<RuntimeException>() {
+
+            @Override
+            public void meet(final Var var) {
+                if (var.isAnonymous() && !var.isConstant() && !names.containsKey(var.getName())) {
+                    names.put(var.getName(), "_anon-" + names.size());
+                }
+            }
+
+        });
+        if (!names.isEmpty()) {
+            normalizedExpr.visit(new VarRenamer(names));
+        }
+        final StringBuilder builder = new StringBuilder(normalizedExpr.toString());
+
+        // Append the dataset and the bindings, sorting graphs and binding names
+        if (dataset != null) {
+            builder.append("\ndefault graphs: ").append(
+                    Ordering.usingToString().sortedCopy(dataset.getDefaultGraphs()));
+            builder.append("\nnamed graphs: ").append(
+                    Ordering.usingToString().sortedCopy(dataset.getNamedGraphs()));
+        }
+        if (bindings != null) {
+            for (final String name : Ordering.natural().sortedCopy(bindings.getBindingNames())) {
+                builder.append("\nbinding: ").append(name).append(" = ")
+                        .append(bindings.getValue(name));
+            }
+        }
+        return builder.toString();
+    }
+
+    long getRevision() {
+        this.lock.readLock().lock();
+        try {
+            return this.revision;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns an iteration over the cached results for the key specified, or null if not cached.
+     */
+    @Nullable
+    CloseableIteration<BindingSet, QueryEvaluationException> get(final String key) {
+        final Entry entry = this.cache.getIfPresent(key);
+        if (entry == null) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+        this.hitCount.incrementAndGet();
+        return new CachedIteration(entry);
+    }
+
+    /**
+     * Wraps the iteration over the results for the key specified, computed starting at the
+     * revision specified, so that results are cached if the iteration is completely consumed.
+     */
+    CloseableIteration<BindingSet, QueryEvaluationException> populate(final String key,
+            final long revision,
+            final CloseableIteration<BindingSet, QueryEvaluationException> iteration) {
+        return new PopulatingIteration(key, revision, iteration);
+    }
+
+    /**
+     * Caches the results specified for the key specified, if the revision did not change.
+     */
+    void put(final String key, final long revision, final List<BindingSet> results) {
+        final CloseableIteration<BindingSet, QueryEvaluationException> iteration = populate(
+                key, revision, new CloseableIteratorIteration<BindingSet, //
+                QueryEvaluationException>(results.iterator()));
+        try {
+            while (iteration.hasNext()) {
+                iteration.next();
+            }
+        } catch (final QueryEvaluationException ex) {
+            throw new Error("Unexpected exception (!): " + ex.getMessage(), ex);
+        }
+    }
+
+    private void put(final String key, final long revision, final Entry entry) {
+        // Store the entry while holding the lock, so that a concurrent invalidation cannot occur
+        // between the check of the revision and the update of the cache
+        this.lock.readLock().lock();
+        try {
+            if (revision == this.revision) {
+                this.cache.put(key, entry);
+                this.memorySize.addAndGet(weight(key, entry));
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Discards all the cached results, incrementing the revision number.
+     */
+    void invalidate() {
+        this.lock.writeLock().lock();
+        try {
+            ++this.revision;
+            this.cache.invalidateAll();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        this.invalidationCount.incrementAndGet();
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(getStatistics());
+        }
+    }
+
+    @Override
+    public void close() {
+        LOGGER.info(getStatistics());
+        this.cache.invalidateAll();
+    }
+
+    private String getStatistics() {
+        return String.format("%s - %d hits, %d misses, %d invalidations, %d entries, %d bytes",
+                this.getClass().getSimpleName(), this.hitCount.get(), this.missCount.get(),
+                this.invalidationCount.get(), this.cache.size(), this.memorySize.get());
+    }
+
+    private static int weight(final String key, final Entry entry) {
+        int weight = 2 * key.length() + entry.bytes.length;
+        for (final String name : entry.names) {
+            weight += 2 * name.length();
+        }
+        return weight;
+    }
+
+    private static final class Entry {
+
+        final String[] names;
+
+        final int size;
+
+        final byte[] bytes; // serialized lists of values, in the order of names
+
+        Entry(final String[] names, final int size, final byte[] bytes) {
+            this.names = names;
+            this.size = size;
+            this.bytes = bytes;
+        }
+
+    }
+
+    private static final class VarRenamer extends QueryModelVisitorBase<RuntimeException> {
+
+        private final Map<String, String> names;
+
+        VarRenamer(final Map<String, String> names) {
+            this.names = names;
+        }
+
+        @Override
+        public void meet(final Var var) {
+            var.setName(rename(var.getName()));
+        }
+
+        @Override
+        public void meet(final ExtensionElem elem) {
+            elem.setName(rename(elem.getName()));
+            super.meet(elem);
+        }
+
+        @Override
+        public void meet(final GroupElem elem) {
+            elem.setName(rename(elem.getName()));
+            super.meet(elem);
+        }
+
+        @Override
+        public void meet(final ProjectionElem elem) {
+            elem.setSourceName(rename(elem.getSourceName()));
+            elem.setTargetName(rename(elem.getTargetName()));
+            super.meet(elem);
+        }
+
+        @Override
+        public void meet(final Group group) {
+            final List<String> names = Lists.newArrayList();
+            for (final String name : group.getGroupBindingNames()) {
+                names.add(rename(name));
+            }
+            group.setGroupBindingNames(names);
+            super.meet(group);
+        }
+
+        private String rename(final String name) {
+            final String newName = this.names.get(name);
+            return newName != null ? newName : name;
+        }
+
+    }
+
+    private final class CachedIteration implements
+            CloseableIteration<BindingSet, QueryEvaluationException> {
+
+        private final String[] names;
+
+        private final InputStream stream;
+
+        private int remaining;
+
+        CachedIteration(final Entry entry) {
+            this.names = entry.names;
+            this.stream = new ByteArrayInputStream(entry.bytes);
+            this.remaining = entry.size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.remaining > 0;
+        }
+
+        @Override
+        public BindingSet next() {
+            if (this.remaining <= 0) {
+                throw new NoSuchElementException();
+            }
+            try {
+                // Values of names first seen after the binding set was cached are omitted
+                final List<?> values = (List<?>) SparqlCache.this.serializer
+                        .fromStream(this.stream);
+                final MapBindingSet bindings = new MapBindingSet(this.names.length);
+                for (int i = 0; i < values.size(); ++i) {
+                    final Value value = (Value) values.get(i);
+                    if (value != null) {
+                        bindings.addBinding(this.names[i], value);
+                    }
+                }
+                --this.remaining;
+                return bindings;
+            } catch (final IOException ex) {
+                throw new Error("Unexpected exception (!): " + ex.getMessage(), ex);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            this.remaining = 0;
+        }
+
+    }
+
+    private final class PopulatingIteration implements
+            CloseableIteration<BindingSet, QueryEvaluationException> {
+
+        private final String key;
+
+        private final long revision;
+
+        private final CloseableIteration<BindingSet, QueryEvaluationException> iteration;
+
+        private final Map<String, Integer> names; // binding name -> index in serialized list
+
+        private final List<Value> values;
+
+        @Nullable
+        private ByteArrayOutputStream stream; // null if too big, not serializable or cached
+
+        private int size;
+
+        PopulatingIteration(final String key, final long revision,
+                final CloseableIteration<BindingSet, QueryEvaluationException> iteration) {
+            this.key = key;
+            this.revision = revision;
+            this.iteration = iteration;
+            this.names = Maps.newLinkedHashMap();
+            this.values = Lists.newArrayList();
+            this.stream = new ByteArrayOutputStream();
+            this.size = 0;
+        }
+
+        @Override
+        public boolean hasNext() throws QueryEvaluationException {
+            final boolean hasNext = this.iteration.hasNext();
+            if (!hasNext && this.stream != null) {
+                final String[] names = this.names.keySet().toArray(new String[0]);
+                put(this.key, this.revision, new Entry(names, this.size, //
+                        this.stream.toByteArray()));
+                this.stream = null;
+            }
+            return hasNext;
+        }
+
+        @Override
+        public BindingSet next() throws QueryEvaluationException {
+            final BindingSet bindings = this.iteration.next();
+            if (this.stream != null) {
+                // Serialize the values of the binding set, allocating an index for new names;
+                // the size of the entry is thus exactly the size of serialized results so far
+                this.values.clear();
+                for (final String name : bindings.getBindingNames()) {
+                    Integer index = this.names.get(name);
+                    if (index == null) {
+                        index = this.names.size();
+                        this.names.put(name, index);
+                    }
+                    while (this.values.size() <= index) {
+                        this.values.add(null);
+                    }
+                    this.values.set(index, bindings.getValue(name));
+                }
+                try {
+                    SparqlCache.this.serializer.toStream(this.stream, this.values);
+                    ++this.size;
+                    if (this.stream.size() > SparqlCache.this.maxEntrySize) {
+                        this.stream = null;
+                    }
+                } catch (final UnsupportedOperationException ex) {
+                    LOGGER.debug("Cannot cache SPARQL results: {}", ex.getMessage());
+                    this.stream = null; // some value cannot be serialized
+                } catch (final IOException ex) {
+                    throw new Error("Unexpected exception (!): " + ex.getMessage(), ex);
+                }
+            }
+            return bindings;
+        }
+
+        @Override
+        public void remove() throws QueryEvaluationException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws QueryEvaluationException {
+            this.stream = null;
+            this.iteration.close();
+        }
+
+    }
+
+}
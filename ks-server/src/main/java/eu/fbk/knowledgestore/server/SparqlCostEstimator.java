@@ -0,0 +1,386 @@
+package eu.fbk.knowledgestore.server;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.ArbitraryLengthPath;
+import org.openrdf.query.algebra.BinaryTupleOperator;
+import org.openrdf.query.algebra.BindingSetAssignment;
+import org.openrdf.query.algebra.DescribeOperator;
+import org.openrdf.query.algebra.Difference;
+import org.openrdf.query.algebra.EmptySet;
+import org.openrdf.query.algebra.Filter;
+import org.openrdf.query.algebra.Group;
+import org.openrdf.query.algebra.Intersection;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.LeftJoin;
+import org.openrdf.query.algebra.MultiProjection;
+import org.openrdf.query.algebra.Order;
+import org.openrdf.query.algebra.QueryModelNode;
+import org.openrdf.query.algebra.Service;
+import org.openrdf.query.algebra.SingletonSet;
+import org.openrdf.query.algebra.Slice;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.StatementPattern.Scope;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.UnaryTupleOperator;
+import org.openrdf.query.algebra.Union;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.ZeroLengthPath;
+import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.aduna.iteration.CloseableIteration;
+
+import eu.fbk.knowledgestore.data.Data;
+import eu.fbk.knowledgestore.triplestore.SelectQuery;
+import eu.fbk.knowledgestore.triplestore.TripleTransaction;
+
+/**
+ * Estimator of the cost of SPARQL queries, used to detect runaway queries before evaluating them.
+ * <p>
+ * The estimator walks the query algebra bottom-up, computing for each node the estimated number
+ * of solutions (cardinality) and the estimated number of solutions materialized while evaluating
+ * the node and its descendants (cost). The cardinality of each statement pattern is sampled from
+ * the triple store by counting its matches up to {@value #SAMPLE_LIMIT}, so that sampling has a
+ * bounded cost; sampling queries are also bounded by the timeout of the request, patterns not
+ * sampled in time being assumed to have {@value #SAMPLE_LIMIT} matches. Sampled cardinalities
+ * are cached for {@value #SAMPLE_EXPIRATION} minutes, keyed by the constants of the pattern
+ * (variables are normalized). Cardinalities of other nodes are
+ * derived with simple rules: joins on shared variables produce as many solutions as their larger
+ * argument, while cartesian products multiply them; filters are assumed to halve their input;
+ * unbounded property paths with both ends unbound are assumed to be quadratic in the number of
+ * edges; slices bound both the cardinality and (if no sorting or grouping occurs below them) the
+ * cost of their argument. Statistics ignore the query dataset and initial bindings, and patterns
+ * nested in {@code EXISTS} filters are not considered, so estimates are meant to spot queries
+ * that are expensive by orders of magnitude rather than to be precise.
+ * </p>
+ */
+final class SparqlCostEstimator implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SparqlCostEstimator.class);
+
+    private static final long SAMPLE_LIMIT = 100000;
+
+    private static final long SAMPLE_EXPIRATION = 10;
+
+    private static final double FILTER_SELECTIVITY = 0.5;
+
+    private static final double DESCRIBE_FANOUT = 20;
+
+    private final Cache<String, Long> samples;
+
+    // Counters for statistics
+
+    private final AtomicLong estimateCount;
+
+    private final AtomicLong sampleCount;
+
+    SparqlCostEstimator() {
+        this.samples = CacheBuilder.newBuilder().maximumSize(10000)
+                .expireAfterWrite(SAMPLE_EXPIRATION, TimeUnit.MINUTES).build();
+        this.estimateCount = new AtomicLong(0);
+        this.sampleCount = new AtomicLong(0);
+    }
+
+    /**
+     * Estimates the cost of evaluating the query algebra expression specified, sampling missing
+     * statistics using the transaction supplied within the optional timeout (in milliseconds).
+     */
+    Estimate estimate(final TripleTransaction transaction, final TupleExpr expr,
+            @Nullable final Long timeout) {
+        Preconditions.checkNotNull(transaction);
+        this.estimateCount.incrementAndGet();
+        final long deadline = timeout == null ? Long.MAX_VALUE : System.currentTimeMillis()
+                + timeout;
+        final List<String> plan = Lists.newArrayList();
+        final Estimate estimate = estimate(transaction, expr, deadline, plan, 0);
+        return new Estimate(estimate.cardinality, estimate.cost, Joiner.on('\n').join(plan));
+    }
+
+    @Override
+    public void close() {
+        LOGGER.info("{} - {} estimates, {} samples", this.getClass().getSimpleName(),
+                this.estimateCount, this.sampleCount);
+        this.samples.invalidateAll();
+    }
+
+    private Estimate estimate(final TripleTransaction transaction, final TupleExpr expr,
+            final long deadline, final List<String> plan, final int depth) {
+
+        // Reserve the plan line for the node, filled after its children have been estimated
+        final int line = plan.size();
+        plan.add(null);
+
+        final List<Estimate> args = Lists.newArrayList();
+        if (expr instanceof ArbitraryLengthPath) {
+            args.add(estimate(transaction, ((ArbitraryLengthPath) expr).getPathExpression(),
+                    deadline, plan, depth + 1));
+        } else if (expr instanceof UnaryTupleOperator) {
+            args.add(estimate(transaction, ((UnaryTupleOperator) expr).getArg(), deadline, plan,
+                    depth + 1));
+        } else if (expr instanceof BinaryTupleOperator) {
+            args.add(estimate(transaction, ((BinaryTupleOperator) expr).getLeftArg(), deadline,
+                    plan, depth + 1));
+            args.add(estimate(transaction, ((BinaryTupleOperator) expr).getRightArg(), deadline,
+                    plan, depth + 1));
+        }
+
+        double cardinality;
+        double cost;
+        if (expr instanceof StatementPattern) {
+            cardinality = sample(transaction, (StatementPattern) expr, deadline);
+            cost = cardinality;
+
+        } else if (expr instanceof Join || expr instanceof LeftJoin) {
+            final BinaryTupleOperator join = (BinaryTupleOperator) expr;
+            final Set<String> shared = getVariables(join.getLeftArg());
+            shared.retainAll(getVariables(join.getRightArg()));
+            final double left = args.get(0).cardinality;
+            final double right = args.get(1).cardinality;
+            cardinality = shared.isEmpty() ? left * right : Math.max(left, right);
+            cardinality = expr instanceof LeftJoin ? Math.max(cardinality, left) : cardinality;
+            cost = args.get(0).cost + args.get(1).cost + cardinality;
+
+        } else if (expr instanceof Union) {
+            cardinality = args.get(0).cardinality + args.get(1).cardinality;
+            cost = args.get(0).cost + args.get(1).cost;
+
+        } else if (expr instanceof Difference || expr instanceof Intersection) {
+            cardinality = args.get(0).cardinality;
+            cost = args.get(0).cost + args.get(1).cost;
+
+        } else if (expr instanceof Filter) {
+            cardinality = args.get(0).cardinality * FILTER_SELECTIVITY;
+            cost = args.get(0).cost + args.get(0).cardinality;
+
+        } else if (expr instanceof Order) {
+            cardinality = args.get(0).cardinality;
+            cost = args.get(0).cost + cardinality * Math.log(cardinality + 1) / Math.log(2);
+
+        } else if (expr instanceof Group) {
+            final boolean aggregate = ((Group) expr).getGroupBindingNames().isEmpty();
+            cardinality = aggregate ? 1 : args.get(0).cardinality;
+            cost = args.get(0).cost + args.get(0).cardinality;
+
+        } else if (expr instanceof Slice) {
+            final Slice slice = (Slice) expr;
+            final Estimate arg = args.get(0);
+            cardinality = arg.cardinality;
+            cost = arg.cost;
+            if (slice.hasLimit()) {
+                final double rows = Math.max(slice.getOffset(), 0) + slice.getLimit();
+                cardinality = Math.min(cardinality, slice.getLimit());
+                if (!isBlocking(slice.getArg()) && arg.cardinality > rows) {
+                    cost = arg.cost * rows / arg.cardinality;
+                }
+            }
+
+        } else if (expr instanceof MultiProjection) {
+            cardinality = args.get(0).cardinality
+                    * ((MultiProjection) expr).getProjections().size();
+            cost = args.get(0).cost + cardinality;
+
+        } else if (expr instanceof DescribeOperator) {
+            cardinality = args.get(0).cardinality * DESCRIBE_FANOUT;
+            cost = args.get(0).cost + cardinality;
+
+        } else if (expr instanceof ArbitraryLengthPath) {
+            final ArbitraryLengthPath path = (ArbitraryLengthPath) expr;
+            final double edges = args.get(0).cardinality;
+            final boolean unbound = !path.getSubjectVar().hasValue()
+                    && !path.getObjectVar().hasValue();
+            cardinality = unbound ? edges * edges : edges;
+            cost = args.get(0).cost + cardinality;
+
+        } else if (expr instanceof ZeroLengthPath) {
+            final ZeroLengthPath path = (ZeroLengthPath) expr;
+            final boolean unbound = !path.getSubjectVar().hasValue()
+                    && !path.getObjectVar().hasValue();
+            cardinality = unbound ? SAMPLE_LIMIT : 1;
+            cost = cardinality;
+
+        } else if (expr instanceof BindingSetAssignment) {
+            cardinality = 0;
+            for (@SuppressWarnings("unused")
+            final BindingSet bindings : ((BindingSetAssignment) expr).getBindingSets()) {
+                ++cardinality;
+            }
+            cost = cardinality;
+
+        } else if (expr instanceof SingletonSet) {
+            cardinality = 1;
+            cost = 0;
+
+        } else if (expr instanceof EmptySet) {
+            cardinality = 0;
+            cost = 0;
+
+        } else if (expr instanceof Service) {
+            cardinality = SAMPLE_LIMIT; // no statistics for remote endpoints
+            cost = cardinality;
+
+        } else {
+            // Extension, Projection, Distinct, Reduced, QueryRoot and unknown nodes
+            cardinality = 0;
+            cost = 0;
+            for (final Estimate arg : args) {
+                cardinality = Math.max(cardinality, arg.cardinality);
+                cost += arg.cost;
+            }
+        }
+
+        plan.set(line, String.format("%s%s (cardinality=%.0f, cost=%.0f)",
+                Strings.repeat("  ", depth), expr.getSignature(), cardinality, cost));
+        return new Estimate(cardinality, cost, null);
+    }
+
+    private long sample(final TripleTransaction transaction, final StatementPattern pattern,
+            final long deadline) {
+
+        // Render the pattern with normalized variable names, to be used also as cache key
+        final Map<String, String> names = Maps.newHashMap();
+        String key = render(pattern.getSubjectVar(), names) + " "
+                + render(pattern.getPredicateVar(), names) + " "
+                + render(pattern.getObjectVar(), names);
+        if (pattern.getScope() == Scope.NAMED_CONTEXTS && pattern.getContextVar() != null) {
+            key = "GRAPH " + render(pattern.getContextVar(), names) + " { " + key + " }";
+        }
+
+        // Lookup cached statistics, or count matches up to SAMPLE_LIMIT within the deadline
+        // (only counts completed in time are cached)
+        Long count = this.samples.getIfPresent(key);
+        final long timeout = deadline - System.currentTimeMillis();
+        if (count == null && timeout <= 0) {
+            LOGGER.debug("No time left to sample cardinality of {} (assuming {})", key,
+                    SAMPLE_LIMIT);
+            count = SAMPLE_LIMIT;
+        } else if (count == null) {
+            count = SAMPLE_LIMIT;
+            CloseableIteration<BindingSet, QueryEvaluationException> iteration = null;
+            try {
+                final SelectQuery query = SelectQuery.from("SELECT (COUNT(*) AS ?n) WHERE { "
+                        + "SELECT * WHERE { " + key + " } LIMIT " + SAMPLE_LIMIT + " }");
+                iteration = transaction.query(query, null,
+                        deadline == Long.MAX_VALUE ? null : timeout);
+                if (iteration.hasNext()) {
+                    final Value value = iteration.next().getValue("n");
+                    if (value instanceof Literal) {
+                        count = ((Literal) value).longValue();
+                    }
+                }
+                this.sampleCount.incrementAndGet();
+                this.samples.put(key, count);
+            } catch (final Throwable ex) {
+                LOGGER.debug("Cannot sample cardinality of " + key + " (assuming "
+                        + SAMPLE_LIMIT + ")", ex);
+            } finally {
+                if (iteration != null) {
+                    try {
+                        iteration.close();
+                    } catch (final Throwable ex) {
+                        LOGGER.error("Error closing sampling iteration", ex);
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private static String render(final Var var, final Map<String, String> names) {
+        final Value value = var.getValue();
+        if (value != null && !(value instanceof BNode)) {
+            return Data.toString(value, null);
+        }
+        String name = names.get(var.getName());
+        if (name == null) {
+            name = "?v" + names.size();
+            names.put(var.getName(), name);
+        }
+        return name;
+    }
+
+    private static Set<String> getVariables(final TupleExpr expr) {
+        final Set<String> variables = Sets.newHashSet();
+        expr.visit(new QueryModelVisitorBase<RuntimeException>() {
+
+            @Override
+            public void meet(final Var var) {
+                if (!var.hasValue()) {
+                    variables.add(var.getName());
+                }
+            }
+
+        });
+        return variables;
+    }
+
+    private static boolean isBlocking(final TupleExpr expr) {
+        final boolean[] blocking = new boolean[1];
+        expr.visit(new QueryModelVisitorBase<RuntimeException>() {
+
+            @Override
+            protected void meetNode(final QueryModelNode node) {
+                if (node instanceof Order || node instanceof Group) {
+                    blocking[0] = true;
+                } else if (node instanceof TupleExpr) {
+                    super.meetNode(node);
+                }
+            }
+
+        });
+        return blocking[0];
+    }
+
+    static final class Estimate {
+
+        private final double cardinality;
+
+        private final double cost;
+
+        @Nullable
+        private final String plan;
+
+        Estimate(final double cardinality, final double cost, @Nullable final String plan) {
+            this.cardinality = cardinality;
+            this.cost = cost;
+            this.plan = plan;
+        }
+
+        double getCardinality() {
+            return this.cardinality;
+        }
+
+        double getCost() {
+            return this.cost;
+        }
+
+        @Nullable
+        String getPlan() {
+            return this.plan;
+        }
+
+    }
+
+}
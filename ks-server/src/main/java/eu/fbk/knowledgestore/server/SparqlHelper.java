@@ -4,13 +4,18 @@ import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Sets;
 
 import org.openrdf.model.BNode;
 import org.openrdf.model.URI;
@@ -22,21 +27,25 @@ import org.openrdf.query.MalformedQueryException;
 import org.openrdf.query.QueryEvaluationException;
 import org.openrdf.query.algebra.ArbitraryLengthPath;
 import org.openrdf.query.algebra.BinaryTupleOperator;
+import org.openrdf.query.algebra.BindingSetAssignment;
 import org.openrdf.query.algebra.DescribeOperator;
 import org.openrdf.query.algebra.Distinct;
+import org.openrdf.query.algebra.Extension;
 import org.openrdf.query.algebra.Filter;
 import org.openrdf.query.algebra.Group;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.MultiProjection;
 import org.openrdf.query.algebra.Order;
 import org.openrdf.query.algebra.Projection;
+import org.openrdf.query.algebra.Reduced;
 import org.openrdf.query.algebra.Service;
 import org.openrdf.query.algebra.Slice;
 import org.openrdf.query.algebra.StatementPattern;
 import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.UnaryTupleOperator;
 import org.openrdf.query.algebra.ZeroLengthPath;
 import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
-import org.openrdf.query.algebra.evaluation.QueryBindingSet;
 import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
-import org.openrdf.query.algebra.evaluation.iterator.DescribeIteration;
 import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
 import org.openrdf.query.impl.EmptyBindingSet;
 import org.openrdf.query.parser.ParsedBooleanQuery;
@@ -66,17 +75,59 @@ import org.openrdf.query.parser.sparql.ast.SyntaxTreeBuilder;
 import org.openrdf.query.parser.sparql.ast.SyntaxTreeBuilderTreeConstants;
 import org.openrdf.query.parser.sparql.ast.TokenMgrError;
 import org.openrdf.query.parser.sparql.ast.VisitorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import info.aduna.iteration.CloseableIteration;
 import info.aduna.iteration.ConvertingIteration;
+import info.aduna.iteration.IterationWrapper;
 
 import eu.fbk.knowledgestore.data.Data;
+import eu.fbk.knowledgestore.internal.rdf.CompactBindingSet;
 import eu.fbk.knowledgestore.triplestore.SelectQuery;
+import eu.fbk.knowledgestore.triplestore.TripleStore;
 import eu.fbk.knowledgestore.triplestore.TripleTransaction;
 
 final class SparqlHelper {
 
-    static ParsedQuery parse(final String queryStr, final String baseURI)
+    private static final Logger LOGGER = LoggerFactory.getLogger(SparqlHelper.class);
+
+    /**
+     * A bounded cache of parsed queries, indexed by base URI and query string. Cached queries are
+     * used as prototypes and never returned directly, as their algebraic expressions would be
+     * shared among concurrent executions.
+     */
+    private static final Cache<String, ParsedQuery> PARSE_CACHE = CacheBuilder.newBuilder()
+            .maximumSize(1024).build();
+
+    static ParsedQuery parse(final String queryStr, @Nullable final String baseURI)
+            throws MalformedQueryException {
+        final String key = baseURI + "\n" + queryStr;
+        ParsedQuery query = PARSE_CACHE.getIfPresent(key);
+        if (query == null) {
+            query = parseQuery(queryStr, baseURI);
+            PARSE_CACHE.put(key, query);
+        }
+        return copy(query);
+    }
+
+    private static ParsedQuery copy(final ParsedQuery query) {
+        final String queryStr = query.getSourceString();
+        final TupleExpr tupleExpr = query.getTupleExpr().clone();
+        final ParsedQuery result;
+        if (query instanceof ParsedTupleQuery) {
+            result = new ParsedTupleQuery(queryStr, tupleExpr);
+        } else if (query instanceof ParsedBooleanQuery) {
+            result = new ParsedBooleanQuery(queryStr, tupleExpr);
+        } else {
+            result = new ParsedGraphQuery(queryStr, tupleExpr,
+                    ((ParsedGraphQuery) query).getQueryNamespaces());
+        }
+        result.setDataset(query.getDataset()); // never modified, can be shared
+        return result;
+    }
+
+    private static ParsedQuery parseQuery(final String queryStr, @Nullable final String baseURI)
             throws MalformedQueryException {
         try {
             final ASTQueryContainer qc = SyntaxTreeBuilder.parseQuery(queryStr);
@@ -146,41 +197,89 @@ final class SparqlHelper {
     }
 
     static CloseableIteration<BindingSet, QueryEvaluationException> evaluate(
-            final TripleTransaction transaction, final TupleExpr expr,
+            final TripleTransaction transaction, final Options options, final TupleExpr expr,
             @Nullable final Dataset dataset, @Nullable final BindingSet bindings,
             @Nullable final Long timeout) throws QueryEvaluationException {
 
         Preconditions.checkNotNull(transaction);
+        Preconditions.checkNotNull(options);
+
+        // Keep track of the iterations obtained from the TripleStore and not closed yet, so that
+        // they are released when the returned iteration is closed, even if some intermediate
+        // iteration (e.g., DescribeIteration) does not propagate the close() call
+        final Set<CloseableIteration<BindingSet, QueryEvaluationException>> iterations = Sets
+                .newConcurrentHashSet();
+
+        final EvaluationStrategy strategy = accessesStore(expr) ? new DelegatingEvaluationStrategy(
+                transaction, options, dataset, timeout, iterations) : new LocalEvaluationStrategy(
+                transaction, options, dataset, timeout);
+
+        return new IterationWrapper<BindingSet, QueryEvaluationException>(strategy.evaluate(expr,
+                bindings != null ? bindings : EmptyBindingSet.getInstance())) {
+
+            @Override
+            protected void handleClose() throws QueryEvaluationException {
+                try {
+                    super.handleClose();
+                } finally {
+                    int count = 0;
+                    for (final CloseableIteration<?, ?> iteration : iterations) {
+                        try {
+                            iteration.close();
+                            ++count;
+                        } catch (final Throwable ex) {
+                            LOGGER.error("Error closing TripleStore iteration", ex);
+                        }
+                    }
+                    if (count > 0) {
+                        LOGGER.debug("{} pending TripleStore iterations closed", count);
+                    }
+                }
+            }
+
+        };
+    }
 
-        final AtomicBoolean delegate = new AtomicBoolean(false);
+    private static boolean accessesStore(final TupleExpr expr) {
+        final AtomicBoolean result = new AtomicBoolean(false);
         expr.visit(new QueryModelVisitorBase<RuntimeException>() {
 
             @Override
             public void meet(final StatementPattern node) throws RuntimeException {
-                delegate.set(true);
+                result.set(true);
             }
 
         });
+        return result.get();
+    }
 
-        final EvaluationStrategy strategy = delegate.get() ? new DelegatingEvaluationStrategy(
-                transaction, dataset, timeout, false) : new LocalEvaluationStrategy(transaction,
-                dataset, timeout);
+    private static final Function<Value, Value> SKOLEMIZER = new Function<Value, Value>() {
 
-        return strategy
-                .evaluate(expr, bindings != null ? bindings : EmptyBindingSet.getInstance());
-    }
+        @Override
+        public Value apply(final Value value) {
+            return value instanceof BNode ? Data.getValueFactory().createURI("bnode:",
+                    ((BNode) value).getID()) : value;
+        }
 
-    private static Value skolemize(final Value value) {
-        return value instanceof BNode ? Data.getValueFactory().createURI("bnode:",
-                ((BNode) value).getID()) : value;
-    }
+    };
 
-    private static BindingSet skolemize(final BindingSet bindings) {
-        final QueryBindingSet result = new QueryBindingSet();
-        for (final String name : bindings.getBindingNames()) {
-            result.setBinding(name, skolemize(bindings.getValue(name)));
+    private static final Function<Value, Value> DESKOLEMIZER = new Function<Value, Value>() {
+
+        @Override
+        public Value apply(final Value value) {
+            if (value instanceof URI) {
+                final URI uri = (URI) value;
+                if (uri.getNamespace().equals("bnode:")) {
+                    return Data.getValueFactory().createBNode(uri.getLocalName());
+                }
+            }
+            return value;
         }
-        return result;
+
+    };
+
+    private static BindingSet skolemize(final BindingSet bindings) {
+        return CompactBindingSet.rewrite(bindings, SKOLEMIZER); // rewritten lazily
     }
 
     private static CloseableIteration<BindingSet, QueryEvaluationException> skolemize(
@@ -196,23 +295,8 @@ final class SparqlHelper {
         };
     }
 
-    private static Value deskolemize(final Value value) {
-        if (value instanceof URI) {
-            final URI uri = (URI) value;
-            if (uri.getNamespace().equals("bnode:")) {
-                return Data.getValueFactory().createBNode(uri.getLocalName());
-            }
-        }
-        return value;
-    }
-
-    @Nullable
-    private static BindingSet deskolemize(@Nullable final BindingSet bindings) {
-        final QueryBindingSet result = new QueryBindingSet();
-        for (final String name : bindings.getBindingNames()) {
-            result.setBinding(name, deskolemize(bindings.getValue(name)));
-        }
-        return result;
+    private static BindingSet deskolemize(final BindingSet bindings) {
+        return CompactBindingSet.rewrite(bindings, DESKOLEMIZER); // rewritten lazily
     }
 
     private static CloseableIteration<BindingSet, QueryEvaluationException> deskolemize(
@@ -228,17 +312,42 @@ final class SparqlHelper {
         };
     }
 
+    /**
+     * Options controlling the evaluation of SPARQL queries.
+     * <p>
+     * The describe batch size is the maximum number of resources whose descriptions are fetched
+     * with a single triple store query when evaluating a {@code DESCRIBE} query.
+     * </p>
+     */
+    static final class Options {
+
+        private final int describeBatchSize;
+
+        Options(final int describeBatchSize) {
+            Preconditions.checkArgument(describeBatchSize > 0);
+            this.describeBatchSize = describeBatchSize;
+        }
+
+        int getDescribeBatchSize() {
+            return this.describeBatchSize;
+        }
+
+    }
+
     private static final class LocalEvaluationStrategy extends EvaluationStrategyImpl {
 
         private final TripleTransaction transaction;
 
+        private final Options options;
+
         @Nullable
         private final Long timeout;
 
-        public LocalEvaluationStrategy(final TripleTransaction transaction, final Dataset dataset,
-                @Nullable final Long timeout) {
+        public LocalEvaluationStrategy(final TripleTransaction transaction,
+                final Options options, final Dataset dataset, @Nullable final Long timeout) {
             super(null, dataset, null);
             this.transaction = Preconditions.checkNotNull(transaction);
+            this.options = options;
             this.timeout = timeout;
         }
 
@@ -246,12 +355,10 @@ final class SparqlHelper {
         public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(
                 final DescribeOperator expr, final BindingSet bindings)
                 throws QueryEvaluationException {
-            return skolemize(new DescribeIteration(//
+            return skolemize(new BatchDescribeIteration(//
                     deskolemize(evaluate(expr.getArg(), bindings)), //
-                    new DelegatingEvaluationStrategy(this.transaction, this.dataset, this.timeout,
-                            true), //
-                    expr.getBindingNames(), //
-                    bindings));
+                    expr.getBindingNames(), bindings, this.transaction, this.options, //
+                    this.dataset, this.timeout, SKOLEMIZER, DESKOLEMIZER));
         }
 
     }
@@ -260,42 +367,46 @@ final class SparqlHelper {
 
         private final TripleTransaction transaction;
 
+        private final Options options;
+
         @Nullable
         private final Long timeout;
 
-        private final boolean skolemize;
+        private final Set<CloseableIteration<BindingSet, QueryEvaluationException>> iterations;
 
         public DelegatingEvaluationStrategy(final TripleTransaction transaction,
-                final Dataset dataset, @Nullable final Long timeout, final boolean skolemize) {
+                final Options options, final Dataset dataset, @Nullable final Long timeout,
+                final Set<CloseableIteration<BindingSet, QueryEvaluationException>> iterations) {
             super(null, dataset, null);
             this.transaction = transaction;
+            this.options = options;
             this.timeout = timeout;
-            this.skolemize = skolemize;
+            this.iterations = iterations;
         }
 
         @Override
         public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(
                 final DescribeOperator expr, final BindingSet bindings)
                 throws QueryEvaluationException {
-            return skolemize(new DescribeIteration(//
+            return skolemize(new BatchDescribeIteration(//
                     deskolemize(evaluate(expr.getArg(), bindings)), //
-                    this.skolemize ? this : new DelegatingEvaluationStrategy(this.transaction,
-                            this.dataset, this.timeout, true), //
-                    expr.getBindingNames(), //
-                    bindings));
+                    expr.getBindingNames(), bindings, this.transaction, this.options, //
+                    this.dataset, this.timeout, SKOLEMIZER, DESKOLEMIZER));
         }
 
         @Override
         public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(
                 final Projection expr, final BindingSet bindings) throws QueryEvaluationException {
-            return delegate(expr, bindings);
+            final SelectQuery query = render(expr);
+            return query != null ? delegate(query, bindings) : super.evaluate(expr, bindings);
         }
 
         @Override
         public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(
                 final BinaryTupleOperator expr, final BindingSet bindings)
                 throws QueryEvaluationException {
-            return delegate(expr, bindings);
+            final SelectQuery query = render(expr);
+            return query != null ? delegate(query, bindings) : super.evaluate(expr, bindings);
         }
 
         @Override
@@ -308,7 +419,8 @@ final class SparqlHelper {
         @Override
         public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(
                 final Filter expr, final BindingSet bindings) throws QueryEvaluationException {
-            return delegate(expr, bindings);
+            final SelectQuery query = render(expr);
+            return query != null ? delegate(query, bindings) : super.evaluate(expr, bindings);
         }
 
         @Override
@@ -322,7 +434,8 @@ final class SparqlHelper {
         public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(
                 final ArbitraryLengthPath expr, final BindingSet bindings)
                 throws QueryEvaluationException {
-            return delegate(expr, bindings);
+            final SelectQuery query = render(expr);
+            return query != null ? delegate(query, bindings) : super.evaluate(expr, bindings);
         }
 
         @Override
@@ -334,39 +447,117 @@ final class SparqlHelper {
         @Override
         public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(final Slice expr,
                 final BindingSet bindings) throws QueryEvaluationException {
-            return delegate(expr, bindings);
+            final SelectQuery query = render(expr);
+            return query != null ? delegate(query, bindings) : super.evaluate(pushDown(expr),
+                    bindings);
         }
 
         @Override
         public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(
                 final Distinct expr, final BindingSet bindings) throws QueryEvaluationException {
-            return delegate(expr, bindings);
+            final SelectQuery query = render(expr);
+            return query != null ? delegate(query, bindings) : super.evaluate(expr, bindings);
         }
 
         @Override
         public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(final Group expr,
                 final BindingSet bindings) throws QueryEvaluationException {
-            return delegate(expr, bindings);
+            final SelectQuery query = render(expr);
+            return query != null ? delegate(query, bindings) : super.evaluate(expr, bindings);
         }
 
         @Override
         public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(final Order expr,
                 final BindingSet bindings) throws QueryEvaluationException {
-            return delegate(expr, bindings);
+            final SelectQuery query = render(expr);
+            return query != null ? delegate(query, bindings) : super.evaluate(expr, bindings);
         }
 
-        private CloseableIteration<BindingSet, QueryEvaluationException> delegate(
-                final TupleExpr expr, final BindingSet bindings) throws QueryEvaluationException {
+        @Override
+        public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(final Join expr,
+                final BindingSet bindings) throws QueryEvaluationException {
+            // Called only for joins that cannot be delegated as a whole: evaluate them as bind
+            // joins, unless the join was built by a bind join whose right argument could not be
+            // delegated with the VALUES pushed in (fall back to a nested loop join)
+            return expr.getLeftArg() instanceof BindingSetAssignment ? super.evaluate(expr,
+                    bindings) : new BindJoinIteration(this, expr, bindings);
+        }
+
+        private Slice pushDown(final Slice expr) {
+
+            // Slices without limit cannot be pushed down
+            if (!expr.hasLimit()) {
+                return expr;
+            }
+
+            // Descend through nodes producing at least one result for each input, in order. A
+            // REDUCED node is removed, as not eliminating duplicates is allowed by its semantics
+            final Slice result = expr.clone();
+            UnaryTupleOperator parent = result;
+            TupleExpr node = result.getArg();
+            while (node instanceof Extension || node instanceof Projection
+                    || node instanceof MultiProjection || node instanceof Reduced) {
+                if (node instanceof Reduced) {
+                    node = ((Reduced) node).getArg();
+                    parent.setArg(node);
+                } else {
+                    parent = (UnaryTupleOperator) node;
+                    node = parent.getArg();
+                }
+            }
+
+            // Limit the results of the reached node to offset + limit, so that the sub-tree can
+            // be delegated with its LIMIT clause, while the original slice is applied locally
+            if (parent == result) {
+                return expr;
+            }
+            final long offset = Math.max(expr.getOffset(), 0L);
+            parent.setArg(new Slice(node, 0L, offset + expr.getLimit()));
+            return result;
+        }
 
+        @Nullable
+        private SelectQuery render(final TupleExpr expr) {
             try {
-                // Skolemize bindings if necessary
-                final BindingSet actualBindings = this.skolemize ? skolemize(bindings) : bindings;
+                return SelectQuery.from(expr, this.dataset);
+            } catch (final eu.fbk.knowledgestore.data.ParseException ex) {
+                // Cannot be rendered to SPARQL: evaluate the node locally, delegating its args
+                LOGGER.debug("Evaluating locally " + expr.getClass().getSimpleName() + " node",
+                        ex);
+                return null;
+            }
+        }
+
+        private CloseableIteration<BindingSet, QueryEvaluationException> delegate(
+                final TupleExpr expr, final BindingSet bindings) throws QueryEvaluationException {
+            // Convert the algebraic sub-tree into a SelectQuery
+            return delegate(SelectQuery.from(expr, this.dataset), bindings);
+        }
 
-                // Convert the algebraic sub-tree into a SelectQuery
-                final SelectQuery query = SelectQuery.from(expr, this.dataset);
+        private CloseableIteration<BindingSet, QueryEvaluationException> delegate(
+                final SelectQuery query, final BindingSet bindings)
+                throws QueryEvaluationException {
 
-                // Delegate to TripleStore component
-                return this.transaction.query(query, actualBindings, this.timeout);
+            try {
+                // Delegate to TripleStore component, tracking the iteration until closed
+                final Set<CloseableIteration<BindingSet, QueryEvaluationException>> iterations;
+                iterations = this.iterations;
+                final CloseableIteration<BindingSet, QueryEvaluationException> iteration;
+                iteration = new IterationWrapper<BindingSet, QueryEvaluationException>(
+                        this.transaction.query(query, bindings, this.timeout)) {
+
+                    @Override
+                    protected void handleClose() throws QueryEvaluationException {
+                        try {
+                            super.handleClose();
+                        } finally {
+                            iterations.remove(this);
+                        }
+                    }
+
+                };
+                iterations.add(iteration);
+                return iteration;
 
             } catch (final IOException ex) {
                 throw new QueryEvaluationException(ex);
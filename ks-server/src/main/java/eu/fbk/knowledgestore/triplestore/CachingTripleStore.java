@@ -0,0 +1,386 @@
+package eu.fbk.knowledgestore.triplestore;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.CloseableIteratorIteration;
+
+import eu.fbk.knowledgestore.data.Data;
+import eu.fbk.knowledgestore.data.Handler;
+
+/**
+ * A {@code TripleStore} wrapper caching the results of statement pattern lookups and SPARQL
+ * queries.
+ * <p>
+ * This wrapper aims at improving the performances of repeated
+ * {@link TripleTransaction#get(Resource, URI, Value, Resource) get} and
+ * {@link TripleTransaction#query(SelectQuery, BindingSet, Long) query} calls, such as the ones
+ * issued by the UI and by the evaluation of {@code DESCRIBE} queries. Results are kept in a
+ * global cache shared by all the transactions, keyed by the statement pattern or by the query
+ * string and the supplied bindings, and bounded by an estimate of their total size in bytes
+ * ({@code maxSize}); results whose size exceeds 1/16 of that budget are not cached. An entry is
+ * added only if its results are completely consumed.
+ * </p>
+ * <p>
+ * Consistency is enforced through a revision number, which is incremented (and the cache
+ * cleared) every time a transaction that modified the triple store (via
+ * {@link TripleTransaction#add(Iterable) add}, {@link TripleTransaction#remove(Iterable) remove}
+ * or {@link TripleTransaction#infer(Handler) infer}) commits, as well as on
+ * {@link TripleStore#reset() reset}. A transaction uses the cache only if the revision did not
+ * change since the transaction started and the transaction did not modify the triple store
+ * itself, so that it never observes results inconsistent with its own view of the data. Note
+ * that modifications not done through this wrapper are not detected.
+ * </p>
+ * <p>
+ * Some statistics about the number of cache hits, misses and invalidations are logged at close
+ * time.
+ * </p>
+ */
+public final class CachingTripleStore extends ForwardingTripleStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingTripleStore.class);
+
+    private static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+    private final TripleStore delegate;
+
+    private final long maxEntrySize;
+
+    private final Cache<String, List<?>> cache;
+
+    private final ReadWriteLock lock;
+
+    private volatile long revision;
+
+    // Counters for statistics
+
+    private final AtomicLong hitCount;
+
+    private final AtomicLong missCount;
+
+    private final AtomicLong invalidationCount;
+
+    private final AtomicLong memorySize;
+
+    /**
+     * Creates a new instance for the wrapped {@code TripleStore} specified.
+     *
+     * @param delegate
+     *            the wrapped {@code TripleStore}
+     * @param maxSize
+     *            the maximum size in bytes of cached results (estimated); if null defaults to 64
+     *            MB
+     */
+    public CachingTripleStore(final TripleStore delegate, @Nullable final Long maxSize) {
+
+        final long actualMaxSize = MoreObjects.firstNonNull(maxSize, DEFAULT_MAX_SIZE);
+        Preconditions.checkArgument(actualMaxSize > 0);
+
+        this.delegate = Preconditions.checkNotNull(delegate);
+        this.maxEntrySize = actualMaxSize / 16;
+        this.lock = new ReentrantReadWriteLock(true);
+        this.revision = 0L;
+        this.hitCount = new AtomicLong(0);
+        this.missCount = new AtomicLong(0);
+        this.invalidationCount = new AtomicLong(0);
+        this.memorySize = new AtomicLong(0);
+        this.cache = CacheBuilder.newBuilder().maximumWeight(actualMaxSize)
+                .weigher(new Weigher<String, List<?>>() {
+
+                    @Override
+                    public int weigh(final String key, final List<?> value) {
+                        return weight(key, value);
+                    }
+
+                }).removalListener(new RemovalListener<String, List<?>>() {
+
+                    @Override
+                    public void onRemoval(final RemovalNotification<String, List<?>> notification) {
+                        CachingTripleStore.this.memorySize.addAndGet(-weight(
+                                notification.getKey(), notification.getValue()));
+                    }
+
+                }).build();
+
+        LOGGER.info("{} configured, {} bytes", getClass().getSimpleName(), actualMaxSize);
+    }
+
+    @Override
+    protected TripleStore delegate() {
+        return this.delegate;
+    }
+
+    @Override
+    public TripleTransaction begin(final boolean readOnly) throws IOException {
+        // Need to acquire the lock to prevent an invalidation in the meanwhile
+        this.lock.readLock().lock();
+        try {
+            final long revision = this.revision;
+            return new CachingTripleTransaction(super.begin(readOnly), revision);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void reset() throws IOException {
+        try {
+            super.reset();
+        } finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            LOGGER.info("{} - {} hits, {} misses, {} invalidations, {} entries, {} bytes",
+                    getClass().getSimpleName(), this.hitCount, this.missCount,
+                    this.invalidationCount, this.cache.size(), this.memorySize);
+            this.cache.invalidateAll();
+        } finally {
+            super.close();
+        }
+    }
+
+    private void invalidate() {
+        this.lock.writeLock().lock();
+        try {
+            ++this.revision;
+            this.cache.invalidateAll();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        this.invalidationCount.incrementAndGet();
+    }
+
+    private static int weight(final String key, final List<?> results) {
+        long weight = 2 * key.length() + 16;
+        for (final Object result : results) {
+            if (result instanceof Statement) {
+                final Statement statement = (Statement) result;
+                weight += 16 + weight(statement.getSubject()) + weight(statement.getPredicate())
+                        + weight(statement.getObject()) + weight(statement.getContext());
+            } else {
+                final BindingSet bindings = (BindingSet) result;
+                weight += 16;
+                for (final String name : bindings.getBindingNames()) {
+                    weight += 8 + weight(bindings.getValue(name));
+                }
+            }
+        }
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+    private static int weight(@Nullable final Value value) {
+        return value == null ? 0 : 24 + 2 * value.stringValue().length();
+    }
+
+    private static String format(@Nullable final Value value) {
+        return value == null ? "*" : Data.toString(value, null);
+    }
+
+    private final class CachingTripleTransaction extends ForwardingTripleTransaction {
+
+        private final TripleTransaction delegate;
+
+        private final long localRevision;
+
+        private boolean modified;
+
+        CachingTripleTransaction(final TripleTransaction delegate, final long revision) {
+            this.delegate = Preconditions.checkNotNull(delegate);
+            this.localRevision = revision;
+            this.modified = false;
+        }
+
+        @Override
+        protected TripleTransaction delegate() {
+            return this.delegate;
+        }
+
+        @Override
+        public CloseableIteration<? extends Statement, ? extends Exception> get(
+                @Nullable final Resource subject, @Nullable final URI predicate,
+                @Nullable final Value object, @Nullable final Resource context)
+                throws IOException, IllegalStateException {
+
+            if (!isCacheable()) {
+                return super.get(subject, predicate, object, context);
+            }
+
+            final String key = "get " + format(subject) + " " + format(predicate) + " "
+                    + format(object) + " " + format(context);
+            final List<Statement> cached = lookup(key);
+            if (cached != null) {
+                return new CloseableIteratorIteration<Statement, Exception>(cached.iterator());
+            }
+            return populate(key, super.get(subject, predicate, object, context));
+        }
+
+        @Override
+        public CloseableIteration<BindingSet, QueryEvaluationException> query(
+                final SelectQuery query, @Nullable final BindingSet bindings,
+                @Nullable final Long timeout) throws IOException, UnsupportedOperationException,
+                IllegalStateException {
+
+            if (!isCacheable()) {
+                return super.query(query, bindings, timeout);
+            }
+
+            final StringBuilder builder = new StringBuilder("query ").append(query.getString());
+            if (bindings != null) {
+                for (final String name : Ordering.natural().sortedCopy(bindings.getBindingNames())) {
+                    builder.append("\nbinding ").append(name).append(" = ")
+                            .append(format(bindings.getValue(name)));
+                }
+            }
+            final String key = builder.toString();
+            final List<BindingSet> cached = lookup(key);
+            if (cached != null) {
+                return new CloseableIteratorIteration<BindingSet, QueryEvaluationException>(
+                        cached.iterator());
+            }
+            return populate(key, super.query(query, bindings, timeout));
+        }
+
+        @Override
+        public void infer(@Nullable final Handler<? super Statement> handler) throws IOException,
+                IllegalStateException {
+            this.modified = true;
+            super.infer(handler);
+        }
+
+        @Override
+        public void add(final Iterable<? extends Statement> statements) throws IOException,
+                IllegalStateException {
+            this.modified = true;
+            super.add(statements);
+        }
+
+        @Override
+        public void remove(final Iterable<? extends Statement> statements) throws IOException,
+                IllegalStateException {
+            this.modified = true;
+            super.remove(statements);
+        }
+
+        @Override
+        public void end(final boolean commit) throws IOException {
+            try {
+                super.end(commit);
+            } finally {
+                if (this.modified && commit) {
+                    invalidate(); // also done if commit failed, as changes may be partial
+                }
+            }
+        }
+
+        private boolean isCacheable() {
+            return !this.modified && this.localRevision == CachingTripleStore.this.revision;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Nullable
+        private <T> List<T> lookup(final String key) {
+            final List<T> results = (List<T>) CachingTripleStore.this.cache.getIfPresent(key);
+            (results != null ? CachingTripleStore.this.hitCount
+                    : CachingTripleStore.this.missCount).incrementAndGet();
+            return results;
+        }
+
+        private void put(final String key, final List<?> results) {
+            // Store the entry while holding the lock, so that a concurrent invalidation cannot
+            // occur between the check of the revision and the update of the cache
+            final ImmutableList<?> entry = ImmutableList.copyOf(results);
+            final int weight = weight(key, entry);
+            if (weight > CachingTripleStore.this.maxEntrySize) {
+                return;
+            }
+            CachingTripleStore.this.lock.readLock().lock();
+            try {
+                if (isCacheable()) {
+                    CachingTripleStore.this.cache.put(key, entry);
+                    CachingTripleStore.this.memorySize.addAndGet(weight);
+                }
+            } finally {
+                CachingTripleStore.this.lock.readLock().unlock();
+            }
+        }
+
+        private <T, E extends Exception> CloseableIteration<T, E> populate(final String key,
+                final CloseableIteration<? extends T, ? extends E> iteration) {
+
+            return new CloseableIteration<T, E>() {
+
+                @Nullable
+                private List<T> results = Lists.newArrayList(); // null if too big or cached
+
+                private long size = 0;
+
+                @Override
+                public boolean hasNext() throws E {
+                    final boolean hasNext = iteration.hasNext();
+                    if (!hasNext && this.results != null) {
+                        put(key, this.results);
+                        this.results = null;
+                    }
+                    return hasNext;
+                }
+
+                @Override
+                public T next() throws E {
+                    final T result = iteration.next();
+                    if (this.results != null) {
+                        this.results.add(result);
+                        this.size += 64; // lower bound, precise weight computed on put
+                        if (this.size > CachingTripleStore.this.maxEntrySize) {
+                            this.results = null;
+                        }
+                    }
+                    return result;
+                }
+
+                @Override
+                public void remove() throws E {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void close() throws E {
+                    this.results = null;
+                    iteration.close();
+                }
+
+            };
+        }
+
+    }
+
+}
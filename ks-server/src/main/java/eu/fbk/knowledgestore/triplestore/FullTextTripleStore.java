@@ -0,0 +1,603 @@
+package eu.fbk.knowledgestore.triplestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.BindingSetAssignment;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
+import org.openrdf.query.impl.MapBindingSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.CloseableIteratorIteration;
+
+import eu.fbk.knowledgestore.data.Data;
+import eu.fbk.knowledgestore.data.ParseException;
+import eu.fbk.knowledgestore.vocabulary.KS;
+
+/**
+ * A {@code TripleStore} wrapper maintaining a Lucene full-text index over the literals of
+ * selected predicates, queryable via a magic predicate.
+ * <p>
+ * This wrapper indexes the lexical forms of the literal objects of the configured
+ * {@code predicates} (default {@code rdfs:label}), storing the index in a local directory
+ * ({@code path}); the index is built from the contents of the wrapped {@code TripleStore} if the
+ * directory does not contain an index, and it is then kept up to date based on the statements
+ * added and removed via {@link TripleTransaction#add(Iterable) add} and
+ * {@link TripleTransaction#remove(Iterable) remove}, changes being applied to the index after
+ * the transaction successfully commits (hence a transaction does not see its own changes in the
+ * index). As the index may miss committed changes if the server crashes (or the index update
+ * fails) after the commit, a marker file {@code path.stale} is created before committing
+ * transactions affecting the index and deleted once the index is updated: if the marker is found
+ * at startup, the index is rebuilt. Note that modifications not done through this wrapper are
+ * not detected.
+ * </p>
+ * <p>
+ * The index is queried using the magic predicate {@link #TEXT_MATCH} ({@code ks:textMatch}), as
+ * in {@code ?s ks:textMatch "obama president"}, which matches the subjects having an indexed
+ * literal satisfying the Lucene query given as object (falling back to plain keywords if the
+ * query cannot be parsed), in decreasing score order. At most {@code maxResults} subjects
+ * (default 1000) are returned: as they are inlined in the query forwarded to the wrapped
+ * {@code TripleStore}, a full-text query matching more subjects is rejected with an error rather
+ * than silently truncated. Patterns using the magic predicate are pushed down to the index: in
+ * {@link TripleTransaction#query(SelectQuery, BindingSet, Long) query} calls they are replaced by
+ * {@code VALUES} clauses listing matching subjects before the query is forwarded to the wrapped
+ * {@code TripleStore}, while {@link TripleTransaction#get(Resource, URI, Value, Resource) get}
+ * calls are answered directly from the index. This allows replacing expensive {@code regex} or
+ * {@code contains} filters with index lookups.
+ * </p>
+ */
+public final class FullTextTripleStore extends ForwardingTripleStore {
+
+    /** The magic predicate for full-text queries. */
+    public static final URI TEXT_MATCH = Data.getValueFactory().createURI(KS.NAMESPACE,
+            "textMatch");
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FullTextTripleStore.class);
+
+    private static final String DEFAULT_PREDICATES = "rdfs:label";
+
+    private static final int DEFAULT_MAX_RESULTS = 1000;
+
+    private static final String ID_FIELD = "id";
+
+    private static final String SUBJECT_FIELD = "subject";
+
+    private static final String TEXT_FIELD = "text";
+
+    private final TripleStore delegate;
+
+    private final File path;
+
+    private final Set<URI> predicates;
+
+    private final int maxResults;
+
+    private final Analyzer analyzer;
+
+    private final File staleMarker;
+
+    private int pendingUpdates; // transactions whose index changes are being applied
+
+    private boolean stale; // true if changes could not be applied to the index
+
+    @Nullable
+    private Directory directory;
+
+    @Nullable
+    private IndexWriter writer;
+
+    @Nullable
+    private IndexReader reader;
+
+    // Counters for statistics
+
+    private final AtomicLong searchCount;
+
+    private final AtomicLong indexedCount;
+
+    private final AtomicLong unindexedCount;
+
+    /**
+     * Creates a new instance for the wrapped {@code TripleStore} and the parameters specified.
+     *
+     * @param delegate
+     *            the wrapped {@code TripleStore}
+     * @param path
+     *            the directory where to store the Lucene index
+     * @param predicates
+     *            the URIs of the predicates whose literals should be indexed, separated by spaces
+     *            or commas, either in full or prefixed form; if null defaults to
+     *            {@code rdfs:label}
+     * @param maxResults
+     *            the maximum number of subjects returned by a full-text query; if null defaults
+     *            to 1000
+     */
+    public FullTextTripleStore(final TripleStore delegate, final String path,
+            @Nullable final String predicates, @Nullable final Integer maxResults) {
+
+        final ImmutableSet.Builder<URI> predicateBuilder = ImmutableSet.builder();
+        for (final String token : Splitter.onPattern("[\\s,]+").trimResults()
+                .omitEmptyStrings()
+                .split(MoreObjects.firstNonNull(predicates, DEFAULT_PREDICATES))) {
+            final Value predicate = Data.parseValue(token, Data.getNamespaceMap());
+            Preconditions.checkArgument(predicate instanceof URI, "Invalid predicate %s", token);
+            predicateBuilder.add((URI) predicate);
+        }
+
+        this.delegate = Preconditions.checkNotNull(delegate);
+        this.path = new File(Preconditions.checkNotNull(path));
+        this.predicates = predicateBuilder.build();
+        this.maxResults = MoreObjects.firstNonNull(maxResults, DEFAULT_MAX_RESULTS);
+        this.analyzer = new StandardAnalyzer(Version.LUCENE_29);
+        this.staleMarker = new File(this.path.getAbsolutePath() + ".stale");
+        this.pendingUpdates = 0;
+        this.stale = false;
+        this.searchCount = new AtomicLong(0);
+        this.indexedCount = new AtomicLong(0);
+        this.unindexedCount = new AtomicLong(0);
+
+        Preconditions.checkArgument(this.maxResults > 0);
+
+        LOGGER.info("{} configured, path={}, predicates={}", getClass().getSimpleName(),
+                this.path, this.predicates);
+    }
+
+    @Override
+    protected TripleStore delegate() {
+        return this.delegate;
+    }
+
+    @Override
+    public synchronized void init() throws IOException {
+        super.init();
+        this.directory = FSDirectory.open(this.path);
+        final boolean exists = IndexReader.indexExists(this.directory);
+        this.writer = new IndexWriter(this.directory, this.analyzer,
+                IndexWriter.MaxFieldLength.UNLIMITED);
+        if (!exists) {
+            rebuild();
+        } else if (this.staleMarker.exists()) {
+            LOGGER.warn("{} - index in {} may be stale, rebuilding it", getClass()
+                    .getSimpleName(), this.path);
+            this.writer.deleteAll();
+            rebuild();
+        }
+        if (this.staleMarker.exists() && !this.staleMarker.delete()) {
+            throw new IOException("Could not delete " + this.staleMarker);
+        }
+        this.reader = this.writer.getReader();
+    }
+
+    @Override
+    public TripleTransaction begin(final boolean readOnly) throws IOException {
+        return new FullTextTripleTransaction(super.begin(readOnly));
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        synchronized (this) {
+            this.writer.deleteAll();
+            this.writer.commit();
+            refresh();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            LOGGER.info("{} - {} searches, {} literals indexed, {} unindexed", getClass()
+                    .getSimpleName(), this.searchCount, this.indexedCount, this.unindexedCount);
+            if (this.reader != null) {
+                this.reader.decRef();
+            }
+            if (this.writer != null) {
+                this.writer.close();
+            }
+        } catch (final Throwable ex) {
+            LOGGER.error("Could not close Lucene index in " + this.path, ex);
+        } finally {
+            this.reader = null;
+            this.writer = null;
+            super.close();
+        }
+    }
+
+    private void rebuild() throws IOException {
+        final long ts = System.currentTimeMillis();
+        final TripleTransaction transaction = this.delegate.begin(true);
+        try {
+            for (final URI predicate : this.predicates) {
+                final CloseableIteration<? extends Statement, ? extends Exception> iteration;
+                iteration = transaction.get(null, predicate, null, null);
+                try {
+                    while (iteration.hasNext()) {
+                        index(iteration.next());
+                    }
+                } catch (final Exception ex) {
+                    Throwables.propagateIfPossible(ex, IOException.class);
+                    throw new IOException("Could not retrieve statements to index", ex);
+                } finally {
+                    try {
+                        iteration.close();
+                    } catch (final Exception ex) {
+                        LOGGER.error("Could not close iteration", ex);
+                    }
+                }
+            }
+        } finally {
+            transaction.end(true);
+        }
+        this.writer.commit();
+        LOGGER.info("{} - index built in {} ms, {} literals indexed", getClass().getSimpleName(),
+                System.currentTimeMillis() - ts, this.indexedCount);
+    }
+
+    private synchronized void beginUpdate() throws IOException {
+        if (this.pendingUpdates++ == 0 && !this.stale) {
+            Files.touch(this.staleMarker);
+        }
+    }
+
+    private synchronized void endUpdate(final boolean succeeded) {
+        this.stale |= !succeeded;
+        if (--this.pendingUpdates == 0 && !this.stale && !this.staleMarker.delete()) {
+            LOGGER.warn("Could not delete {} (index will be rebuilt at startup)",
+                    this.staleMarker);
+        }
+    }
+
+    private void refresh() throws IOException {
+        final IndexReader oldReader = this.reader;
+        this.reader = this.writer.getReader();
+        oldReader.decRef();
+    }
+
+    private boolean isIndexed(final Statement statement) {
+        return statement.getObject() instanceof Literal
+                && this.predicates.contains(statement.getPredicate());
+    }
+
+    private void index(final Statement statement) throws IOException {
+        final Document document = new Document();
+        document.add(new Field(ID_FIELD, id(statement), Field.Store.NO,
+                Field.Index.NOT_ANALYZED));
+        document.add(new Field(SUBJECT_FIELD, Data.toString(statement.getSubject(), null),
+                Field.Store.YES, Field.Index.NO));
+        document.add(new Field(TEXT_FIELD, statement.getObject().stringValue(), Field.Store.NO,
+                Field.Index.ANALYZED));
+        this.writer.updateDocument(new Term(ID_FIELD, id(statement)), document);
+        this.indexedCount.incrementAndGet();
+    }
+
+    private void unindex(final Statement statement) throws IOException {
+        this.writer.deleteDocuments(new Term(ID_FIELD, id(statement)));
+        this.unindexedCount.incrementAndGet();
+    }
+
+    private static String id(final Statement statement) {
+        return Data.toString(statement.getSubject(), null) + " "
+                + Data.toString(statement.getPredicate(), null) + " "
+                + Data.toString(statement.getObject(), null);
+    }
+
+    private Set<Resource> search(final String queryString) throws IOException {
+
+        // Parse the query, falling back to keywords in case of syntax errors
+        final QueryParser parser = new QueryParser(Version.LUCENE_29, TEXT_FIELD, this.analyzer);
+        Query query;
+        try {
+            query = parser.parse(queryString);
+        } catch (final org.apache.lucene.queryParser.ParseException ex) {
+            try {
+                query = parser.parse(QueryParser.escape(queryString));
+            } catch (final org.apache.lucene.queryParser.ParseException ex2) {
+                return Collections.emptySet();
+            }
+        }
+
+        // Acquire the current reader, preventing its release while searching
+        final IndexReader reader;
+        synchronized (this) {
+            Preconditions.checkState(this.reader != null, "Full-text index not initialized");
+            reader = this.reader;
+            reader.incRef();
+        }
+
+        // Evaluate the query, collecting matching subjects in decreasing score order and
+        // failing if they are more than maxResults (one more subject is searched to detect it)
+        final long ts = System.currentTimeMillis();
+        try {
+            final Set<Resource> subjects = Sets.newLinkedHashSet();
+            final IndexSearcher searcher = new IndexSearcher(reader);
+            int numHits = this.maxResults + 1;
+            while (true) {
+                final ScoreDoc[] hits = searcher.search(query, numHits).scoreDocs;
+                for (final ScoreDoc hit : hits) {
+                    subjects.add((Resource) Data.parseValue(
+                            reader.document(hit.doc).get(SUBJECT_FIELD), null));
+                    if (subjects.size() > this.maxResults) {
+                        throw new IOException("Full-text query '" + queryString
+                                + "' matches more than " + this.maxResults
+                                + " subjects: use a more selective query");
+                    }
+                }
+                if (hits.length < numHits) {
+                    break;
+                }
+                subjects.clear(); // subjects with multiple literals: retry with more hits
+                numHits *= 4;
+            }
+            this.searchCount.incrementAndGet();
+            LOGGER.debug("{} - {} subjects matching '{}' retrieved in {} ms", getClass()
+                    .getSimpleName(), subjects.size(), queryString, System.currentTimeMillis()
+                    - ts);
+            return subjects;
+        } finally {
+            reader.decRef();
+        }
+    }
+
+    private final class FullTextTripleTransaction extends ForwardingTripleTransaction {
+
+        private final TripleTransaction delegate;
+
+        private final List<Statement> added;
+
+        private final List<Statement> removed;
+
+        private int varCounter;
+
+        FullTextTripleTransaction(final TripleTransaction delegate) {
+            this.delegate = Preconditions.checkNotNull(delegate);
+            this.added = Lists.newArrayList();
+            this.removed = Lists.newArrayList();
+            this.varCounter = 0;
+        }
+
+        @Override
+        protected TripleTransaction delegate() {
+            return this.delegate;
+        }
+
+        @Override
+        public CloseableIteration<? extends Statement, ? extends Exception> get(
+                @Nullable final Resource subject, @Nullable final URI predicate,
+                @Nullable final Value object, @Nullable final Resource context)
+                throws IOException, IllegalStateException {
+
+            if (!TEXT_MATCH.equals(predicate)) {
+                return super.get(subject, predicate, object, context);
+            }
+
+            final List<Statement> statements = Lists.newArrayList();
+            if (object != null) {
+                for (final Resource s : search(object.stringValue())) {
+                    if (subject == null || subject.equals(s)) {
+                        statements.add(Data.getValueFactory().createStatement(s, TEXT_MATCH,
+                                object));
+                    }
+                }
+            }
+            return new CloseableIteratorIteration<Statement, RuntimeException>(
+                    statements.iterator());
+        }
+
+        @Override
+        public CloseableIteration<BindingSet, QueryEvaluationException> query(
+                final SelectQuery query, @Nullable final BindingSet bindings,
+                @Nullable final Long timeout) throws IOException, UnsupportedOperationException,
+                IllegalStateException {
+
+            // Identify patterns using the magic predicate whose query string is known
+            final List<StatementPattern> patterns = Lists.newArrayList();
+            final TupleExpr expr = query.getExpression().clone();
+            expr.visit(new QueryModelVisitorBase<RuntimeException>() {
+
+                @Override
+                public void meet(final StatementPattern pattern) {
+                    if (TEXT_MATCH.equals(pattern.getPredicateVar().getValue())
+                            && resolve(pattern.getObjectVar(), bindings) != null) {
+                        patterns.add(pattern);
+                    }
+                }
+
+            });
+            if (patterns.isEmpty()) {
+                return super.query(query, bindings, timeout);
+            }
+
+            // Replace each pattern with a VALUES clause listing the matching subjects
+            for (final StatementPattern pattern : patterns) {
+                final Var subjectVar = pattern.getSubjectVar();
+                final Set<Resource> subjects = search(resolve(pattern.getObjectVar(), bindings)
+                        .stringValue());
+                final String name = subjectVar.hasValue() ? "_textmatch" + this.varCounter++
+                        : subjectVar.getName();
+                final List<BindingSet> rows = Lists.newArrayList();
+                for (final Resource subject : subjects) {
+                    if (!subjectVar.hasValue() || subjectVar.getValue().equals(subject)) {
+                        final MapBindingSet row = new MapBindingSet(1);
+                        row.addBinding(name, subject);
+                        rows.add(row);
+                    }
+                }
+                pattern.replaceWith(new SubjectAssignment(name, rows));
+            }
+
+            // Forward the rewritten query
+            final SelectQuery rewrittenQuery;
+            try {
+                rewrittenQuery = SelectQuery.from(expr, query.getDataset());
+            } catch (final ParseException ex) {
+                throw new UnsupportedOperationException("Cannot rewrite full-text query", ex);
+            }
+            return super.query(rewrittenQuery, bindings, timeout);
+        }
+
+        @Override
+        public void add(final Iterable<? extends Statement> statements) throws IOException,
+                IllegalStateException {
+            super.add(statements);
+            for (final Statement statement : statements) {
+                if (isIndexed(statement)) {
+                    this.added.add(statement);
+                }
+            }
+        }
+
+        @Override
+        public void remove(final Iterable<? extends Statement> statements) throws IOException,
+                IllegalStateException {
+            super.remove(statements);
+            for (final Statement statement : statements) {
+                if (isIndexed(statement)) {
+                    this.removed.add(statement);
+                }
+            }
+        }
+
+        @Override
+        public void end(final boolean commit) throws IOException {
+
+            // Determine index changes, keeping literals of statements still in other graphs
+            final List<Statement> toIndex = Lists.newArrayList();
+            final List<Statement> toUnindex = Lists.newArrayList();
+            if (commit) {
+                for (final Statement statement : this.removed) {
+                    if (!exists(statement)) {
+                        toUnindex.add(statement);
+                    }
+                }
+                for (final Statement statement : this.added) {
+                    if (exists(statement)) {
+                        toIndex.add(statement);
+                    }
+                }
+            }
+
+            // Complete the transaction, then update the index if changes were committed; the
+            // index is marked as stale until updated, so that it is rebuilt after a crash
+            if (toIndex.isEmpty() && toUnindex.isEmpty()) {
+                super.end(commit);
+                return;
+            }
+            final FullTextTripleStore store = FullTextTripleStore.this;
+            boolean succeeded = false;
+            store.beginUpdate();
+            try {
+                super.end(commit);
+                synchronized (store) {
+                    try {
+                        for (final Statement statement : toUnindex) {
+                            unindex(statement);
+                        }
+                        for (final Statement statement : toIndex) {
+                            index(statement);
+                        }
+                        store.writer.commit();
+                        refresh();
+                        succeeded = true;
+                    } catch (final Throwable ex) {
+                        LOGGER.error("Could not update full-text index in " + store.path
+                                + " (will be rebuilt at startup)", ex);
+                    }
+                }
+            } finally {
+                store.endUpdate(succeeded);
+            }
+        }
+
+        private boolean exists(final Statement statement) throws IOException {
+            CloseableIteration<? extends Statement, ? extends Exception> iteration = null;
+            try {
+                iteration = this.delegate.get(statement.getSubject(), statement.getPredicate(),
+                        statement.getObject(), null);
+                return iteration.hasNext();
+            } catch (final Exception ex) {
+                Throwables.propagateIfPossible(ex, IOException.class);
+                throw new IOException("Could not check statement " + statement, ex);
+            } finally {
+                if (iteration != null) {
+                    try {
+                        iteration.close();
+                    } catch (final Exception ex) {
+                        LOGGER.error("Could not close iteration", ex);
+                    }
+                }
+            }
+        }
+
+        @Nullable
+        private Value resolve(final Var var, @Nullable final BindingSet bindings) {
+            return var.hasValue() ? var.getValue() : bindings == null ? null : bindings
+                    .getValue(var.getName());
+        }
+
+    }
+
+    private static final class SubjectAssignment extends BindingSetAssignment {
+
+        // binding names are fixed, so that a VALUES clause is rendered even if there are no rows
+
+        private final String name;
+
+        SubjectAssignment(final String name, final Iterable<BindingSet> rows) {
+            this.name = name;
+            setBindingSets(rows);
+        }
+
+        @Override
+        public Set<String> getBindingNames() {
+            return Collections.singleton(this.name);
+        }
+
+        @Override
+        public Set<String> getAssuredBindingNames() {
+            return Collections.singleton(this.name);
+        }
+
+    }
+
+}
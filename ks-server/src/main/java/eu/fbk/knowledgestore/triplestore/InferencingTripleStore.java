@@ -0,0 +1,828 @@
+package eu.fbk.knowledgestore.triplestore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.FileBackedOutputStream;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Model;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.LinkedHashModel;
+import org.openrdf.model.vocabulary.OWL;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.BindingSetAssignment;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.Projection;
+import org.openrdf.query.algebra.ProjectionElem;
+import org.openrdf.query.algebra.ProjectionElemList;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.StatementPattern.Scope;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.impl.MapBindingSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.aduna.iteration.CloseableIteration;
+
+import eu.fbk.knowledgestore.data.Data;
+import eu.fbk.knowledgestore.data.Handler;
+import eu.fbk.knowledgestore.data.Serializer;
+import eu.fbk.knowledgestore.vocabulary.KS;
+
+/**
+ * A {@code TripleStore} wrapper that incrementally materializes the RDFS closure of stored
+ * statements, extended with selected OWL rules.
+ * <p>
+ * The wrapper implements {@link TripleTransaction#infer(Handler) infer} (without forwarding it to
+ * the wrapped {@code TripleStore}) based on the following rules, applied to the statements of all
+ * the graphs: RDFS rules for {@code rdfs:domain}, {@code rdfs:range}, {@code rdfs:subClassOf}
+ * and {@code rdfs:subPropertyOf} (rules rdfs2, rdfs3, rdfs5, rdfs7, rdfs9 and rdfs11, excluding
+ * axiomatic triples and the trivial {@code rdfs:Resource} typing); symmetry of
+ * {@code owl:inverseOf} and derivation of inverse statements; symmetry and transitivity of
+ * {@code owl:sameAs} and replacement of equal resources in subject and object position. Inferred
+ * statements are stored in a dedicated graph ({@code context}, by default
+ * {@code ks:inferred}), which allows distinguishing them from explicit statements.
+ * </p>
+ * <p>
+ * Inference is incremental. Each read-write transaction keeps track of the explicit statements
+ * added and removed through it; these deltas are processed when {@code infer} is called and, if
+ * still pending, before the transaction is committed, so that the closure is always kept
+ * materialized. Additions are processed via semi-naive forward chaining, where rules are applied
+ * only to statements derived in the previous iteration, starting from the added statements.
+ * Removals are processed via truth maintenance based on the Delete and Rederive (DRed) algorithm:
+ * inferred statements depending on removed statements are over-deleted, then the ones that are
+ * still derivable from the remaining statements are rederived and their consequences
+ * re-materialized. The existence of candidate conclusions is checked in batches, with a query
+ * per {@value #BATCH_SIZE} statements using {@code VALUES} (statements with blank nodes, which
+ * cannot be reliably placed in queries, are checked individually).
+ * </p>
+ * <p>
+ * Transactions only process deltas. The whole closure of existing data (e.g., when the wrapper is
+ * introduced on a populated triple store) must be computed offline via {@link #materialize()},
+ * which streams the triple store rather than processing it in a single transaction; completion
+ * is tracked by a marker statement in the inferred graph, and a warning is logged at startup if
+ * it is missing. Note that modifications not done through this wrapper are not detected and that
+ * pending deltas are kept in memory, hence transactions of this wrapper are not meant for bulk
+ * loading.
+ * </p>
+ */
+public final class InferencingTripleStore extends ForwardingTripleStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InferencingTripleStore.class);
+
+    private static final URI DEFAULT_CONTEXT = Data.getValueFactory().createURI(KS.NAMESPACE,
+            "inferred");
+
+    private static final String MARKER_COMMENT = "materialized RDFS / OWL closure";
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final int SPOOL_THRESHOLD = 16 * 1024 * 1024;
+
+    private static final String SUBJECT = "subject";
+
+    private static final String PREDICATE = "predicate";
+
+    private static final String OBJECT = "object";
+
+    private static final String CONTEXT = "context";
+
+    private final TripleStore delegate;
+
+    private final URI context;
+
+    private final Statement marker;
+
+    // Counters for statistics
+
+    private final AtomicLong inferredCount;
+
+    private final AtomicLong retractedCount;
+
+    /**
+     * Creates a new instance for the wrapped {@code TripleStore} and the optional inferred graph
+     * specified.
+     *
+     * @param delegate
+     *            the wrapped {@code TripleStore}
+     * @param context
+     *            the URI of the graph where to store inferred statements; if null defaults to
+     *            {@code ks:inferred}
+     */
+    public InferencingTripleStore(final TripleStore delegate, @Nullable final String context) {
+
+        final ValueFactory factory = Data.getValueFactory();
+
+        this.delegate = Preconditions.checkNotNull(delegate);
+        this.context = context == null ? DEFAULT_CONTEXT : factory.createURI(context);
+        this.marker = factory.createStatement(this.context, RDFS.COMMENT,
+                factory.createLiteral(MARKER_COMMENT), this.context);
+        this.inferredCount = new AtomicLong(0);
+        this.retractedCount = new AtomicLong(0);
+
+        LOGGER.info("{} configured, context={}", getClass().getSimpleName(), this.context);
+    }
+
+    @Override
+    protected TripleStore delegate() {
+        return this.delegate;
+    }
+
+    @Override
+    public void init() throws IOException {
+        super.init();
+        final TripleTransaction transaction = super.begin(true);
+        try {
+            final Statement marker = this.marker;
+            final CloseableIteration<? extends Statement, ? extends Exception> iteration;
+            iteration = transaction.get(marker.getSubject(), marker.getPredicate(),
+                    marker.getObject(), marker.getContext());
+            try {
+                if (!iteration.hasNext()) {
+                    LOGGER.warn("{} - closure of existing data not materialized: only "
+                            + "modifications will be processed", getClass().getSimpleName());
+                }
+            } finally {
+                iteration.close();
+            }
+        } catch (final Exception ex) {
+            Throwables.propagateIfPossible(ex, IOException.class);
+            throw new IOException("Could not check materialization marker", ex);
+        } finally {
+            transaction.end(true);
+        }
+    }
+
+    @Override
+    public TripleTransaction begin(final boolean readOnly) throws IOException {
+        final TripleTransaction transaction = super.begin(readOnly);
+        return readOnly ? transaction : new InferencingTripleTransaction(transaction);
+    }
+
+    /**
+     * Materializes the whole closure of the statements in the wrapped {@code TripleStore}. This
+     * is an offline operation, to be run once when the wrapper is introduced on existing data
+     * (e.g., via {@code ksrdf -r DIR -m}) and with no concurrent writers. Explicit statements are
+     * read in a read-only transaction and spooled to a buffer overflowing to disk; then they are
+     * processed in chunks, each one materialized and committed in its own read-write
+     * transaction, so that memory usage and transaction size do not grow with the size of the
+     * triple store. On completion, a marker statement is added to the inferred graph.
+     *
+     * @return the number of statements inferred
+     * @throws IOException
+     *             in case of failure, in which case the operation can be repeated (statements
+     *             inferred by committed chunks are not inferred again)
+     */
+    public long materialize() throws IOException {
+
+        final long ts = System.currentTimeMillis();
+        final Serializer serializer = new Serializer();
+        final FileBackedOutputStream buffer = new FileBackedOutputStream(SPOOL_THRESHOLD);
+
+        try {
+            // Spool explicit statements in chunks, streaming them in a read-only transaction
+            long numStatements = 0;
+            TripleTransaction transaction = this.delegate.begin(true);
+            CloseableIteration<? extends Statement, ? extends Exception> iteration = null;
+            try {
+                final ValueFactory factory = Data.getValueFactory();
+                final List<Statement> chunk = Lists.newArrayListWithCapacity(BATCH_SIZE);
+                iteration = transaction.get(null, null, null, null);
+                while (true) {
+                    final boolean hasNext = iteration.hasNext();
+                    if (hasNext) {
+                        final Statement s = iteration.next();
+                        if (!this.context.equals(s.getContext())) {
+                            chunk.add(factory.createStatement(s.getSubject(), s.getPredicate(),
+                                    s.getObject()));
+                        }
+                    }
+                    if (chunk.size() == BATCH_SIZE || !hasNext && !chunk.isEmpty()) {
+                        serializer.toStream(buffer, chunk);
+                        numStatements += chunk.size();
+                        chunk.clear();
+                    }
+                    if (!hasNext) {
+                        break;
+                    }
+                }
+            } catch (final Exception ex) {
+                Throwables.propagateIfPossible(ex, IOException.class);
+                throw new IOException("Could not retrieve statements", ex);
+            } finally {
+                closeQuietly(iteration);
+                transaction.end(true);
+            }
+            LOGGER.info("{} - {} explicit statements spooled in {} ms", getClass()
+                    .getSimpleName(), numStatements, System.currentTimeMillis() - ts);
+
+            // Process spooled chunks, each in its own read-write transaction
+            long numInferred = 0;
+            final InputStream stream = buffer.asByteSource().openBufferedStream();
+            try {
+                while (true) {
+                    stream.mark(1);
+                    if (stream.read() < 0) {
+                        break;
+                    }
+                    stream.reset();
+                    final List<Statement> chunk = Lists.newArrayList();
+                    for (final Object object : (List<?>) serializer.fromStream(stream)) {
+                        chunk.add((Statement) object);
+                    }
+                    transaction = this.delegate.begin(false);
+                    boolean committed = false;
+                    try {
+                        numInferred += new InferencingTripleTransaction(transaction).insert(
+                                chunk, null);
+                        transaction.end(true);
+                        committed = true;
+                    } finally {
+                        if (!committed) {
+                            transaction.end(false);
+                        }
+                    }
+                }
+            } finally {
+                stream.close();
+            }
+
+            // Mark the closure as materialized
+            transaction = this.delegate.begin(false);
+            boolean committed = false;
+            try {
+                transaction.add(ImmutableList.of(this.marker));
+                transaction.end(true);
+                committed = true;
+            } finally {
+                if (!committed) {
+                    transaction.end(false);
+                }
+            }
+
+            this.inferredCount.addAndGet(numInferred);
+            LOGGER.info("{} - closure materialized in {} ms, {} statements inferred", getClass()
+                    .getSimpleName(), System.currentTimeMillis() - ts, numInferred);
+            return numInferred;
+
+        } finally {
+            buffer.reset();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            LOGGER.info("{} - {} statements inferred, {} retracted", getClass().getSimpleName(),
+                    this.inferredCount, this.retractedCount);
+        } finally {
+            super.close();
+        }
+    }
+
+    private static void closeQuietly(
+            @Nullable final CloseableIteration<?, ? extends Exception> iteration) {
+        if (iteration != null) {
+            try {
+                iteration.close();
+            } catch (final Exception ex) {
+                LOGGER.error("Could not close iteration", ex);
+            }
+        }
+    }
+
+    private static void emit(final Value subject, final Value predicate, final Value object,
+            final List<Statement> conclusions) {
+        if (subject instanceof Resource && predicate instanceof URI
+                && !(predicate.equals(OWL.SAMEAS) && subject.equals(object))) {
+            conclusions.add(Data.getValueFactory().createStatement((Resource) subject,
+                    (URI) predicate, object));
+        }
+    }
+
+    private final class InferencingTripleTransaction extends ForwardingTripleTransaction {
+
+        private final TripleTransaction delegate;
+
+        private final Model added; // explicit statements added and not processed yet
+
+        private final Model removed; // explicit statements removed and not processed yet
+
+        private final Map<List<Value>, List<Statement>> matches; // valid until next write
+
+        InferencingTripleTransaction(final TripleTransaction delegate) {
+            this.delegate = Preconditions.checkNotNull(delegate);
+            this.added = new LinkedHashModel();
+            this.removed = new LinkedHashModel();
+            this.matches = Maps.newHashMap();
+        }
+
+        @Override
+        protected TripleTransaction delegate() {
+            return this.delegate;
+        }
+
+        @Override
+        public void infer(@Nullable final Handler<? super Statement> handler) throws IOException,
+                IllegalStateException {
+            materialize(handler);
+            if (handler != null) {
+                try {
+                    handler.handle(null);
+                } catch (final Throwable ex) {
+                    Throwables.propagateIfPossible(ex, IOException.class);
+                    throw new IOException(ex);
+                }
+            }
+        }
+
+        @Override
+        public void add(final Iterable<? extends Statement> statements) throws IOException,
+                IllegalStateException {
+            super.add(statements);
+            this.matches.clear();
+            for (final Statement statement : statements) {
+                this.removed.remove(statement.getSubject(), statement.getPredicate(),
+                        statement.getObject());
+                this.added.add(statement.getSubject(), statement.getPredicate(),
+                        statement.getObject());
+            }
+        }
+
+        @Override
+        public void remove(final Iterable<? extends Statement> statements) throws IOException,
+                IllegalStateException {
+            super.remove(statements);
+            this.matches.clear();
+            for (final Statement statement : statements) {
+                this.added.remove(statement.getSubject(), statement.getPredicate(),
+                        statement.getObject());
+                this.removed.add(statement.getSubject(), statement.getPredicate(),
+                        statement.getObject());
+            }
+        }
+
+        @Override
+        public void end(final boolean commit) throws IOException {
+            if (commit && !(this.added.isEmpty() && this.removed.isEmpty())) {
+                try {
+                    materialize(null);
+                } catch (final Throwable ex) {
+                    try {
+                        super.end(false);
+                    } catch (final Throwable ex2) {
+                        LOGGER.error("Could not rollback transaction after inference failure",
+                                ex2);
+                    }
+                    Throwables.propagateIfPossible(ex, IOException.class);
+                    throw Throwables.propagate(ex);
+                }
+            }
+            super.end(commit);
+        }
+
+        private void materialize(@Nullable final Handler<? super Statement> handler)
+                throws IOException {
+
+            final long ts = System.currentTimeMillis();
+
+            // Process removals first, then additions
+            final long numRetracted = this.removed.isEmpty() ? 0 : retract(handler);
+            final long numInferred = this.added.isEmpty() ? 0 : insert(this.added, handler);
+            this.added.clear();
+            this.removed.clear();
+
+            InferencingTripleStore.this.inferredCount.addAndGet(numInferred);
+            InferencingTripleStore.this.retractedCount.addAndGet(numRetracted);
+            LOGGER.debug("{} - {} statements inferred, {} retracted in {} ms", this,
+                    numInferred, numRetracted, System.currentTimeMillis() - ts);
+        }
+
+        private long insert(final Iterable<Statement> statements,
+                @Nullable final Handler<? super Statement> handler) throws IOException {
+
+            // Semi-naive evaluation: at each round, rules are applied only to the statements
+            // derived in the previous round, starting from the supplied statements
+            long numInferred = 0;
+            Iterable<Statement> delta = statements;
+            while (true) {
+                final Model next = new LinkedHashModel();
+                final List<Statement> conclusions = Lists.newArrayList();
+                for (final Statement statement : delta) {
+                    derive(statement, null, conclusions);
+                }
+                next.addAll(conclusions);
+                next.removeAll(filter(next, false));
+                if (next.isEmpty()) {
+                    return numInferred;
+                }
+                store(next, handler);
+                numInferred += next.size();
+                delta = next;
+            }
+        }
+
+        private long retract(@Nullable final Handler<? super Statement> handler)
+                throws IOException {
+
+            // Over-delete: collect inferred statements depending on removed statements,
+            // considering removed statements as still present when matching rule premises
+            final URI context = InferencingTripleStore.this.context;
+            final Model deleted = new LinkedHashModel(this.removed);
+            deleted.removeAll(filter(deleted, true));
+            Model delta = new LinkedHashModel(deleted);
+            final int numRemoved = deleted.size();
+            while (!delta.isEmpty()) {
+                final Model next = new LinkedHashModel();
+                final List<Statement> conclusions = Lists.newArrayList();
+                for (final Statement statement : delta) {
+                    derive(statement, deleted, conclusions);
+                }
+                for (final Statement c : conclusions) {
+                    if (!deleted.contains(c.getSubject(), c.getPredicate(), c.getObject())) {
+                        next.add(c.getSubject(), c.getPredicate(), c.getObject());
+                    }
+                }
+                next.retainAll(filter(next, false)); // drop conclusions not stored
+                next.removeAll(filter(next, true)); // drop explicit conclusions
+                deleted.addAll(next);
+                delta = next;
+            }
+            final List<Statement> inferred = Lists.newArrayListWithCapacity(deleted.size());
+            final ValueFactory factory = Data.getValueFactory();
+            for (final Statement s : deleted) {
+                inferred.add(factory.createStatement(s.getSubject(), s.getPredicate(),
+                        s.getObject(), context));
+            }
+            this.delegate.remove(inferred);
+            this.matches.clear();
+
+            // Rederive: restore over-deleted statements still derivable from remaining ones,
+            // then materialize their consequences
+            final Model rederived = new LinkedHashModel();
+            final Model remaining = filter(deleted, false);
+            for (final Statement s : deleted) {
+                if (!remaining.contains(s.getSubject(), s.getPredicate(), s.getObject())
+                        && isDerivable(s.getSubject(), s.getPredicate(), s.getObject())) {
+                    rederived.add(s);
+                }
+            }
+            long numRederived = 0;
+            if (!rederived.isEmpty()) {
+                store(rederived, handler);
+                numRederived = rederived.size() + insert(rederived, handler);
+            }
+            return Math.max(0, deleted.size() - numRemoved - numRederived);
+        }
+
+        private void store(final Model statements,
+                @Nullable final Handler<? super Statement> handler) throws IOException {
+            final URI context = InferencingTripleStore.this.context;
+            final ValueFactory factory = Data.getValueFactory();
+            final List<Statement> inferred = Lists.newArrayListWithCapacity(statements.size());
+            for (final Statement s : statements) {
+                inferred.add(factory.createStatement(s.getSubject(), s.getPredicate(),
+                        s.getObject(), context));
+            }
+            this.delegate.add(inferred);
+            this.matches.clear();
+            if (handler != null) {
+                try {
+                    for (final Statement statement : inferred) {
+                        handler.handle(statement);
+                    }
+                } catch (final Throwable ex) {
+                    Throwables.propagateIfPossible(ex, IOException.class);
+                    throw new IOException(ex);
+                }
+            }
+        }
+
+        private void derive(final Statement statement, @Nullable final Model extra,
+                final List<Statement> conclusions) throws IOException {
+
+            final Resource s = statement.getSubject();
+            final URI p = statement.getPredicate();
+            final Value o = statement.getObject();
+
+            // Rules where the statement matches a generic premise (x p y)
+            for (final Statement x : match(p, RDFS.SUBPROPERTYOF, null, null, extra)) {
+                emit(s, x.getObject(), o, conclusions); // rdfs7
+            }
+            for (final Statement x : match(p, RDFS.DOMAIN, null, null, extra)) {
+                emit(s, RDF.TYPE, x.getObject(), conclusions); // rdfs2
+            }
+            for (final Statement x : match(p, RDFS.RANGE, null, null, extra)) {
+                emit(o, RDF.TYPE, x.getObject(), conclusions); // rdfs3
+            }
+            for (final Statement x : match(p, OWL.INVERSEOF, null, null, extra)) {
+                emit(o, x.getObject(), s, conclusions);
+            }
+            for (final Statement x : match(s, OWL.SAMEAS, null, null, extra)) {
+                emit(x.getObject(), p, o, conclusions);
+            }
+            if (o instanceof Resource) {
+                for (final Statement x : match((Resource) o, OWL.SAMEAS, null, null, extra)) {
+                    emit(s, p, x.getObject(), conclusions);
+                }
+            }
+
+            // Rules where the statement matches a schema premise
+            if (p.equals(RDF.TYPE) && o instanceof Resource) {
+                for (final Statement x : match((Resource) o, RDFS.SUBCLASSOF, null, null, extra)) {
+                    emit(s, RDF.TYPE, x.getObject(), conclusions); // rdfs9
+                }
+
+            } else if (p.equals(RDFS.SUBCLASSOF)) {
+                for (final Statement x : match(null, RDF.TYPE, s, null, extra)) {
+                    emit(x.getSubject(), RDF.TYPE, o, conclusions); // rdfs9
+                }
+                for (final Statement x : match(null, RDFS.SUBCLASSOF, s, null, extra)) {
+                    emit(x.getSubject(), RDFS.SUBCLASSOF, o, conclusions); // rdfs11
+                }
+                if (o instanceof Resource) {
+                    for (final Statement x : match((Resource) o, RDFS.SUBCLASSOF, null, null,
+                            extra)) {
+                        emit(s, RDFS.SUBCLASSOF, x.getObject(), conclusions); // rdfs11
+                    }
+                }
+
+            } else if (p.equals(RDFS.SUBPROPERTYOF)) {
+                if (s instanceof URI) {
+                    for (final Statement x : match(null, (URI) s, null, null, extra)) {
+                        emit(x.getSubject(), o, x.getObject(), conclusions); // rdfs7
+                    }
+                }
+                for (final Statement x : match(null, RDFS.SUBPROPERTYOF, s, null, extra)) {
+                    emit(x.getSubject(), RDFS.SUBPROPERTYOF, o, conclusions); // rdfs5
+                }
+                if (o instanceof Resource) {
+                    for (final Statement x : match((Resource) o, RDFS.SUBPROPERTYOF, null, null,
+                            extra)) {
+                        emit(s, RDFS.SUBPROPERTYOF, x.getObject(), conclusions); // rdfs5
+                    }
+                }
+
+            } else if (p.equals(RDFS.DOMAIN) || p.equals(RDFS.RANGE)) {
+                if (s instanceof URI) {
+                    for (final Statement x : match(null, (URI) s, null, null, extra)) {
+                        emit(p.equals(RDFS.DOMAIN) ? x.getSubject() : x.getObject(), RDF.TYPE,
+                                o, conclusions); // rdfs2, rdfs3
+                    }
+                }
+
+            } else if (p.equals(OWL.INVERSEOF)) {
+                emit(o, OWL.INVERSEOF, s, conclusions);
+                if (s instanceof URI) {
+                    for (final Statement x : match(null, (URI) s, null, null, extra)) {
+                        emit(x.getObject(), o, x.getSubject(), conclusions);
+                    }
+                }
+
+            } else if (p.equals(OWL.SAMEAS)) {
+                emit(o, OWL.SAMEAS, s, conclusions);
+                for (final Statement x : match(s, null, null, null, extra)) {
+                    emit(o, x.getPredicate(), x.getObject(), conclusions);
+                }
+                for (final Statement x : match(null, null, s, null, extra)) {
+                    emit(x.getSubject(), x.getPredicate(), o, conclusions);
+                }
+            }
+        }
+
+        private boolean isDerivable(final Resource s, final URI p, final Value o)
+                throws IOException {
+
+            // Check whether a rule has a conclusion matching the statement and premises
+            // matching statements in the triple store (i.e., rules of derive() in reverse)
+            for (final Statement x : match(null, RDFS.SUBPROPERTYOF, p, null, null)) {
+                if (x.getSubject() instanceof URI && exists(s, (URI) x.getSubject(), o)) {
+                    return true; // rdfs7
+                }
+            }
+            if (o instanceof Resource) {
+                for (final Statement x : match(null, OWL.INVERSEOF, p, null, null)) {
+                    if (x.getSubject() instanceof URI
+                            && exists((Resource) o, (URI) x.getSubject(), s)) {
+                        return true;
+                    }
+                }
+                for (final Statement x : match(null, OWL.SAMEAS, o, null, null)) {
+                    if (exists(s, p, x.getSubject())) {
+                        return true;
+                    }
+                }
+            }
+            for (final Statement x : match(null, OWL.SAMEAS, s, null, null)) {
+                if (exists(x.getSubject(), p, o)) {
+                    return true;
+                }
+            }
+            if (p.equals(RDF.TYPE)) {
+                for (final Statement x : match(null, RDFS.SUBCLASSOF, o, null, null)) {
+                    if (exists(s, RDF.TYPE, x.getSubject())) {
+                        return true; // rdfs9
+                    }
+                }
+                for (final Statement x : match(null, RDFS.DOMAIN, o, null, null)) {
+                    if (x.getSubject() instanceof URI
+                            && exists(s, (URI) x.getSubject(), null)) {
+                        return true; // rdfs2
+                    }
+                }
+                for (final Statement x : match(null, RDFS.RANGE, o, null, null)) {
+                    if (x.getSubject() instanceof URI
+                            && exists(null, (URI) x.getSubject(), s)) {
+                        return true; // rdfs3
+                    }
+                }
+            } else if (p.equals(RDFS.SUBCLASSOF) || p.equals(RDFS.SUBPROPERTYOF)) {
+                for (final Statement x : match(s, p, null, null, null)) {
+                    if (x.getObject() instanceof Resource
+                            && exists((Resource) x.getObject(), p, o)) {
+                        return true; // rdfs5, rdfs11
+                    }
+                }
+            } else if ((p.equals(OWL.INVERSEOF) || p.equals(OWL.SAMEAS))
+                    && o instanceof Resource) {
+                return exists((Resource) o, p, s);
+            }
+            return false;
+        }
+
+        private boolean isExplicit(final Statement statement) throws IOException {
+            for (final Statement s : match(statement.getSubject(), statement.getPredicate(),
+                    statement.getObject(), null, null)) {
+                if (!InferencingTripleStore.this.context.equals(s.getContext())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean exists(@Nullable final Resource subject, @Nullable final URI predicate,
+                @Nullable final Value object) throws IOException {
+            return !match(subject, predicate, object, null, null).isEmpty();
+        }
+
+        private Model filter(final Model statements, final boolean explicit) throws IOException {
+
+            // Return the statements stored in the triple store (if explicit is false) or stored
+            // in a graph different from the inferred one (if explicit is true), checking
+            // statements with blank nodes individually and the others in batches
+            final Model result = new LinkedHashModel();
+            final List<Statement> batch = Lists.newArrayListWithCapacity(BATCH_SIZE);
+            for (final Statement s : statements) {
+                if (s.getSubject() instanceof BNode || s.getObject() instanceof BNode) {
+                    if (explicit ? isExplicit(s) : exists(s.getSubject(), s.getPredicate(),
+                            s.getObject())) {
+                        result.add(s.getSubject(), s.getPredicate(), s.getObject());
+                    }
+                } else {
+                    batch.add(s);
+                    if (batch.size() == BATCH_SIZE) {
+                        filter(batch, explicit, result);
+                        batch.clear();
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                filter(batch, explicit, result);
+            }
+            return result;
+        }
+
+        private void filter(final List<Statement> statements, final boolean explicit,
+                final Model result) throws IOException {
+
+            // Statements stored in the default graph (null context) are explicit, but they are
+            // not returned when querying named graphs: these are checked with a second query
+            if (explicit) {
+                final Model stored = new LinkedHashModel();
+                for (final Statement s : query(statements, true)) {
+                    stored.add(s.getSubject(), s.getPredicate(), s.getObject());
+                    if (!InferencingTripleStore.this.context.equals(s.getContext())) {
+                        result.add(s.getSubject(), s.getPredicate(), s.getObject());
+                    }
+                }
+                final List<Statement> unstored = Lists.newArrayList();
+                for (final Statement s : statements) {
+                    if (!stored.contains(s.getSubject(), s.getPredicate(), s.getObject())) {
+                        unstored.add(s);
+                    }
+                }
+                if (!unstored.isEmpty()) {
+                    for (final Statement s : query(unstored, false)) {
+                        result.add(s.getSubject(), s.getPredicate(), s.getObject());
+                    }
+                }
+            } else {
+                for (final Statement s : query(statements, false)) {
+                    result.add(s.getSubject(), s.getPredicate(), s.getObject());
+                }
+            }
+        }
+
+        private List<Statement> query(final List<Statement> statements, final boolean named)
+                throws IOException {
+
+            // Build a query matching the supplied statements (listed in a VALUES block) in the
+            // default graph or, if named is true, in any named graph, returning their graphs
+            final List<BindingSet> rows = Lists.newArrayListWithCapacity(statements.size());
+            for (final Statement s : statements) {
+                final MapBindingSet row = new MapBindingSet(3);
+                row.addBinding(SUBJECT, s.getSubject());
+                row.addBinding(PREDICATE, s.getPredicate());
+                row.addBinding(OBJECT, s.getObject());
+                rows.add(row);
+            }
+            final BindingSetAssignment values = new BindingSetAssignment();
+            values.setBindingSets(rows);
+            final ProjectionElemList elems = new ProjectionElemList(new ProjectionElem(SUBJECT),
+                    new ProjectionElem(PREDICATE), new ProjectionElem(OBJECT));
+            StatementPattern pattern;
+            if (named) {
+                pattern = new StatementPattern(Scope.NAMED_CONTEXTS, new Var(SUBJECT), new Var(
+                        PREDICATE), new Var(OBJECT), new Var(CONTEXT));
+                elems.addElement(new ProjectionElem(CONTEXT));
+            } else {
+                pattern = new StatementPattern(new Var(SUBJECT), new Var(PREDICATE), new Var(
+                        OBJECT));
+            }
+            final SelectQuery query = SelectQuery.from(new Projection(new Join(values, pattern),
+                    elems), null);
+
+            // Evaluate the query, returning matched statements
+            final ValueFactory factory = Data.getValueFactory();
+            final List<Statement> result = Lists.newArrayList();
+            CloseableIteration<BindingSet, QueryEvaluationException> iteration = null;
+            try {
+                iteration = this.delegate.query(query, null, null);
+                while (iteration.hasNext()) {
+                    final BindingSet bindings = iteration.next();
+                    result.add(factory.createStatement((Resource) bindings.getValue(SUBJECT),
+                            (URI) bindings.getValue(PREDICATE), bindings.getValue(OBJECT),
+                            (Resource) bindings.getValue(CONTEXT)));
+                }
+            } catch (final QueryEvaluationException ex) {
+                throw new IOException("Could not check statements", ex);
+            } finally {
+                closeQuietly(iteration);
+            }
+            return result;
+        }
+
+        private List<Statement> match(@Nullable final Resource subject,
+                @Nullable final URI predicate, @Nullable final Value object,
+                @Nullable final Resource context, @Nullable final Model extra)
+                throws IOException {
+
+            // Results are cached until the next write, as rules repeatedly match the same
+            // schema statements
+            final List<Value> key = Arrays.asList(subject, predicate, object, context);
+            List<Statement> result = this.matches.get(key);
+            if (result == null) {
+                result = Lists.newArrayList();
+                CloseableIteration<? extends Statement, ? extends Exception> iteration = null;
+                try {
+                    iteration = this.delegate.get(subject, predicate, object, context);
+                    while (iteration.hasNext()) {
+                        result.add(iteration.next());
+                    }
+                } catch (final Exception ex) {
+                    Throwables.propagateIfPossible(ex, IOException.class);
+                    throw new IOException("Could not retrieve statements", ex);
+                } finally {
+                    closeQuietly(iteration);
+                }
+                this.matches.put(key, result);
+            }
+            if (extra != null) {
+                result = Lists.newArrayList(result);
+                result.addAll(extra.filter(subject, predicate, object));
+            }
+            return result;
+        }
+
+    }
+
+}
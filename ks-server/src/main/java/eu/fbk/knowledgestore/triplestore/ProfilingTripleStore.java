@@ -0,0 +1,364 @@
+package eu.fbk.knowledgestore.triplestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.aduna.iteration.CloseableIteration;
+
+/**
+ * A {@code TripleStore} wrapper profiling the triple patterns accessed by lookups and queries, in
+ * order to recommend the index permutations of the wrapped triple store.
+ * <p>
+ * This wrapper records the <i>shape</i> of each triple pattern reaching the wrapped
+ * {@code TripleStore}, i.e., which of the subject, predicate, object and context components are
+ * bound. For {@link TripleTransaction#get(Resource, URI, Value, Resource) get} calls the shape
+ * is given by the non-null arguments. For {@link TripleTransaction#query(SelectQuery, BindingSet,
+ * Long) query} calls, the statement patterns of the query are examined in order, approximating a
+ * nested loop join evaluation: a component is considered bound if it is a constant, if its
+ * variable is supplied in the query bindings or if its variable occurs in a previous pattern
+ * (contexts are also considered bound if the query specifies a dataset).
+ * </p>
+ * <p>
+ * Shapes are matched against index permutations in the format used by Sesame
+ * {@code NativeStore} (e.g., {@code spoc,posc}): a pattern is efficiently answered by an index
+ * if its bound components form a prefix of the index permutation. Starting from the configured
+ * {@code indexes} (default {@value #DEFAULT_INDEXES}), additional permutations are greedily
+ * recommended so to cover the most frequent shapes that are not covered yet. A workload report
+ * listing the observed shapes and the recommended indexes is logged when the store is closed
+ * and, if a {@code reportFile} is configured, written to that file, so that operators can update
+ * the triple store configuration offline (e.g., the {@code triple-indexes} setting of a
+ * {@code NativeStore}, whose indexes are rebuilt by Sesame at the next startup). The report can
+ * also be obtained at any time via {@link #getReport()}.
+ * </p>
+ */
+public final class ProfilingTripleStore extends ForwardingTripleStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProfilingTripleStore.class);
+
+    private static final String DEFAULT_INDEXES = "spoc,posc";
+
+    private static final String COMPONENTS = "spoc";
+
+    private static final int MAX_INDEXES = 6;
+
+    private static final double MIN_COVERED_FRACTION = 0.01;
+
+    private final TripleStore delegate;
+
+    private final List<String> indexes;
+
+    @Nullable
+    private final File reportFile;
+
+    // Counters for statistics
+
+    private final AtomicLongArray shapeCounts; // indexed by bitmask of bound components
+
+    /**
+     * Creates a new instance for the wrapped {@code TripleStore} and the optional parameters
+     * specified.
+     *
+     * @param delegate
+     *            the wrapped {@code TripleStore}
+     * @param indexes
+     *            the comma-separated index permutations currently configured for the wrapped
+     *            triple store, e.g. {@code spoc,posc}; if null defaults to
+     *            {@value #DEFAULT_INDEXES}
+     * @param reportFile
+     *            the file where to write the workload report at close time; if null, the report
+     *            is only logged
+     */
+    public ProfilingTripleStore(final TripleStore delegate, @Nullable final String indexes,
+            @Nullable final String reportFile) {
+
+        final List<String> indexList = Lists.newArrayList();
+        for (final String index : Splitter.on(',').trimResults().omitEmptyStrings()
+                .split(MoreObjects.firstNonNull(indexes, DEFAULT_INDEXES))) {
+            final String normalizedIndex = index.toLowerCase();
+            final char[] chars = normalizedIndex.toCharArray();
+            Arrays.sort(chars);
+            Preconditions.checkArgument(new String(chars).equals("cops"),
+                    "Invalid index permutation: %s", index);
+            indexList.add(normalizedIndex);
+        }
+
+        this.delegate = Preconditions.checkNotNull(delegate);
+        this.indexes = ImmutableList.copyOf(indexList);
+        this.reportFile = reportFile == null ? null : new File(reportFile);
+        this.shapeCounts = new AtomicLongArray(1 << COMPONENTS.length());
+
+        LOGGER.info("{} configured, indexes={}", getClass().getSimpleName(),
+                Joiner.on(',').join(this.indexes));
+    }
+
+    @Override
+    protected TripleStore delegate() {
+        return this.delegate;
+    }
+
+    @Override
+    public TripleTransaction begin(final boolean readOnly) throws IOException {
+        return new ProfilingTripleTransaction(super.begin(readOnly));
+    }
+
+    @Override
+    public void close() {
+        try {
+            final String report = getReport();
+            LOGGER.info("{} - workload report:\n{}", getClass().getSimpleName(), report);
+            if (this.reportFile != null) {
+                Files.write(report, this.reportFile, Charsets.UTF_8);
+            }
+        } catch (final Throwable ex) {
+            LOGGER.error("Could not write workload report to " + this.reportFile, ex);
+        } finally {
+            super.close();
+        }
+    }
+
+    /**
+     * Returns the index permutations recommended for the workload observed so far. The returned
+     * list starts with the configured indexes, followed by the additional recommended ones.
+     *
+     * @return a list of index permutations, e.g. {@code [spoc, posc, opsc]}
+     */
+    public List<String> getRecommendedIndexes() {
+
+        // Snapshot the counters, considering only shapes above the minimum frequency
+        final long[] counts = snapshot();
+        long total = 0;
+        for (final long count : counts) {
+            total += count;
+        }
+        final long[] uncovered = counts.clone();
+        for (int shape = 0; shape < uncovered.length; ++shape) {
+            if (uncovered[shape] < total * MIN_COVERED_FRACTION) {
+                uncovered[shape] = 0;
+            }
+        }
+
+        // Remove shapes already covered by configured indexes
+        final List<String> result = Lists.newArrayList(this.indexes);
+        for (final String index : this.indexes) {
+            cover(index, uncovered);
+        }
+
+        // Greedily add the permutation covering the most remaining accesses, until done
+        final List<String> permutations = permutations(COMPONENTS);
+        while (result.size() < MAX_INDEXES) {
+            String bestIndex = null;
+            long bestWeight = 0;
+            for (final String permutation : permutations) {
+                final long weight = cover(permutation, uncovered.clone());
+                if (weight > bestWeight) {
+                    bestIndex = permutation;
+                    bestWeight = weight;
+                }
+            }
+            if (bestIndex == null) {
+                break;
+            }
+            cover(bestIndex, uncovered);
+            result.add(bestIndex);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a human-readable report of the workload observed so far, listing the frequency of
+     * each triple pattern shape, the index covering it and the recommended indexes.
+     *
+     * @return the report
+     */
+    public String getReport() {
+
+        final long[] counts = snapshot();
+        long total = 0;
+        for (final long count : counts) {
+            total += count;
+        }
+
+        final List<String> recommended = getRecommendedIndexes();
+        final StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%-6s %12s %7s  %s\n", "shape", "patterns", "%", "index"));
+        for (int shape = 0; shape < counts.length; ++shape) {
+            if (counts[shape] > 0) {
+                String coveringIndex = "-";
+                for (final String index : recommended) {
+                    if (covers(index, shape)) {
+                        coveringIndex = index;
+                        break;
+                    }
+                }
+                builder.append(String.format("%-6s %12d %6.2f%%  %s\n", format(shape),
+                        counts[shape], 100.0 * counts[shape] / total, coveringIndex));
+            }
+        }
+        builder.append("configured indexes:  ").append(Joiner.on(',').join(this.indexes))
+                .append(" (").append(coverage(this.indexes, counts, total)).append(")\n");
+        builder.append("recommended indexes: ").append(Joiner.on(',').join(recommended))
+                .append(" (").append(coverage(recommended, counts, total)).append(")");
+        return builder.toString();
+    }
+
+    private long[] snapshot() {
+        final long[] counts = new long[this.shapeCounts.length()];
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] = this.shapeCounts.get(i);
+        }
+        return counts;
+    }
+
+    private void record(final boolean subject, final boolean predicate, final boolean object,
+            final boolean context) {
+        this.shapeCounts.incrementAndGet((subject ? 1 : 0) | (predicate ? 2 : 0)
+                | (object ? 4 : 0) | (context ? 8 : 0));
+    }
+
+    private static long cover(final String index, final long[] uncovered) {
+        long weight = 0;
+        for (int shape = 0; shape < uncovered.length; ++shape) {
+            if (uncovered[shape] > 0 && covers(index, shape)) {
+                weight += uncovered[shape];
+                uncovered[shape] = 0;
+            }
+        }
+        return weight;
+    }
+
+    private static boolean covers(final String index, final int shape) {
+        // bound components must be a prefix of the index permutation
+        final int numBound = Integer.bitCount(shape);
+        for (int i = 0; i < numBound; ++i) {
+            if ((shape & 1 << COMPONENTS.indexOf(index.charAt(i))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String coverage(final List<String> indexes, final long[] counts,
+            final long total) {
+        long covered = 0;
+        for (int shape = 0; shape < counts.length; ++shape) {
+            for (final String index : indexes) {
+                if (covers(index, shape)) {
+                    covered += counts[shape];
+                    break;
+                }
+            }
+        }
+        return String.format("%.2f%% of patterns covered", total == 0 ? 100.0 : 100.0
+                * covered / total);
+    }
+
+    private static String format(final int shape) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < COMPONENTS.length(); ++i) {
+            builder.append((shape & 1 << i) != 0 ? COMPONENTS.charAt(i) : '?');
+        }
+        return builder.toString();
+    }
+
+    private static List<String> permutations(final String components) {
+        final List<String> result = Lists.newArrayList();
+        if (components.length() <= 1) {
+            result.add(components);
+        } else {
+            for (int i = 0; i < components.length(); ++i) {
+                final char first = components.charAt(i);
+                final String rest = components.substring(0, i) + components.substring(i + 1);
+                for (final String permutation : permutations(rest)) {
+                    result.add(first + permutation);
+                }
+            }
+        }
+        return result;
+    }
+
+    private final class ProfilingTripleTransaction extends ForwardingTripleTransaction {
+
+        private final TripleTransaction delegate;
+
+        ProfilingTripleTransaction(final TripleTransaction delegate) {
+            this.delegate = Preconditions.checkNotNull(delegate);
+        }
+
+        @Override
+        protected TripleTransaction delegate() {
+            return this.delegate;
+        }
+
+        @Override
+        public CloseableIteration<? extends Statement, ? extends Exception> get(
+                @Nullable final Resource subject, @Nullable final URI predicate,
+                @Nullable final Value object, @Nullable final Resource context)
+                throws IOException, IllegalStateException {
+            record(subject != null, predicate != null, object != null, context != null);
+            return super.get(subject, predicate, object, context);
+        }
+
+        @Override
+        public CloseableIteration<BindingSet, QueryEvaluationException> query(
+                final SelectQuery query, @Nullable final BindingSet bindings,
+                @Nullable final Long timeout) throws IOException, UnsupportedOperationException,
+                IllegalStateException {
+
+            final Set<String> boundVars = Sets.newHashSet();
+            if (bindings != null) {
+                boundVars.addAll(bindings.getBindingNames());
+            }
+            final boolean hasDataset = query.getDataset() != null;
+            query.getExpression().visit(new QueryModelVisitorBase<RuntimeException>() {
+
+                @Override
+                public void meet(final StatementPattern pattern) {
+                    final Var contextVar = pattern.getContextVar();
+                    record(isBound(pattern.getSubjectVar()), isBound(pattern.getPredicateVar()),
+                            isBound(pattern.getObjectVar()), contextVar == null ? hasDataset
+                                    : isBound(contextVar));
+                    for (final Var var : pattern.getVarList()) {
+                        boundVars.add(var.getName());
+                    }
+                }
+
+                private boolean isBound(final Var var) {
+                    return var.hasValue() || boundVars.contains(var.getName());
+                }
+
+            });
+
+            return super.query(query, bindings, timeout);
+        }
+
+    }
+
+}
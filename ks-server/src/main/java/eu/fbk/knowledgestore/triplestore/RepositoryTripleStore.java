@@ -10,6 +10,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Iterators;
 
+import org.openrdf.IsolationLevels;
 import org.openrdf.model.Resource;
 import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
@@ -25,7 +26,10 @@ import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.RepositoryException;
 import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.repository.sail.SailRepositoryConnection;
 import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,20 +41,51 @@ import eu.fbk.knowledgestore.data.Handler;
 import eu.fbk.knowledgestore.internal.Util;
 import eu.fbk.knowledgestore.runtime.DataCorruptedException;
 
+/**
+ * A {@code TripleStore} implementation backed by a Sesame {@code Repository}.
+ * <p>
+ * If a {@code bulkLoadChunkSize} is supplied, the store operates in bulk-load mode, meant for the
+ * initial loading of large datasets in an embedded repository not concurrently accessed by other
+ * clients. In this mode read-write transactions run with no isolation, statements are added
+ * directly to the underlying {@code SailConnection} (when available) bypassing the per-statement
+ * overhead of the {@code RepositoryConnection} API, and added statements are committed in chunks
+ * of {@code bulkLoadChunkSize} statements, so that the backend does not have to hold the whole
+ * load in a single transaction. As a consequence, read-write transactions are not atomic in
+ * bulk-load mode: a rollback only discards the statements added after the last chunk commit.
+ * Backend-specific optimizations (e.g., deferring the persistence of a {@code MemoryStore} or
+ * the indexing of a native store at the end of the load) are left to the code configuring the
+ * wrapped {@code Repository} or {@code Sail}.
+ * </p>
+ */
 public final class RepositoryTripleStore implements TripleStore {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RepositoryTripleStore.class);
 
     private final Repository repository;
 
+    @Nullable
+    private final Integer bulkLoadChunkSize;
+
     public RepositoryTripleStore(final Sail sail) {
         this(new SailRepository(sail));
     }
 
     public RepositoryTripleStore(final Repository repository) {
+        this(repository, null);
+    }
+
+    public RepositoryTripleStore(final Sail sail, @Nullable final Integer bulkLoadChunkSize) {
+        this(new SailRepository(sail), bulkLoadChunkSize);
+    }
+
+    public RepositoryTripleStore(final Repository repository,
+            @Nullable final Integer bulkLoadChunkSize) {
+        Preconditions.checkArgument(bulkLoadChunkSize == null || bulkLoadChunkSize > 0);
         this.repository = Preconditions.checkNotNull(repository);
-        LOGGER.info("RepositoryTripleStore configured, backend={}", repository.getClass()
-                .getSimpleName());
+        this.bulkLoadChunkSize = bulkLoadChunkSize;
+        LOGGER.info("RepositoryTripleStore configured, backend={}{}", repository.getClass()
+                .getSimpleName(), bulkLoadChunkSize == null ? "" : ", bulk-load chunk size="
+                + bulkLoadChunkSize);
     }
 
     @Override
@@ -102,10 +137,14 @@ public final class RepositoryTripleStore implements TripleStore {
 
         private final boolean readOnly;
 
+        private final boolean bulkLoad;
+
         private final long ts;
 
         private boolean dirty;
 
+        private long pendingStatements; // added but not committed yet, in bulk-load mode
+
         RepositoryTripleTransaction(final boolean readOnly) throws IOException {
 
             final long ts = System.currentTimeMillis();
@@ -118,11 +157,13 @@ public final class RepositoryTripleStore implements TripleStore {
 
             this.connection = connection;
             this.readOnly = readOnly;
+            this.bulkLoad = !readOnly && RepositoryTripleStore.this.bulkLoadChunkSize != null;
             this.ts = ts;
             this.dirty = false;
+            this.pendingStatements = 0L;
 
             try {
-                connection.begin();
+                begin();
             } catch (final Throwable ex) {
                 Util.closeQuietly(connection);
             }
@@ -133,6 +174,14 @@ public final class RepositoryTripleStore implements TripleStore {
             }
         }
 
+        private void begin() throws RepositoryException {
+            if (this.bulkLoad) {
+                this.connection.begin(IsolationLevels.NONE);
+            } else {
+                this.connection.begin();
+            }
+        }
+
         private void checkWritable() {
             if (this.readOnly) {
                 throw new IllegalStateException(
@@ -171,18 +220,20 @@ public final class RepositoryTripleStore implements TripleStore {
                 final long ts = System.currentTimeMillis();
                 final CloseableIteration<? extends Statement, ? extends Exception> result;
                 if (subject == null || predicate == null || object == null || context == null) {
+                    final Resource[] contexts = context == null ? new Resource[0]
+                            : new Resource[] { context }; // no context = any context
                     result = logClose(this.connection.getStatements(subject, predicate, object,
-                            false, context));
+                            false, contexts));
                     LOGGER.debug("getStatements() iteration obtained in {} ms",
                             System.currentTimeMillis() - ts);
                 } else {
                     Iterator<Statement> iterator;
                     if (this.connection.hasStatement(subject, predicate, object, true, context)) {
-                        iterator = Collections.emptyIterator();
-                    } else {
                         iterator = Iterators
                                 .<Statement>singletonIterator(new ContextStatementImpl(subject,
                                         predicate, object, context));
+                    } else {
+                        iterator = Collections.emptyIterator();
                     }
                     result = new CloseableIteratorIteration<Statement, RuntimeException>(iterator);
                     LOGGER.debug("hasStatement() evaluated in {} ms", System.currentTimeMillis()
@@ -280,9 +331,43 @@ public final class RepositoryTripleStore implements TripleStore {
 
             try {
                 this.dirty = true;
-                this.connection.add(statements);
+                if (this.bulkLoad) {
+                    bulkAdd(statements);
+                } else {
+                    this.connection.add(statements);
+                }
             } catch (final RepositoryException ex) {
                 throw new DataCorruptedException("Error while adding statements", ex);
+            } catch (final SailException ex) {
+                throw new DataCorruptedException("Error while adding statements", ex);
+            }
+        }
+
+        private void bulkAdd(final Iterable<? extends Statement> statements)
+                throws RepositoryException, SailException {
+
+            // Add statements directly to the SailConnection, if possible, committing a chunk
+            // (and starting a new one) every 'bulkLoadChunkSize' statements
+            final int chunkSize = RepositoryTripleStore.this.bulkLoadChunkSize;
+            final SailConnection sailConnection = this.connection //
+            instanceof SailRepositoryConnection ? ((SailRepositoryConnection) this.connection)
+                    .getSailConnection() : null;
+            for (final Statement statement : statements) {
+                if (sailConnection != null) {
+                    sailConnection.addStatement(statement.getSubject(),
+                            statement.getPredicate(), statement.getObject(),
+                            statement.getContext());
+                } else {
+                    this.connection.add(statement);
+                }
+                if (++this.pendingStatements >= chunkSize) {
+                    final long ts = System.currentTimeMillis();
+                    this.connection.commit();
+                    begin();
+                    LOGGER.debug("{} committed chunk of {} statements in {} ms", this,
+                            this.pendingStatements, System.currentTimeMillis() - ts);
+                    this.pendingStatements = 0L;
+                }
             }
         }
 
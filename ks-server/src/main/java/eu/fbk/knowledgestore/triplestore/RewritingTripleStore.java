@@ -2,13 +2,11 @@ package eu.fbk.knowledgestore.triplestore;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.Set;
 
 import javax.annotation.Nullable;
 
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
@@ -23,7 +21,6 @@ import org.openrdf.query.algebra.TupleExpr;
 import org.openrdf.query.algebra.ValueConstant;
 import org.openrdf.query.algebra.Var;
 import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
-import org.openrdf.query.impl.ListBindingSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +30,7 @@ import info.aduna.iteration.ConvertingIteration;
 import eu.fbk.knowledgestore.data.Data;
 import eu.fbk.knowledgestore.data.Handler;
 import eu.fbk.knowledgestore.internal.rdf.CompactBindingSet;
+import eu.fbk.knowledgestore.internal.rdf.RDFUtil;
 
 /**
  * A {@code TripleStore} wrapper that rewrites URIs, adapting a prefix used externally in the KS
@@ -45,6 +43,8 @@ import eu.fbk.knowledgestore.internal.rdf.CompactBindingSet;
  * replacing that prefix with the <i>external</i> one. Rewrite occurs on every input / output data
  * item exchanged at the level of the {@code TripleStore} API, including RDF values, statements,
  * binding sets and SPARQL queries (query rewriting is done by manipulating their algebraic form).
+ * Statements and binding sets are rewritten lazily, by wrapping them in views that rewrite their
+ * values only when read.
  * </p>
  */
 public final class RewritingTripleStore extends ForwardingTripleStore {
@@ -115,7 +115,6 @@ public final class RewritingTripleStore extends ForwardingTripleStore {
                 final SelectQuery query, @Nullable final BindingSet bindings,
                 @Nullable final Long timeout) throws IOException, UnsupportedOperationException {
             return RewritingTripleStore.this.out.rewriteBindings(//
-                    ImmutableList.copyOf(query.getExpression().getBindingNames()), //
                     super.query(RewritingTripleStore.this.in.rewriteQuery(query),
                             RewritingTripleStore.this.in.rewriteBindings(bindings), timeout));
         }
@@ -140,7 +139,7 @@ public final class RewritingTripleStore extends ForwardingTripleStore {
 
     }
 
-    private static class Rewriter {
+    private static class Rewriter implements Function<Value, Value> {
 
         private final String fromPrefix;
 
@@ -195,23 +194,14 @@ public final class RewritingTripleStore extends ForwardingTripleStore {
 
         @Nullable
         <E extends Exception> CloseableIteration<BindingSet, E> rewriteBindings(
-                final List<String> variables,
                 @Nullable final CloseableIteration<? extends BindingSet, ? extends E> iteration) {
 
-            if (iteration == null) {
-                return null;
-            }
-
-            final CompactBindingSet.Builder builder = CompactBindingSet.builder(variables);
-            return new ConvertingIteration<BindingSet, BindingSet, E>(iteration) {
+            return iteration == null ? null : new ConvertingIteration<BindingSet, BindingSet, E>(
+                    iteration) {
 
                 @Override
                 protected BindingSet convert(final BindingSet bindings) throws E {
-                    for (int i = 0; i < variables.size(); ++i) {
-                        final String variable = variables.get(i);
-                        builder.set(i, rewriteValue(bindings.getValue(variable)));
-                    }
-                    return builder.build();
+                    return rewriteBindings(bindings);
                 }
 
             };
@@ -219,23 +209,8 @@ public final class RewritingTripleStore extends ForwardingTripleStore {
 
         @Nullable
         BindingSet rewriteBindings(@Nullable final BindingSet bindings) {
-
-            if (bindings != null) {
-                final Set<String> names = bindings.getBindingNames();
-                final Value[] values = new Value[names.size()];
-                boolean changed = false;
-                int index = 0;
-                for (final String name : names) {
-                    final Value oldValue = bindings.getValue(name);
-                    final Value newValue = rewriteValue(oldValue);
-                    values[index++] = newValue;
-                    changed |= oldValue != newValue;
-                }
-                if (changed) {
-                    return new ListBindingSet(ImmutableList.copyOf(names), values);
-                }
-            }
-            return bindings;
+            // values are lazily rewritten when read
+            return bindings == null ? null : CompactBindingSet.rewrite(bindings, this);
         }
 
         Handler<Statement> rewriteStatements(final Handler<? super Statement> handler) {
@@ -284,27 +259,13 @@ public final class RewritingTripleStore extends ForwardingTripleStore {
         @Nullable
         Statement rewriteStatement(@Nullable final Statement statement) {
 
-            if (statement == null) {
-                return null;
-            }
+            // components are lazily rewritten when read
+            return statement == null ? null : RDFUtil.rewrite(statement, this);
+        }
 
-            final Resource oldSubj = statement.getSubject();
-            final URI oldPred = statement.getPredicate();
-            final Value oldObj = statement.getObject();
-            final Resource oldCtx = statement.getContext();
-
-            final Resource newSubj = rewriteValue(oldSubj);
-            final URI newPred = rewriteValue(oldPred);
-            final Value newObj = rewriteValue(oldObj);
-            final Resource newCtx = rewriteValue(oldCtx);
-
-            if (oldSubj == newSubj && oldPred == newPred && oldObj == newObj && oldCtx == newCtx) {
-                return statement;
-            } else if (newCtx != null) {
-                return Data.getValueFactory().createStatement(newSubj, newPred, newObj, newCtx);
-            } else {
-                return Data.getValueFactory().createStatement(newSubj, newPred, newObj);
-            }
+        @Override
+        public Value apply(final Value value) {
+            return rewriteValue(value);
         }
 
         @SuppressWarnings("unchecked")
@@ -508,7 +508,7 @@ final class SPARQLRenderer implements QueryRenderer {
                     int count = 0;
                     for (final String var : query.where.getBindingNames()) {
                         final ValueExpr expr = getVarExpr(query.where, var);
-                        if (!var.startsWith("-")) {
+                        if (var.indexOf('-') < 0) { // skip constants, not valid variable names
                             if (expr == null) {
                                 emit(" ?").emit(var);
                             } else {
@@ -2,6 +2,7 @@ package eu.fbk.knowledgestore.triplestore;
 
 import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
 
@@ -9,12 +10,14 @@ import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 
 import org.openrdf.model.Value;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.Dataset;
 import org.openrdf.query.MalformedQueryException;
 import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.algebra.BindingSetAssignment;
 import org.openrdf.query.algebra.TupleExpr;
 import org.openrdf.query.algebra.Var;
 import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
@@ -22,6 +25,7 @@ import org.openrdf.query.parser.ParsedTupleQuery;
 import org.openrdf.query.parser.QueryParserUtil;
 
 import eu.fbk.knowledgestore.data.ParseException;
+import eu.fbk.knowledgestore.internal.rdf.RDFUtil;
 
 /**
  * A SPARQL SELECT query.
@@ -36,9 +40,13 @@ import eu.fbk.knowledgestore.data.ParseException;
  * {@link #from(TupleExpr, Dataset)}). In both case, the dual representation is automatically
  * derived, either via parsing or rendering to SPARQL language. The two <tt>from</tt> factory
  * methods provide for the caching and reuse of already created objects, thus reducing parsing
- * overhead. A {@link MalformedQueryException} is thrown in case the supplied representation
- * (either the query string or the algebraic expression) does not denote a valid SPARQL SELECT
- * query.
+ * overhead; in addition, the query strings rendered from algebraic expressions are kept in a
+ * cache bounded by their total size and indexed by the textual dump of the expression, so that
+ * the same sub-tree of a repeatedly executed query is rendered only once (expressions with
+ * {@code VALUES} clauses are not cached, as they are generally built for a single evaluation
+ * and their dumps may be large). A {@link MalformedQueryException} is thrown in case the
+ * supplied representation (either the query string or the algebraic expression) does not denote
+ * a valid SPARQL SELECT query.
  * </p>
  * <p>
  * Serialization is supported, with deserialization attempting to reuse existing objects from the
@@ -63,6 +71,21 @@ public final class SelectQuery implements Serializable {
     private static final Cache<String, SelectQuery> CACHE = CacheBuilder.newBuilder().softValues()
             .build();
 
+    /**
+     * A cache of query strings rendered from algebraic expressions, bounded by the total number
+     * of characters of keys and values. Entries are indexed by the dataset and the algebra dump
+     * of the expression, which captures all the information used in the rendering.
+     */
+    private static final Cache<String, String> RENDER_CACHE = CacheBuilder.newBuilder()
+            .maximumWeight(4 * 1024 * 1024).weigher(new Weigher<String, String>() {
+
+                @Override
+                public int weigh(final String key, final String value) {
+                    return key.length() + value.length();
+                }
+
+            }).build();
+
     /** The query string. */
     private final String string;
 
@@ -122,10 +145,23 @@ public final class SelectQuery implements Serializable {
 
         try {
             // Sesame rendering facilities are definitely broken, so we use our own
-            final String string = new SPARQLRenderer(null, true).render(expression, dataset);
+            final String key = hasValues(expression) ? null : (dataset == null ? ""
+                    : dataset.toString()) + "\n" + expression;
+            String string = key == null ? null : RENDER_CACHE.getIfPresent(key);
+            if (string == null) {
+                string = new SPARQLRenderer(null, true).render(expression, dataset);
+                if (!"select".equals(RDFUtil.detectSparqlForm(string))) {
+                    // CONSTRUCT and DESCRIBE forms may be produced despite forcing SELECT
+                    throw new IllegalArgumentException("Not a SELECT query:\n" + string);
+                }
+                if (key != null) {
+                    RENDER_CACHE.put(key, string);
+                }
+            }
             SelectQuery query = CACHE.getIfPresent(string);
             if (query == null) {
-                query = new SelectQuery(string, expression, dataset);
+                // the supplied expression belongs to the caller, so we retain a private copy
+                query = new SelectQuery(string, expression.clone(), dataset);
                 CACHE.put(string, query);
             }
             return query;
@@ -282,6 +318,19 @@ public final class SelectQuery implements Serializable {
         return new SerializedForm(this.string);
     }
 
+    private static boolean hasValues(final TupleExpr expression) {
+        final AtomicBoolean result = new AtomicBoolean(false);
+        expression.visit(new QueryModelVisitorBase<RuntimeException>() {
+
+            @Override
+            public void meet(final BindingSetAssignment node) {
+                result.set(true);
+            }
+
+        });
+        return result.get();
+    }
+
     private static final class SerializedForm {
 
         private final String string;
@@ -13,9 +13,14 @@
  * <li>abstract classes ({@link eu.fbk.knowledgestore.triplestore.ForwardingTripleStore} and
  * {@link eu.fbk.knowledgestore.triplestore.ForwardingTripleTransaction}) for implementing the
  * decorator pattern;</li>
- * <li>two concrete decorator classes providing, respectively, logging support (
- * {@link eu.fbk.knowledgestore.triplestore.LoggingTripleStore}) and synchronization support (
- * {@link eu.fbk.knowledgestore.triplestore.SynchronizedTripleStore}).</li>
+ * <li>concrete decorator classes providing, respectively, logging support (
+ * {@link eu.fbk.knowledgestore.triplestore.LoggingTripleStore}), synchronization support (
+ * {@link eu.fbk.knowledgestore.triplestore.SynchronizedTripleStore}), caching of lookup and
+ * query results ({@link eu.fbk.knowledgestore.triplestore.CachingTripleStore}), workload
+ * profiling for index selection ({@link eu.fbk.knowledgestore.triplestore.ProfilingTripleStore}
+ * ), incremental materialization of RDFS / OWL inferences (
+ * {@link eu.fbk.knowledgestore.triplestore.InferencingTripleStore}) and full-text indexing of
+ * literals ({@link eu.fbk.knowledgestore.triplestore.FullTextTripleStore}).</li>
  * </ul>
  * </p>
  * <p>
@@ -0,0 +1,174 @@
+package eu.fbk.knowledgestore.server;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.UnaryTupleOperator;
+import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
+import org.openrdf.query.algebra.evaluation.TripleSource;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.query.impl.MapBindingSet;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.memory.MemoryStore;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.ExceptionConvertingIteration;
+import info.aduna.iteration.Iterations;
+
+import eu.fbk.knowledgestore.data.Data;
+
+public class BindJoinIterationTest {
+
+    private MemoryStore store;
+
+    private SailConnection connection;
+
+    private EvaluationStrategy strategy;
+
+    @Before
+    public void setUp() throws Throwable {
+        this.store = new MemoryStore();
+        this.store.initialize();
+        this.connection = this.store.getConnection();
+
+        // Resources s0..s499 linked to URIs o0..o36 having a variable number of ex:q values and,
+        // one out of three, to a blank node having a single ex:q value
+        final ValueFactory vf = Data.getValueFactory();
+        this.connection.begin();
+        for (int i = 0; i < 500; ++i) {
+            this.connection.addStatement(uri("s" + i), uri("p"), uri("o" + i % 37));
+            if (i % 3 == 0) {
+                this.connection.addStatement(uri("s" + i), uri("p"), vf.createBNode("b" + i));
+                this.connection.addStatement(vf.createBNode("b" + i), uri("q"),
+                        vf.createLiteral(i));
+            }
+            for (int j = 0; j < i % 5; ++j) {
+                this.connection.addStatement(uri("o" + i % 37), uri("q"),
+                        vf.createLiteral("v" + j + "_" + i));
+            }
+        }
+        this.connection.commit();
+
+        final SailConnection connection = this.connection;
+        this.strategy = new EvaluationStrategyImpl(new TripleSource() {
+
+            @Override
+            public CloseableIteration<? extends Statement, QueryEvaluationException> getStatements(
+                    final Resource subj, final URI pred, final Value obj,
+                    final Resource... contexts) throws QueryEvaluationException {
+                try {
+                    return new ExceptionConvertingIteration<Statement, QueryEvaluationException>(
+                            connection.getStatements(subj, pred, obj, false, contexts)) {
+
+                        @Override
+                        protected QueryEvaluationException convert(final Exception ex) {
+                            return new QueryEvaluationException(ex);
+                        }
+
+                    };
+                } catch (final SailException ex) {
+                    throw new QueryEvaluationException(ex);
+                }
+            }
+
+            @Override
+            public ValueFactory getValueFactory() {
+                return Data.getValueFactory();
+            }
+
+        }, null);
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        this.connection.close();
+        this.store.shutDown();
+    }
+
+    @Test
+    public void testSharedVariable() throws Throwable {
+        check("SELECT * WHERE { ?s <ex:p> ?o . ?o <ex:q> ?v }", null);
+    }
+
+    @Test
+    public void testBlankNodes() throws Throwable {
+        // ?o is bound also to blank nodes, which are joined one left binding at a time
+        check("SELECT * WHERE { ?s <ex:p> ?o . ?o <ex:q> ?v FILTER(isLiteral(?v)) }", null);
+        check("SELECT * WHERE { ?s <ex:p> ?o FILTER(isBlank(?o)) . ?o <ex:q> ?v }", null);
+    }
+
+    @Test
+    public void testUnboundVariables() throws Throwable {
+        // ?w is shared but never bound by the left argument
+        check("SELECT * WHERE { ?s <ex:p> ?o . OPTIONAL { ?s <ex:zz> ?w } . "
+                + "{ ?o <ex:q> ?v } UNION { ?w <ex:zz> ?v } UNION { ?s <ex:p> ?v } }", null);
+    }
+
+    @Test
+    public void testNoSharedVariables() throws Throwable {
+        check("SELECT * WHERE { ?s <ex:p> ?o . ?x <ex:q> \"v1_2\" }", null);
+    }
+
+    @Test
+    public void testInitialBindings() throws Throwable {
+        final MapBindingSet bindings = new MapBindingSet();
+        bindings.addBinding("s", uri("s3"));
+        check("SELECT * WHERE { ?s <ex:p> ?o . ?o <ex:q> ?v }", bindings);
+    }
+
+    private void check(final String query, final BindingSet bindings) throws Throwable {
+
+        // Locate the (first) join in the algebra of the query
+        TupleExpr expr = SparqlHelper.parse(query, null).getTupleExpr();
+        while (!(expr instanceof Join)) {
+            expr = ((UnaryTupleOperator) expr).getArg();
+        }
+        final Join join = (Join) expr;
+        final BindingSet actualBindings = bindings != null ? bindings : EmptyBindingSet
+                .getInstance();
+
+        // Compare bind join results with the ones of Sesame nested loop join
+        final List<String> expected = toStrings(Iterations.asList(this.strategy.evaluate(join,
+                actualBindings)));
+        final List<String> actual = toStrings(Iterations.asList(new BindJoinIteration(
+                this.strategy, join, actualBindings)));
+        Assert.assertFalse(expected.isEmpty());
+        Assert.assertEquals(expected, actual);
+    }
+
+    private static List<String> toStrings(final List<BindingSet> bindingSets) {
+        final List<String> result = Lists.newArrayList();
+        for (final BindingSet bindingSet : bindingSets) {
+            final List<String> bindings = Lists.newArrayList();
+            for (final String name : bindingSet.getBindingNames()) {
+                bindings.add(name + "=" + bindingSet.getValue(name));
+            }
+            Collections.sort(bindings);
+            result.add(bindings.toString());
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static URI uri(final String name) {
+        return Data.getValueFactory().createURI("ex:" + name);
+    }
+
+}
@@ -0,0 +1,75 @@
+package eu.fbk.knowledgestore.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.html.HtmlEscapers;
+import com.google.common.io.ByteStreams;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HtmlEscapingInputStreamTest {
+
+    private static final String[] INPUTS = { "", "plain text", "<a href=\"x\">Tom & Jerry's</a>",
+            "&&&<<<>>>", "Città «ß» & 中文 <b>", Strings.repeat("x", 8191) + "<&>",
+            Strings.repeat("a<b & c>'d'\n", 2000) };
+
+    @Test
+    public void testReadAll() throws Throwable {
+        for (final String input : INPUTS) {
+            final InputStream stream = escape(input);
+            Assert.assertEquals(HtmlEscapers.htmlEscaper().escape(input), new String(
+                    ByteStreams.toByteArray(stream), Charsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testReadSmallBuffers() throws Throwable {
+        for (final String input : INPUTS) {
+            for (final int size : new int[] { 1, 2, 3, 5 }) {
+                final InputStream stream = escape(input);
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[size];
+                int n;
+                while ((n = stream.read(buffer, 0, size)) >= 0) {
+                    Assert.assertTrue(n > 0);
+                    out.write(buffer, 0, n);
+                }
+                Assert.assertEquals(HtmlEscapers.htmlEscaper().escape(input), new String(
+                        out.toByteArray(), Charsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    public void testReadSingleBytes() throws Throwable {
+        final String input = INPUTS[4];
+        final InputStream stream = escape(input);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = stream.read()) >= 0) {
+            out.write(b);
+        }
+        Assert.assertEquals(HtmlEscapers.htmlEscaper().escape(input),
+                new String(out.toByteArray(), Charsets.UTF_8));
+    }
+
+    @Test
+    public void testSkip() throws Throwable {
+        final InputStream stream = escape("<a>");
+        Assert.assertEquals(2, stream.skip(2));
+        Assert.assertEquals("t;a&gt;", new String(ByteStreams.toByteArray(stream),
+                Charsets.UTF_8));
+    }
+
+    private static InputStream escape(final String input) throws IOException {
+        return new HtmlEscapingInputStream(new ByteArrayInputStream(
+                input.getBytes(Charsets.UTF_8)));
+    }
+
+}
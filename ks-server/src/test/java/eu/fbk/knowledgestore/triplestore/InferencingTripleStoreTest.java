@@ -0,0 +1,129 @@
+package eu.fbk.knowledgestore.triplestore;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.OWL;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.sail.memory.MemoryStore;
+
+import eu.fbk.knowledgestore.data.Data;
+import eu.fbk.knowledgestore.data.Stream;
+
+public class InferencingTripleStoreTest {
+
+    private InferencingTripleStore store;
+
+    @Before
+    public void setUp() throws Throwable {
+        this.store = new InferencingTripleStore(new RepositoryTripleStore(new MemoryStore()), null);
+        this.store.init();
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        this.store.close();
+    }
+
+    @Test
+    public void testRetractSupportedByOtherPremise() throws Throwable {
+        add(statement("A", RDFS.SUBCLASSOF, "C"), statement("B", RDFS.SUBCLASSOF, "C"),
+                statement("x", RDF.TYPE, "A"), statement("x", RDF.TYPE, "B"));
+        Assert.assertEquals(1, count(uri("x"), RDF.TYPE, uri("C")));
+
+        // x type C is deleted and then rederived from x type B
+        remove(statement("x", RDF.TYPE, "A"));
+        Assert.assertEquals(0, count(uri("x"), RDF.TYPE, uri("A")));
+        Assert.assertEquals(1, count(uri("x"), RDF.TYPE, uri("C")));
+
+        remove(statement("x", RDF.TYPE, "B"));
+        Assert.assertEquals(0, count(uri("x"), RDF.TYPE, null));
+    }
+
+    @Test
+    public void testRetractTransitiveChain() throws Throwable {
+        add(statement("A", RDFS.SUBCLASSOF, "B"), statement("B", RDFS.SUBCLASSOF, "C"),
+                statement("C", RDFS.SUBCLASSOF, "D"), statement("x", RDF.TYPE, "A"));
+        Assert.assertEquals(1, count(uri("A"), RDFS.SUBCLASSOF, uri("D")));
+        Assert.assertEquals(1, count(uri("x"), RDF.TYPE, uri("D")));
+
+        // breaking the chain in the middle retracts everything derived across the break
+        remove(statement("B", RDFS.SUBCLASSOF, "C"));
+        Assert.assertEquals(1, count(uri("x"), RDF.TYPE, uri("B")));
+        Assert.assertEquals(0, count(uri("x"), RDF.TYPE, uri("C")));
+        Assert.assertEquals(0, count(uri("x"), RDF.TYPE, uri("D")));
+        Assert.assertEquals(0, count(uri("A"), RDFS.SUBCLASSOF, uri("C")));
+        Assert.assertEquals(0, count(uri("A"), RDFS.SUBCLASSOF, uri("D")));
+        Assert.assertEquals(1, count(uri("C"), RDFS.SUBCLASSOF, uri("D")));
+    }
+
+    @Test
+    public void testRetractExplicitAlsoInferred() throws Throwable {
+        add(statement("A", RDFS.SUBCLASSOF, "B"), statement("x", RDF.TYPE, "A"),
+                statement("x", RDF.TYPE, "B"));
+
+        // x type B is removed as explicit statement but is still inferred from x type A
+        remove(statement("x", RDF.TYPE, "B"));
+        Assert.assertEquals(1, count(uri("x"), RDF.TYPE, uri("B")));
+
+        remove(statement("A", RDFS.SUBCLASSOF, "B"));
+        Assert.assertEquals(0, count(uri("x"), RDF.TYPE, uri("B")));
+        Assert.assertEquals(1, count(uri("x"), RDF.TYPE, uri("A")));
+    }
+
+    @Test
+    public void testRetractSameAs() throws Throwable {
+        add(statement("x", OWL.SAMEAS, "y"), statement("y", OWL.SAMEAS, "z"),
+                statement("x", RDF.TYPE, "A"));
+        Assert.assertEquals(1, count(uri("z"), RDF.TYPE, uri("A")));
+        Assert.assertEquals(1, count(uri("z"), OWL.SAMEAS, uri("x")));
+
+        remove(statement("y", OWL.SAMEAS, "z"));
+        Assert.assertEquals(1, count(uri("y"), RDF.TYPE, uri("A")));
+        Assert.assertEquals(0, count(uri("z"), null, null));
+        Assert.assertEquals(0, count(null, null, uri("z")));
+    }
+
+    private void add(final Statement... statements) throws Throwable {
+        final TripleTransaction tx = this.store.begin(false);
+        tx.add(ImmutableList.copyOf(statements));
+        tx.end(true);
+    }
+
+    private void remove(final Statement... statements) throws Throwable {
+        final TripleTransaction tx = this.store.begin(false);
+        tx.remove(ImmutableList.copyOf(statements));
+        tx.end(true);
+    }
+
+    private long count(@Nullable final Resource subject, @Nullable final URI predicate,
+            @Nullable final Value object) throws Throwable {
+        final TripleTransaction tx = this.store.begin(true);
+        try {
+            return Stream.create(tx.get(subject, predicate, object, null)).count();
+        } finally {
+            tx.end(true);
+        }
+    }
+
+    private static Statement statement(final String subject, final URI predicate,
+            final String object) {
+        return Data.getValueFactory().createStatement(uri(subject), predicate, uri(object),
+                uri("g"));
+    }
+
+    private static URI uri(final String name) {
+        return Data.getValueFactory().createURI("ex:" + name);
+    }
+
+}